@@ -12,13 +12,23 @@ public class Config {
     public static final String TAG_DEBUG = TAG + "Debug";
 
     public static int sLaunchTimeout = 50000;
-    public static int sWaitIdleTimeout = 3000;
+    public static int sLaunchIterations = 10; // Launches of each mode (cold, warm, hot) counted by the launch benchmark
+    public static int sLaunchWarmup = 2; // Launches of each mode done first and not counted
+    public static int sWaitIdleTimeout = 3000; // Also the longest wait for UI settled
+    public static int sSettleQuietTime = 300; // UI is settled after no UI event for this long
+    public static int sSettleMinTime = 100;
     public static int sMaxDepth =4;
     public static int sMaxSteps = 9999;
     public static int sMaxRuntime = 8*3600;
     public static int sMaxScreenshot = 9999;
+    public static int sScreenshotQueueSize = 8; // Screenshots waiting to be written in background
+    public static int sScreenshotWorkers = 2;
+    public static int sScreenshotBlockTime = 1000; // Wait this long for a full queue, then drop the screenshot
+    public static int sScreenshotDedupDistance = 4; // Max dHash distance (0 ~ 7) to skip a revisit step screenshot as duplicate, -1: disabled
     public static int sMaxScreenLoop = 50;
+    public static int sRelaunchCost = 3; // Relaunch target app costs as many steps as this when planning a route
     public static int sScreenSignatueLength = 1360;
+    public static int sSimilarityThreshold = 0; // Max SimHash distance (0 ~ 7) to treat screens as the same, 0: exact signature only
 
     public static boolean sDebug = true;
     public static boolean sCaptureSteps = true;
@@ -26,7 +36,26 @@ public class Config {
 
     public static File sOutputDir;
     public static String sFileLog;
+    public static int sLogFlushInterval = 500; // Millisecond between writes of queued log records
     public static String sPerformanceLog;
+    public static String sProcRoot = "/proc";
+    public static int sSampleRate = 10; // Performance samples per second in background, 0: one sample per crawl step
+    public static int sMemorySampleInterval = 1000; // Millisecond between memory samples in background
+    public static int sMeminfoInterval = 10000; // Millisecond between "dumpsys meminfo" for Java, native and graphics memory, 0: disabled
+    public static int sThreadSampleInterval = 1000; // Millisecond between per thread CPU samples, 0: disabled
+    public static int sThreadRescanInterval = 5000; // Millisecond between listing threads of the target app
+    public static int sTopThreads = 5; // Threads reported per screen
+    public static boolean sJankStats = true; // Frame stats from dumpsys gfxinfo on every step
+    public static int sJankFrameTime = 17; // Frames of this millisecond or longer are janky
+    public static int sTopJank = 10; // Screens and transitions reported in the jank ranking
+    public static int sTopLatency = 10; // Slowest clicks reported in the latency ranking
+    public static double sGuidedExploration = 0.5; // UCB exploration weight of the guided crawler
+    public static int sTopFeatures = 10; // Widget features reported in the novelty ranking
+    public static int sTopIo = 10; // Screens and transitions reported in the disk and network ranking
+    public static String sBudgetFile = "budget.yml"; // Performance budgets, relative to external storage
+    public static int sTraceQueueSize = 10000; // Trace events waiting to be written, more are dropped
+    public static int sPerformanceRingSize = 4096; // Latest performance samples kept in memory
+    public static int sPerformanceCsvRows = 1000; // Rows of the downsampled performance CSV
 
     public static String sCrawlerPackage = "com.eaway.appcrawler";
 //    public static String sTargetPackage = "com.google.android.calendar";
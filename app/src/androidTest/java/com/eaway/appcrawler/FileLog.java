@@ -3,32 +3,186 @@ package com.eaway.appcrawler;
 import android.util.Log;
 
 import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * File Log
  *
  * Save log to file and logcat.
  * Why not use logcat only: "logcat -f file" will result the log been cleaned, but we want to keep them.
+ *
+ * Records are queued without lock and written in batches by a background thread, through one
+ * writer kept open, every Config.sLogFlushInterval millisecond. flush() writes everything queued
+ * right away; it is called on uncaught exception, on process exit and when the test is finished.
  */
 public class FileLog {
-    private static synchronized void write(char lv, String tag, String msg) {
-        SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
-        PrintWriter writer = null;
+    private static final ConcurrentLinkedQueue<Record> sQueue = new ConcurrentLinkedQueue<Record>();
+    private static final Object sWriteLock = new Object();
+    private static final StringBuilder sLine = new StringBuilder(256);
+    private static char[] sChars = new char[256];
+    private static Writer sWriter = null;
+    private static String sWriterPath = null;
+
+    // Cached date part of the timestamp, only rebuilt when the day changes
+    private static long sDay = Long.MIN_VALUE;
+    private static int sMonth = 0;
+    private static int sDayOfMonth = 0;
+
+    private static final TimeZone sTimeZone = TimeZone.getDefault(); // getDefault() clones every call
+    private static Thread sThread = null;
+
+    private static class Record {
+        final long time;
+        final char lv;
+        final String tag;
+        final String msg;
+
+        Record(char lv, String tag, String msg) {
+            this.time = System.currentTimeMillis();
+            this.lv = lv;
+            this.tag = tag;
+            this.msg = msg;
+        }
+    }
+
+    private static void write(char lv, String tag, String msg) {
+        sQueue.offer(new Record(lv, tag, msg));
+        if (sThread == null)
+            start();
+    }
+
+    private static synchronized void start() {
+        if (sThread != null)
+            return;
+        sThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    LockSupport.parkNanos(Config.sLogFlushInterval * 1000000L);
+                    flush();
+                }
+            }
+        }, "FileLog");
+        sThread.setDaemon(true);
+        sThread.start();
+
+        // Don't lose the last records when the process goes down
+        final Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+            @Override
+            public void uncaughtException(Thread thread, Throwable ex) {
+                e(Config.TAG, "Uncaught exception in " + thread.getName() + ": " + Log.getStackTraceString(ex));
+                flush();
+                if (handler != null)
+                    handler.uncaughtException(thread, ex);
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }));
+    }
+
+    /**
+     * Write all queued records to file now
+     */
+    public static void flush() {
+        synchronized (sWriteLock) {
+            String path = Config.sFileLog;
+            if (path == null)
+                return; // Keep them until the log file is known
+            try {
+                if (sWriter == null || !path.equals(sWriterPath)) {
+                    close();
+                    sWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(path, true)), 16 * 1024);
+                    sWriterPath = path;
+                }
+                Record record;
+                int count = 0;
+                while ((record = sQueue.poll()) != null) {
+                    format(record);
+                    int length = sLine.length();
+                    if (length > sChars.length)
+                        sChars = new char[Math.max(length, sChars.length * 2)];
+                    sLine.getChars(0, length, sChars, 0);
+                    sWriter.write(sChars, 0, length);
+                    count++;
+                }
+                if (count > 0)
+                    sWriter.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+    }
+
+    private static void close() {
+        if (sWriter == null)
+            return;
         try {
-            writer = new PrintWriter(new BufferedWriter(new FileWriter(Config.sFileLog, true)));
-            if (writer != null)
-                writer.println(String.format("%s %c/%s: %s", sdf.format(new Date()), lv, tag, msg));
+            sWriter.close();
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (writer != null)
-                writer.close();
+            // Don't worry
         }
+        sWriter = null;
+        sWriterPath = null;
+    }
+
+    // Same as "MM-dd HH:mm:ss.SSS l/tag: msg", formatted into sLine without allocation
+    private static void format(Record record) {
+        long local = record.time + sTimeZone.getOffset(record.time);
+        long day = floorDiv(local, 86400000L);
+        if (day != sDay)
+            setDay(day);
+        int ms = (int) (local - day * 86400000L);
+
+        StringBuilder sb = sLine;
+        sb.setLength(0);
+        append2(sb, sMonth).append('-');
+        append2(sb, sDayOfMonth).append(' ');
+        append2(sb, ms / 3600000).append(':');
+        append2(sb, ms / 60000 % 60).append(':');
+        append2(sb, ms / 1000 % 60).append('.');
+        int millis = ms % 1000;
+        if (millis < 100)
+            sb.append('0');
+        append2(sb, millis);
+        sb.append(' ').append(record.lv).append('/').append(record.tag).append(": ").append(record.msg).append('\n');
+    }
+
+    private static StringBuilder append2(StringBuilder sb, int value) {
+        if (value < 10)
+            sb.append('0');
+        return sb.append(value);
+    }
+
+    private static long floorDiv(long x, long y) {
+        long q = x / y;
+        if ((x % y != 0) && ((x ^ y) < 0))
+            q--;
+        return q;
+    }
+
+    // Month and day of month from days since 1970-01-01 (civil from days, proleptic Gregorian)
+    private static void setDay(long day) {
+        long z = day + 719468;
+        long era = floorDiv(z, 146097);
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp = (5 * doy + 2) / 153;
+        sDayOfMonth = (int) (doy - (153 * mp + 2) / 5 + 1);
+        sMonth = (int) (mp < 10 ? mp + 3 : mp - 9);
+        sDay = day;
     }
 
     public static int v(String tag, String msg) {
@@ -27,10 +27,27 @@
  *         -e random-text [true|false]              input some random text to EditText if any, default true.
  *         -e launch-timeout [millisecond]      timeout millisecond for launch app package, default 5000
  *         -e waitidle-timeout [millisecond]    timeout millisecond for wait app idle, default 100
+ *         -e settle-quiet [millisecond]          UI is settled after no UI event for this long, default 300
+ *         -e settle-min [millisecond]            minimum wait for UI settled, default 100
+ *         -e jank [true|false]                   frame stats from dumpsys gfxinfo on every step, default true
+ *         -e sample-rate [n]                     performance samples per second in background, 0: per step, default 10
+ *         -e similarity [0~7]                      max SimHash distance to treat two screens as the same, default 0 (exact)
+ *         -e launch-iterations [number]          launches of each mode counted by testLaunch, default 10
+ *         -e launch-warmup [number]              launches of each mode done first and not counted, default 2
+ *         -e budget [file]                       performance budgets (YAML) under /sdcard, default budget.yml
+ *         -e screenshot-dedup [-1~7]             max dHash distance to skip a step screenshot of a revisited screen as duplicate, -1: keep all, default 4
  *
  *     [Examples]
  *         # adb shell am instrument -e target com.google.android.youtube -w com.eaway.appcrawler.test/android.support.test.runner.AndroidJUnitRunner
  *
+ *         testGuided and testLaunch are skipped unless selected with -e class, as below.
+ *
+ *         Depth first crawl that clicks the widgets most likely to lead to new screens first:
+ *         # adb shell am instrument -e target com.google.android.youtube -e class com.eaway.appcrawler.TestMain#testGuided -w com.eaway.appcrawler.test/android.support.test.runner.AndroidJUnitRunner
+ *
+ *         Cold, warm and hot launch benchmark only:
+ *         # adb shell am instrument -e target com.google.android.youtube -e class com.eaway.appcrawler.TestMain#testLaunch -w com.eaway.appcrawler.test/android.support.test.runner.AndroidJUnitRunner
+ *
  *         Please refer to the link below for other am instrument flags:
  *             http://developer.android.com/intl/zh-tw/tools/testing/testing_otheride.html#AMSyntax
  */
@@ -51,10 +68,16 @@ import android.support.test.uiautomator.UiScrollable;
 import android.support.test.uiautomator.UiSelector;
 import android.util.Log;
 
+import com.eaway.appcrawler.common.ScreenshotWriter;
+import com.eaway.appcrawler.common.SettleDetector;
 import com.eaway.appcrawler.common.UiHelper;
+import com.eaway.appcrawler.performance.LaunchBenchmark;
+import com.eaway.appcrawler.performance.PerformanceBudget;
 import com.eaway.appcrawler.performance.PerformanceMonitor;
+import com.eaway.appcrawler.performance.TraceWriter;
 import com.eaway.appcrawler.strategy.Crawler;
 import com.eaway.appcrawler.strategy.DepthFirstCrawler;
+import com.eaway.appcrawler.strategy.GuidedCrawler;
 import com.eaway.appcrawler.strategy.RandomCrawler;
 import com.esotericsoftware.yamlbeans.YamlException;
 import com.esotericsoftware.yamlbeans.YamlReader;
@@ -64,6 +87,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -76,6 +101,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -118,6 +144,8 @@ public class TestMain {
 
         // Init Performance log
         Config.sPerformanceLog = Config.sOutputDir + "/Performance.csv";
+        // Trace first, counters of the sampler are on its timeline
+        TraceWriter.open(new File(Config.sOutputDir, "Trace.json"));
         PerformanceMonitor.init();
 
         //  Set timeout longer so we can see the ANR dialog?
@@ -129,9 +157,15 @@ public class TestMain {
         //conf.setKeyInjectionDelay(0L);
         logConfiguration();
 
+        // Performance budgets, checked while crawling
+        PerformanceBudget.load(new File(path, Config.sBudgetFile));
+
         // Register UiWatchers: ANR, CRASH, ....
         UiHelper.registerAnrAndCrashWatchers();
 
+        // Wait for UI settled by accessibility events
+        SettleDetector.getInstance().attach(InstrumentationRegistry.getInstrumentation().getUiAutomation());
+
         // Good practice to start from the home screen (launcher)
 //        UiHelper.launchHome();
     }
@@ -140,6 +174,12 @@ public class TestMain {
     public static void afterClass() {
         Log.v(TAG, new Exception().getStackTrace()[0].getMethodName() + "()");
 
+        // Make sure every screenshot is on disk before the result is pulled
+        ScreenshotWriter.getInstance().flush(Config.sLaunchTimeout);
+        PerformanceMonitor.finish();
+        TraceWriter.close();
+        FileLog.flush();
+
         //UiHelper.launchCrawlerApp();
     }
 
@@ -155,6 +195,7 @@ public class TestMain {
     public void tearDown() throws Exception {
         Log.v(TAG, new Exception().getStackTrace()[0].getMethodName() + "()");
 
+        FileLog.flush();
         saveLogcat();
     }
     private String readFile(File filePath) throws IOException {
@@ -392,6 +433,35 @@ public class TestMain {
         } catch (IllegalStateException e) {
             Log.v(TAG, "IllegalStateException: UiAutomation not connected!");
         }
+        assertBudgets();
+    }
+
+    // Only when asked for by "-e class com.eaway.appcrawler.TestMain#<method>", skipped in the default run
+    private static void assumeSelected(String method) {
+        String selected = InstrumentationRegistry.getArguments().getString("class");
+        Assume.assumeTrue(method + " runs only with -e class " + TestMain.class.getName() + "#" + method,
+                selected != null && selected.contains("#" + method));
+    }
+
+    @Test
+    public void testGuided() {
+        Log.v(TAG, new Exception().getStackTrace()[0].getMethodName() + "()");
+        assumeSelected("testGuided");
+
+        Crawler crawler = new GuidedCrawler();
+
+        try {
+            crawler.run();
+        } catch (IllegalStateException e) {
+            Log.v(TAG, "IllegalStateException: UiAutomation not connected!");
+        }
+        assertBudgets();
+    }
+
+    private static void assertBudgets() {
+        List<String> violations = PerformanceBudget.getViolations();
+        if (!violations.isEmpty())
+            Assert.fail(violations.size() + " performance budget violations, first: " + violations.get(0));
     }
     @Test
     public void testRandom() {
@@ -404,6 +474,24 @@ public class TestMain {
         } catch (IllegalStateException e) {
             Log.v(TAG, "IllegalStateException: UiAutomation not connected!");
         }
+        assertBudgets();
+    }
+
+    @Test
+    public void testLaunch() {
+        Log.v(TAG, new Exception().getStackTrace()[0].getMethodName() + "()");
+        assumeSelected("testLaunch");
+
+        LaunchBenchmark benchmark = new LaunchBenchmark(Config.sTargetPackage);
+        // Force-stops are no crashes, and the sampler would slow down the launches
+        PerformanceMonitor.pause();
+        try {
+            benchmark.run(Config.sLaunchIterations, Config.sLaunchWarmup);
+        } catch (IllegalStateException e) {
+            Log.v(TAG, "IllegalStateException: UiAutomation not connected!");
+        } finally {
+            PerformanceMonitor.resume();
+        }
     }
 
     public static void getArguments() {
@@ -432,6 +520,33 @@ public class TestMain {
         if (arguments.getString("waitidle-timeout") != null) {
             Config.sWaitIdleTimeout = Integer.valueOf((arguments.getString("waitidle-timeout")));
         }
+        if (arguments.getString("settle-quiet") != null) {
+            Config.sSettleQuietTime = Integer.valueOf((arguments.getString("settle-quiet")));
+        }
+        if (arguments.getString("settle-min") != null) {
+            Config.sSettleMinTime = Integer.valueOf((arguments.getString("settle-min")));
+        }
+        if (arguments.getString("jank") != null) {
+            Config.sJankStats = (arguments.getString("jank").compareTo("true") == 0);
+        }
+        if (arguments.getString("sample-rate") != null) {
+            Config.sSampleRate = Integer.valueOf((arguments.getString("sample-rate")));
+        }
+        if (arguments.getString("similarity") != null) {
+            Config.sSimilarityThreshold = Integer.valueOf((arguments.getString("similarity")));
+        }
+        if (arguments.getString("launch-iterations") != null) {
+            Config.sLaunchIterations = Integer.valueOf((arguments.getString("launch-iterations")));
+        }
+        if (arguments.getString("launch-warmup") != null) {
+            Config.sLaunchWarmup = Integer.valueOf((arguments.getString("launch-warmup")));
+        }
+        if (arguments.getString("budget") != null) {
+            Config.sBudgetFile = arguments.getString("budget");
+        }
+        if (arguments.getString("screenshot-dedup") != null) {
+            Config.sScreenshotDedupDistance = Integer.valueOf((arguments.getString("screenshot-dedup")));
+        }
         if (arguments.getString("capture-steps") != null) {
             Config.sCaptureSteps = (arguments.getString("capture-steps").compareTo("true") == 0);
         }
@@ -499,10 +614,18 @@ public class TestMain {
                 ", MaxScreenshot: " + Config.sMaxScreenshot +
                 ", MaxScreenLoop: " + Config.sMaxScreenLoop +
                 ", ScreenSignatueLength: " + Config.sScreenSignatueLength +
+                ", SimilarityThreshold: " + Config.sSimilarityThreshold +
                 ", RandomText: " + Config.sRandomText +
                 ", CaptureSteps: " + Config.sCaptureSteps +
                 ", LaunchTimeout: " + Config.sLaunchTimeout +
-                ", WaitIdleTimeout: " + Config.sWaitIdleTimeout);
+                ", WaitIdleTimeout: " + Config.sWaitIdleTimeout +
+                ", SettleQuietTime: " + Config.sSettleQuietTime +
+                ", SettleMinTime: " + Config.sSettleMinTime +
+                ", SampleRate: " + Config.sSampleRate +
+                ", LaunchIterations: " + Config.sLaunchIterations +
+                ", LaunchWarmup: " + Config.sLaunchWarmup +
+                ", BudgetFile: " + Config.sBudgetFile +
+                ", JankStats: " + Config.sJankStats);
     }
 
     public static void saveLogcat() {
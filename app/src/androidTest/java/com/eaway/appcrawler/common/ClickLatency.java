@@ -0,0 +1,148 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+import com.eaway.appcrawler.performance.LogHistogram;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * UI responsiveness per click: time from the click to the first UI change, and to the last UI change
+ * before the UI settled, as seen by SettleDetector. Both only count events within the wait for settle
+ * after the click, which stops at the bound SettleModel has learned for the click.
+ *
+ * A wait that ran into its bound is censored: the UI was still changing, the settle time is at least the
+ * last change seen. That lower bound goes into the histograms and the click is counted as censored, so
+ * settle percentiles of an edge with censored clicks are lower bounds too.
+ *
+ * Numbers are kept per (screen, widget) edge, the slowest edges are reported with the path to
+ * reproduce them: the clicks from the launch screen that first led to the screen.
+ */
+public class ClickLatency {
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+    private static final int MAX_PATH = 50;
+
+    private static ClickLatency sInstance = null;
+
+    private final Map<String, Edge> mEdges = new HashMap<String, Edge>();
+    private final LogHistogram mFirstChange = new LogHistogram(1);
+    private final LogHistogram mSettle = new LogHistogram(1);
+    private int mNoChange = 0;
+    private int mCensored = 0;
+
+    public static class Edge {
+        public final UiScreen screen;
+        public final String widget;
+        public final LogHistogram firstChange = new LogHistogram(1);
+        public final LogHistogram settle = new LogHistogram(1);
+        public int clicks = 0;
+        public int noChange = 0;   // Clicks without any UI change
+        public int censored = 0;   // Clicks still changing the UI when the wait stopped, settle >= recorded
+
+        Edge(UiScreen screen, String widget) {
+            this.screen = screen;
+            this.widget = widget;
+        }
+    }
+
+    public static synchronized ClickLatency getInstance() {
+        if (sInstance == null)
+            sInstance = new ClickLatency();
+        return sInstance;
+    }
+
+    /**
+     * The widget of the screen was clicked after SettleDetector.mark(), and the wait for settle is done
+     */
+    public synchronized void record(UiScreen screen, UiWidget widget) {
+        SettleDetector detector = SettleDetector.getInstance();
+        if (!detector.isAttached() || screen == null || widget == null)
+            return;
+        String descriptor = widget.getDescriptor();
+        String key = screen.id + "|" + descriptor;
+        Edge edge = mEdges.get(key);
+        if (edge == null) {
+            edge = new Edge(screen, descriptor);
+            mEdges.put(key, edge);
+        }
+        edge.clicks++;
+
+        long first = detector.getFirstEventDelay();
+        long last = detector.getLastEventDelay();
+        if (first < 0) {
+            edge.noChange++;
+            mNoChange++;
+            return;
+        }
+        if (detector.isTimeout()) {
+            edge.censored++;
+            mCensored++;
+        }
+        edge.firstChange.add(first);
+        edge.settle.add(last);
+        mFirstChange.add(first);
+        mSettle.add(last);
+    }
+
+    public synchronized void clear() {
+        mEdges.clear();
+        mFirstChange.reset();
+        mSettle.reset();
+        mNoChange = 0;
+        mCensored = 0;
+    }
+
+    /**
+     * Clicks from the launch screen that first led to the screen
+     */
+    public static String getPath(UiScreen screen) {
+        List<String> steps = new ArrayList<String>();
+        for (int i = 0; screen != null && i < MAX_PATH; i++) {
+            steps.add("Screen[" + screen.id + "]");
+            if (screen.parentWidget != null)
+                steps.add(screen.parentWidget.getDescriptor());
+            screen = screen.parentScreen;
+        }
+        Collections.reverse(steps);
+        StringBuilder sb = new StringBuilder("Launch");
+        for (String step : steps) {
+            sb.append(" > ").append(step);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Log the whole run, then the top slowest edges by p90 of settle time
+     */
+    public synchronized void logSummary(int top) {
+        FileLog.i(TAG_MAIN, "{Latency} first change (ms) " + mFirstChange.toString() +
+                "; settle (ms) " + mSettle.toString() + "; no change:" + mNoChange + ", censored:" + mCensored);
+
+        List<Edge> edges = new ArrayList<Edge>();
+        for (Edge edge : mEdges.values()) {
+            if (edge.settle.getCount() > 0)
+                edges.add(edge);
+        }
+        Collections.sort(edges, new Comparator<Edge>() {
+            @Override
+            public int compare(Edge a, Edge b) {
+                return Double.compare(b.settle.getPercentile(90), a.settle.getPercentile(90));
+            }
+        });
+        for (int i = 0; i < edges.size() && i < top; i++) {
+            Edge edge = edges.get(i);
+            FileLog.i(TAG_MAIN, String.format("{Latency} #%d Screen[%d] %s, clicks:%d, no change:%d, censored:%d" +
+                            ", first change (ms) p50:%.0f p90:%.0f max:%.0f, settle (ms) p50:%.0f p90:%.0f max:%.0f" +
+                            ", path: %s",
+                    i + 1, edge.screen.id, edge.widget, edge.clicks, edge.noChange, edge.censored,
+                    edge.firstChange.getPercentile(50), edge.firstChange.getPercentile(90), edge.firstChange.getMax(),
+                    edge.settle.getPercentile(50), edge.settle.getPercentile(90), edge.settle.getMax(),
+                    getPath(edge.screen)));
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Learn which widgets lead to new screens, as an online bandit over widget features.
+ *
+ * A widget is described by features: class, resource-id, cell of a GRID x GRID grid of the display
+ * and up to MAX_TOKENS words of its text or content description. Every click updates the features
+ * of the widget with reward 1 if it led to a new screen, 0 otherwise. The expected novelty of a
+ * widget is the average UCB1 score of its features: mean reward (with one pseudo click at the mean
+ * of all clicks) plus Config.sGuidedExploration * sqrt(ln(clicks) / feature clicks), so features
+ * seldom tried get their chance.
+ */
+public class NoveltyModel {
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+    private static final int GRID = 3;
+    private static final int MAX_TOKENS = 4;
+    private static final int MIN_PULLS = 3; // Fewer clicks are not ranked
+
+    private static NoveltyModel sInstance = null;
+
+    private final Map<String, Arm> mArms = new HashMap<String, Arm>();
+    private int mPulls = 0;
+    private int mRewards = 0;
+
+    private static class Arm {
+        int pulls = 0;
+        int rewards = 0;
+    }
+
+    public static synchronized NoveltyModel getInstance() {
+        if (sInstance == null)
+            sInstance = new NoveltyModel();
+        return sInstance;
+    }
+
+    /**
+     * Features of the widget on a display of width x height, position is left out if the size is unknown
+     */
+    public static List<String> features(UiWidget widget, int width, int height) {
+        List<String> features = new ArrayList<String>();
+        UiNode node = widget.node;
+        if (node == null)
+            return features;
+        features.add("class:" + node.getSimpleClassName());
+        if (node.resourceId.length() > 0)
+            features.add("id:" + node.resourceId);
+        if (width > 0 && height > 0) {
+            int col = Math.min(GRID - 1, Math.max(0, (node.left + node.right) / 2 * GRID / width));
+            int row = Math.min(GRID - 1, Math.max(0, (node.top + node.bottom) / 2 * GRID / height));
+            features.add("pos:" + col + "," + row);
+        }
+        String label = (node.text.length() > 0) ? node.text : node.contentDesc;
+        int tokens = 0;
+        for (String token : label.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")) {
+            if (token.length() == 0)
+                continue;
+            features.add("text:" + token);
+            if (++tokens >= MAX_TOKENS)
+                break;
+        }
+        return features;
+    }
+
+    /**
+     * Expected novelty of clicking the widget, higher is better
+     */
+    public synchronized double score(UiWidget widget, int width, int height) {
+        List<String> features = features(widget, width, height);
+        if (features.isEmpty())
+            return 0;
+        double prior = (mRewards + 1.0) / (mPulls + 2.0);
+        double log = Math.log(mPulls + 1.0);
+        double sum = 0;
+        for (String feature : features) {
+            Arm arm = mArms.get(feature);
+            int pulls = (arm == null) ? 0 : arm.pulls;
+            int rewards = (arm == null) ? 0 : arm.rewards;
+            sum += (rewards + prior) / (pulls + 1.0) + Config.sGuidedExploration * Math.sqrt(log / (pulls + 1.0));
+        }
+        return sum / features.size();
+    }
+
+    /**
+     * Unfinished widgets, highest expected novelty first, same score in the given order
+     */
+    public synchronized List<UiWidget> order(List<UiWidget> widgets, int width, int height) {
+        final Map<UiWidget, Double> scores = new HashMap<UiWidget, Double>();
+        List<UiWidget> ordered = new ArrayList<UiWidget>();
+        for (UiWidget widget : widgets) {
+            if (widget.isFinished())
+                continue;
+            scores.put(widget, score(widget, width, height));
+            ordered.add(widget);
+        }
+        Collections.sort(ordered, new Comparator<UiWidget>() {
+            @Override
+            public int compare(UiWidget a, UiWidget b) {
+                return Double.compare(scores.get(b), scores.get(a));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * The widget was clicked, newScreen if it led to a screen not seen before
+     */
+    public synchronized void update(UiWidget widget, int width, int height, boolean newScreen) {
+        mPulls++;
+        if (newScreen)
+            mRewards++;
+        for (String feature : features(widget, width, height)) {
+            Arm arm = mArms.get(feature);
+            if (arm == null) {
+                arm = new Arm();
+                mArms.put(feature, arm);
+            }
+            arm.pulls++;
+            if (newScreen)
+                arm.rewards++;
+        }
+    }
+
+    public synchronized void reset() {
+        mArms.clear();
+        mPulls = 0;
+        mRewards = 0;
+    }
+
+    public synchronized int getPulls() {
+        return mPulls;
+    }
+
+    public synchronized int getRewards() {
+        return mRewards;
+    }
+
+    /**
+     * Log the clicks, and the features most and least likely to lead to a new screen
+     */
+    public synchronized void logSummary(int top) {
+        FileLog.i(TAG_MAIN, String.format("{Novelty} clicks:%d, new screens:%d, rate:%.1f%%, features:%d",
+                mPulls, mRewards, mPulls == 0 ? 0f : 100f * mRewards / mPulls, mArms.size()));
+
+        List<Map.Entry<String, Arm>> entries = new ArrayList<Map.Entry<String, Arm>>();
+        for (Map.Entry<String, Arm> entry : mArms.entrySet()) {
+            if (entry.getValue().pulls >= MIN_PULLS)
+                entries.add(entry);
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, Arm>>() {
+            @Override
+            public int compare(Map.Entry<String, Arm> a, Map.Entry<String, Arm> b) {
+                return Double.compare(rate(b.getValue()), rate(a.getValue()));
+            }
+        });
+        for (int i = 0; i < entries.size() && i < top; i++) {
+            log("best", i + 1, entries.get(i));
+        }
+        for (int i = 0; i < entries.size() - top && i < top; i++) {
+            log("worst", i + 1, entries.get(entries.size() - 1 - i));
+        }
+    }
+
+    private static double rate(Arm arm) {
+        return (double) arm.rewards / arm.pulls;
+    }
+
+    private static void log(String rank, int i, Map.Entry<String, Arm> entry) {
+        Arm arm = entry.getValue();
+        FileLog.i(TAG_MAIN, String.format("{Novelty} %s #%d %s, clicks:%d, new screens:%d, rate:%.1f%%",
+                rank, i, entry.getKey(), arm.pulls, arm.rewards, 100 * rate(arm)));
+    }
+}
@@ -0,0 +1,142 @@
+package com.eaway.appcrawler.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Explored state graph: screens are vertices, clicks that took us from one screen to another are edges.
+ *
+ * Used to go back to a screen with unfinished widgets by the shortest known route, instead of
+ * relaunching the app and walking down one step at a time. A route can use:
+ *      - Click: a widget edge seen before, cost 1
+ *      - Back: to the parent screen, cost 1
+ *      - Relaunch: to the root screen, cost Config.sRelaunchCost, only at the beginning of a route
+ */
+public class ScreenGraph {
+    private static ScreenGraph sInstance = null;
+
+    private final Map<UiScreen, List<Edge>> mEdges = new HashMap<UiScreen, List<Edge>>();
+
+    public static class Edge {
+        public final UiScreen from;
+        public final UiWidget widget;   // null: press back
+        public final UiScreen to;
+
+        Edge(UiScreen from, UiWidget widget, UiScreen to) {
+            this.from = from;
+            this.widget = widget;
+            this.to = to;
+        }
+
+        public boolean isBack() {
+            return widget == null;
+        }
+    }
+
+    public static class Route {
+        public final boolean relaunch;  // Relaunch app before the edges
+        public final List<Edge> edges;
+        public final UiScreen target;
+
+        Route(boolean relaunch, List<Edge> edges, UiScreen target) {
+            this.relaunch = relaunch;
+            this.edges = edges;
+            this.target = target;
+        }
+
+        public int cost(int relaunchCost) {
+            return edges.size() + (relaunch ? relaunchCost : 0);
+        }
+    }
+
+    public static synchronized ScreenGraph getInstance() {
+        if (sInstance == null)
+            sInstance = new ScreenGraph();
+        return sInstance;
+    }
+
+    /**
+     * Record that clicking the widget of a screen took us to another screen
+     */
+    public synchronized void addEdge(UiScreen from, UiWidget widget, UiScreen to) {
+        if (from == null || widget == null || to == null || from == to)
+            return;
+        List<Edge> edges = mEdges.get(from);
+        if (edges == null) {
+            edges = new ArrayList<Edge>();
+            mEdges.put(from, edges);
+        }
+        for (Edge edge : edges) {
+            if (edge.widget == widget && edge.to == to)
+                return;
+        }
+        edges.add(new Edge(from, widget, to));
+        if (!from.childScreenList.contains(to))
+            from.childScreenList.add(to);
+    }
+
+    public synchronized List<Edge> getEdges(UiScreen from) {
+        List<Edge> edges = mEdges.get(from);
+        return (edges == null) ? Collections.<Edge>emptyList() : new ArrayList<Edge>(edges);
+    }
+
+    /**
+     * Shortest route to the nearest screen with unfinished widgets, or null if none is reachable.
+     * Screen exclude is never the target, e.g. the screen we are stuck in.
+     */
+    public synchronized Route findRouteToUnfinished(UiScreen current, UiScreen root, int relaunchCost, UiScreen exclude) {
+        Route stay = (current == null) ? null : search(current, false, exclude);
+        Route relaunch = (root == null) ? null : search(root, true, exclude);
+        if (stay == null)
+            return relaunch;
+        if (relaunch == null)
+            return stay;
+        return (relaunch.cost(relaunchCost) < stay.cost(relaunchCost)) ? relaunch : stay;
+    }
+
+    // Breadth first search from start, all edges cost the same
+    private Route search(UiScreen start, boolean relaunch, UiScreen exclude) {
+        Map<UiScreen, Edge> via = new HashMap<UiScreen, Edge>();
+        ArrayDeque<UiScreen> queue = new ArrayDeque<UiScreen>();
+        via.put(start, null);
+        queue.add(start);
+        while (!queue.isEmpty()) {
+            UiScreen screen = queue.poll();
+            if (!screen.isFinished() && screen != exclude)
+                return new Route(relaunch, path(via, screen), screen);
+
+            List<Edge> next = new ArrayList<Edge>();
+            List<Edge> edges = mEdges.get(screen);
+            if (edges != null)
+                next.addAll(edges);
+            if (screen.parentScreen != null)
+                next.add(new Edge(screen, null, screen.parentScreen));
+            for (Edge edge : next) {
+                if (!via.containsKey(edge.to)) {
+                    via.put(edge.to, edge);
+                    queue.add(edge.to);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<Edge> path(Map<UiScreen, Edge> via, UiScreen target) {
+        List<Edge> path = new ArrayList<Edge>();
+        Edge edge = via.get(target);
+        while (edge != null) {
+            path.add(edge);
+            edge = via.get(edge.from);
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    public synchronized void clear() {
+        mEdges.clear();
+    }
+}
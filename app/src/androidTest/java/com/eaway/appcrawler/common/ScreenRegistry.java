@@ -0,0 +1,119 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All screens scanned in the current run, shared by crawlers and UiScreen.
+ *
+ * Screens are indexed by the 64-bit Merkle hash of their layout (see UiNode), so a lookup does not
+ * depend on how many screens have been found. Signatures are still compared on a hash hit, two
+ * different screens with the same hash are kept side by side in the same bucket.
+ * When Config.sSimilarityThreshold is set, a screen without exact match falls back to the nearest
+ * scanned screen by SimHash distance.
+ */
+public class ScreenRegistry {
+    private static ScreenRegistry sInstance = null;
+
+    private final Map<Long, List<UiScreen>> mBuckets = new HashMap<Long, List<UiScreen>>();
+    private final List<UiScreen> mScreens = new ArrayList<UiScreen>(); // In scanned order
+    private final SimHash.Index<UiScreen> mSimilar = new SimHash.Index<UiScreen>();
+    private int mCollisions = 0;
+
+    public static synchronized ScreenRegistry getInstance() {
+        if (sInstance == null)
+            sInstance = new ScreenRegistry();
+        return sInstance;
+    }
+
+    /**
+     * 64-bit FNV-1a with a final avalanche, so similar signatures spread over the whole table
+     */
+    public static long hash(String signature) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < signature.length(); i++) {
+            h ^= signature.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /**
+     * Return the scanned screen equals to the given one, or null if it is new.
+     */
+    public UiScreen find(UiScreen screen) {
+        return find(screen.hash, screen.signature, screen.simhash, screen.pkg);
+    }
+
+    /**
+     * Same as find(UiScreen) but straight from a snapshot, without building the screen and its widgets.
+     */
+    public UiScreen find(UiSnapshot snapshot) {
+        return find(snapshot.getStructureHash(), snapshot.getSignature(), snapshot.getSimHash(), snapshot.getPackageName());
+    }
+
+    private synchronized UiScreen find(long hash, String signature, long simhash, String pkg) {
+        List<UiScreen> bucket = mBuckets.get(hash);
+        if (bucket != null) {
+            for (UiScreen candidate : bucket) {
+                if (candidate.signature.equals(signature))
+                    return candidate;
+            }
+        }
+        if (Config.sSimilarityThreshold > 0) {
+            int maxDistance = Math.min(Config.sSimilarityThreshold, SimHash.MAX_DISTANCE);
+            UiScreen similar = mSimilar.findNearest(simhash, maxDistance);
+            if (similar != null && similar.pkg.equalsIgnoreCase(pkg))
+                return similar;
+        }
+        return null;
+    }
+
+    public boolean contains(UiScreen screen) {
+        return find(screen) != null;
+    }
+
+    public synchronized void add(UiScreen screen) {
+        List<UiScreen> bucket = mBuckets.get(screen.hash);
+        if (bucket == null) {
+            bucket = new ArrayList<UiScreen>(1);
+            mBuckets.put(screen.hash, bucket);
+        } else {
+            for (UiScreen candidate : bucket) {
+                if (candidate.equals(screen))
+                    return;
+            }
+            mCollisions++;
+        }
+        bucket.add(screen);
+        mScreens.add(screen);
+        mSimilar.add(screen.simhash, screen);
+    }
+
+    public synchronized int size() {
+        return mScreens.size();
+    }
+
+    public synchronized List<UiScreen> getScreens() {
+        return Collections.unmodifiableList(new ArrayList<UiScreen>(mScreens));
+    }
+
+    public synchronized int getCollisions() {
+        return mCollisions;
+    }
+
+    public synchronized void clear() {
+        mBuckets.clear();
+        mScreens.clear();
+        mSimilar.clear();
+        mCollisions = 0;
+    }
+}
@@ -0,0 +1,95 @@
+package com.eaway.appcrawler.common;
+
+import android.graphics.Bitmap;
+
+import com.eaway.appcrawler.Config;
+
+/**
+ * Skip screenshots that look the same as one already taken.
+ *
+ * Only step screenshots of revisited screens (Config.sCaptureSteps) are checked, the screenshot of a
+ * new screen, of another package or of an ANR, crash or budget violation is always written.
+ *
+ * Each frame is reduced to a 64 bit dHash: scaled down to 9x8 gray pixels, one bit per pair of
+ * horizontal neighbours (left brighter than right). Frames within Config.sScreenshotDedupDistance
+ * bits of a written one are not written again, the log refers to the existing file instead.
+ * Hashes are kept in the same banded index as screen SimHashes, so a lookup stays cheap.
+ */
+public class ScreenshotDedup {
+    private static final int WIDTH = 9;
+    private static final int HEIGHT = 8;
+
+    private static ScreenshotDedup sInstance = null;
+
+    private final SimHash.Index<String> mIndex = new SimHash.Index<String>();
+    private int mChecked = 0;
+    private int mDuplicates = 0;
+
+    public static synchronized ScreenshotDedup getInstance() {
+        if (sInstance == null)
+            sInstance = new ScreenshotDedup();
+        return sInstance;
+    }
+
+    public static boolean isEnabled() {
+        return Config.sScreenshotDedupDistance >= 0;
+    }
+
+    public static long dHash(Bitmap bitmap) {
+        Bitmap small = Bitmap.createScaledBitmap(bitmap, WIDTH, HEIGHT, true);
+        int[] pixels = new int[WIDTH * HEIGHT];
+        small.getPixels(pixels, 0, WIDTH, 0, 0, WIDTH, HEIGHT);
+        if (small != bitmap)
+            small.recycle();
+
+        long hash = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH - 1; x++) {
+                hash <<= 1;
+                if (luminance(pixels[y * WIDTH + x]) > luminance(pixels[y * WIDTH + x + 1]))
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    // Rec. 601 luma, integer only
+    private static int luminance(int color) {
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        return (r * 299 + g * 587 + b * 114) / 1000;
+    }
+
+    /**
+     * Return the file name of a written frame that looks the same, or null if the frame is new
+     */
+    public synchronized String findDuplicate(long hash) {
+        mChecked++;
+        String existing = mIndex.findNearest(hash, Math.min(Config.sScreenshotDedupDistance, SimHash.MAX_DISTANCE));
+        if (existing != null)
+            mDuplicates++;
+        return existing;
+    }
+
+    public synchronized void add(long hash, String filename) {
+        mIndex.add(hash, filename);
+    }
+
+    public synchronized int getDuplicates() {
+        return mDuplicates;
+    }
+
+    /**
+     * Percent of checked frames that were not written
+     */
+    public synchronized float getDedupRatio() {
+        return (mChecked == 0) ? 0f : 100f * mDuplicates / mChecked;
+    }
+
+    public synchronized void clear() {
+        mIndex.clear();
+        mChecked = 0;
+        mDuplicates = 0;
+    }
+}
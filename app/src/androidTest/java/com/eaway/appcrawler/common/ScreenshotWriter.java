@@ -0,0 +1,250 @@
+package com.eaway.appcrawler.common;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import com.eaway.appcrawler.Config;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and write screenshots and hierarchy dumps in background.
+ *
+ * The crawl thread only grabs the bitmap and the hierarchy bytes, PNG encoding and file I/O are
+ * done by worker threads. The queue is bounded (Config.sScreenshotQueueSize), when it is full:
+ *      - Essential jobs (e.g. ANR, crash) block until there is room, they are never dropped.
+ *      - Other jobs wait at most Config.sScreenshotBlockTime, then they are dropped.
+ * flush() blocks until every queued job is written, call it before the result is collected.
+ */
+public class ScreenshotWriter {
+    private static final String TAG = Config.TAG;
+
+    private static ScreenshotWriter sInstance = null;
+
+    private final BlockingQueue<Job> mQueue;
+    private final Thread[] mWorkers;
+    private final Object mLock = new Object();
+    private int mPending = 0;   // Queued or being written
+
+    // Metrics
+    private int mQueued = 0;
+    private int mWritten = 0;
+    private int mDropped = 0;
+    private int mFailed = 0;
+    private int mMaxDepth = 0;
+    private long mBytes = 0;        // Bytes written
+    private long mTotalLatency = 0; // Millisecond from queued to written
+    private long mMaxLatency = 0;
+    private long mBlockTime = 0;    // Millisecond the crawl thread waited for room
+
+    private static class Job {
+        final Bitmap bitmap;
+        final byte[] hierarchy;
+        final File png;
+        final File xml;
+        final long time;
+
+        Job(Bitmap bitmap, byte[] hierarchy, File png, File xml) {
+            this.bitmap = bitmap;
+            this.hierarchy = hierarchy;
+            this.png = png;
+            this.xml = xml;
+            this.time = System.currentTimeMillis();
+        }
+    }
+
+    public static synchronized ScreenshotWriter getInstance() {
+        if (sInstance == null)
+            sInstance = new ScreenshotWriter(Config.sScreenshotQueueSize, Config.sScreenshotWorkers);
+        return sInstance;
+    }
+
+    private ScreenshotWriter(int queueSize, int workers) {
+        mQueue = new ArrayBlockingQueue<Job>(Math.max(1, queueSize));
+        mWorkers = new Thread[Math.max(1, workers)];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "ScreenshotWriter-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Queue a bitmap (may be null) and hierarchy dump (may be null) to be written.
+     * Return false if the job is dropped because the queue is full.
+     */
+    public boolean submit(Bitmap bitmap, byte[] hierarchy, File png, File xml, boolean essential) {
+        Job job = new Job(bitmap, hierarchy, png, xml);
+        synchronized (mLock) {
+            mPending++;
+        }
+        boolean queued;
+        long start = System.currentTimeMillis();
+        try {
+            if (essential) {
+                mQueue.put(job);
+                queued = true;
+            } else {
+                queued = mQueue.offer(job, Config.sScreenshotBlockTime, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            queued = false;
+        }
+        synchronized (mLock) {
+            mBlockTime += System.currentTimeMillis() - start;
+            if (queued) {
+                mQueued++;
+                mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+            } else {
+                mDropped++;
+                done();
+            }
+        }
+        if (!queued) {
+            Log.w(TAG, "Screenshot queue full, dropped " + png.getName());
+            if (bitmap != null)
+                bitmap.recycle();
+        }
+        return queued;
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean ok = write(job);
+            long latency = System.currentTimeMillis() - job.time;
+            long bytes = job.png.length() + (job.hierarchy == null ? 0 : job.hierarchy.length);
+            synchronized (mLock) {
+                mBytes += bytes;
+                if (ok)
+                    mWritten++;
+                else
+                    mFailed++;
+                mTotalLatency += latency;
+                mMaxLatency = Math.max(mMaxLatency, latency);
+                done();
+            }
+        }
+    }
+
+    // Call with mLock held
+    private void done() {
+        if (--mPending == 0)
+            mLock.notifyAll();
+    }
+
+    private static boolean write(Job job) {
+        boolean ok = true;
+        if (job.bitmap != null) {
+            ok = writePng(job.bitmap, job.png);
+            job.bitmap.recycle();
+        }
+        if (job.hierarchy != null)
+            ok &= writeBytes(job.hierarchy, job.xml);
+        return ok;
+    }
+
+    private static boolean writePng(Bitmap bitmap, File file) {
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            return bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to write " + file + ", " + e.getMessage());
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static boolean writeBytes(byte[] bytes, File file) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(bytes);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to write " + file + ", " + e.getMessage());
+            return false;
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void close(OutputStream out) {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            // Don't worry
+        }
+    }
+
+    /**
+     * Block until all queued screenshots are written, or timeout.
+     * Return true if nothing is pending.
+     */
+    public boolean flush(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mLock) {
+            while (mPending > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    return false;
+                try {
+                    mLock.wait(left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Average bytes of a written screenshot and its hierarchy dump
+     */
+    public long getAverageSize() {
+        synchronized (mLock) {
+            return (mWritten == 0) ? 0 : mBytes / mWritten;
+        }
+    }
+
+    public int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            int finished = mWritten + mFailed;
+            return "queued:" + mQueued +
+                    ", written:" + mWritten +
+                    ", bytes:" + mBytes +
+                    ", failed:" + mFailed +
+                    ", dropped:" + mDropped +
+                    ", max queue depth:" + mMaxDepth +
+                    ", average latency (ms):" + (finished == 0 ? 0 : mTotalLatency / finished) +
+                    ", max latency (ms):" + mMaxLatency +
+                    ", blocked (ms):" + mBlockTime;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.eaway.appcrawler.common;
+
+import android.app.UiAutomation;
+import android.view.accessibility.AccessibilityEvent;
+
+import java.util.List;
+
+/**
+ * Wait until the UI is settled, driven by accessibility events instead of fixed sleeps.
+ *
+ * UI is settled when no window-content-changed, window-state-changed or scroll event has arrived
+ * for a quiet period. Events are pushed by UiAutomation once attached; anything else, e.g. a fake
+ * event source in a test harness, can push them through onEvent().
+ *
+ * UiAutomation has only one event listener, the one installed by UiDevice is replaced once attached.
+ * That listener used to track the current activity name, so it is tracked here instead, see
+ * getCurrentActivityName().
+ *
+ * mark() starts a measurement, e.g. right before a click: the first and the last UI event after it
+ * tell how long the app took to respond and to settle.
+ */
+public class SettleDetector {
+    // Events from these packages never settle (e.g. clock on status bar), they are ignored
+    private static final String[] IGNORED_PACKAGES = {
+            "com.android.systemui"
+    };
+
+    private static SettleDetector sInstance = null;
+
+    private final Object mLock = new Object();
+    private boolean mAttached = false;
+    private long mLastEventTime = 0;
+    private long mEventCount = 0;
+    private volatile String mActivityName = null;
+    private boolean mTimeout = false;
+    private long mMarkTime = -1;
+    private long mFirstEventTime = -1;   // First UI event since mark()
+
+    public static synchronized SettleDetector getInstance() {
+        if (sInstance == null)
+            sInstance = new SettleDetector();
+        return sInstance;
+    }
+
+    public void attach(UiAutomation automation) {
+        automation.setOnAccessibilityEventListener(new UiAutomation.OnAccessibilityEventListener() {
+            @Override
+            public void onAccessibilityEvent(AccessibilityEvent event) {
+                CharSequence pkg = event.getPackageName();
+                List<CharSequence> text = event.getText();
+                CharSequence title = (text == null || text.isEmpty()) ? null : text.get(0);
+                onEvent(event.getEventType(),
+                        (pkg == null) ? null : pkg.toString(),
+                        (title == null) ? null : title.toString());
+            }
+        });
+        mAttached = true;
+    }
+
+    public boolean isAttached() {
+        return mAttached;
+    }
+
+    /**
+     * Feed one accessibility event, title is the first text of the event
+     */
+    public void onEvent(int type, String pkg, String title) {
+        if (type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED && title != null)
+            mActivityName = title;
+
+        if (type != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+                && type != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                && type != AccessibilityEvent.TYPE_WINDOWS_CHANGED
+                && type != AccessibilityEvent.TYPE_VIEW_SCROLLED)
+            return;
+        for (String ignore : IGNORED_PACKAGES) {
+            if (ignore.equals(pkg))
+                return;
+        }
+
+        synchronized (mLock) {
+            mLastEventTime = now();
+            mEventCount++;
+            if (mMarkTime >= 0 && mFirstEventTime < 0)
+                mFirstEventTime = mLastEventTime;
+        }
+    }
+
+    /**
+     * Window title of the last window-state-changed event, same as UiDevice.getCurrentActivityName()
+     */
+    public String getCurrentActivityName() {
+        return mActivityName;
+    }
+
+    public long getEventCount() {
+        synchronized (mLock) {
+            return mEventCount;
+        }
+    }
+
+    /**
+     * Start to measure the response to an action
+     */
+    public void mark() {
+        synchronized (mLock) {
+            mMarkTime = now();
+            mFirstEventTime = -1;
+        }
+    }
+
+    /**
+     * Millisecond from mark() to the first UI event, -1 if none yet
+     */
+    public long getFirstEventDelay() {
+        synchronized (mLock) {
+            return (mMarkTime < 0 || mFirstEventTime < 0) ? -1 : mFirstEventTime - mMarkTime;
+        }
+    }
+
+    /**
+     * Millisecond from mark() to the last UI event so far, -1 if none yet
+     */
+    public long getLastEventDelay() {
+        synchronized (mLock) {
+            return (mMarkTime < 0 || mFirstEventTime < 0) ? -1 : mLastEventTime - mMarkTime;
+        }
+    }
+
+    /**
+     * Block until no UI event for quietTime, but at least minTime and at most maxTime.
+     * Return the millisecond actually waited.
+     */
+    public long waitForSettle(long quietTime, long minTime, long maxTime) {
+        long start = now();
+        synchronized (mLock) {
+            while (true) {
+                long current = now();
+                long settled = Math.max(Math.max(mLastEventTime, start) + quietTime, start + minTime);
+                if (current >= settled) {
+                    mTimeout = false;
+                    return current - start;
+                }
+                if (current >= start + maxTime) {
+                    mTimeout = true;
+                    return current - start;
+                }
+                try {
+                    mLock.wait(Math.max(1, Math.min(settled, start + maxTime) - current));
+                } catch (InterruptedException e) {
+                    mTimeout = true;
+                    return now() - start;
+                }
+            }
+        }
+    }
+
+    /**
+     * True if the last waitForSettle() returned on maxTime
+     */
+    public boolean isTimeout() {
+        return mTimeout;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,220 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learn how long each screen and each transition takes to settle.
+ *
+ * Every wait is keyed by a screen (e.g. waiting before a click) or by a transition (screen, widget).
+ * After a few samples the key waits at most p95 of what has been seen plus a margin, unknown keys
+ * still wait up to the global ceiling Config.sWaitIdleTimeout. A wait that runs into the learned
+ * bound is recorded as is, so the bound grows back when a screen gets slower.
+ *
+ * The detector returns as soon as the UI is quiet, so a learned bound only saves time when a wait is
+ * cut at it. Those cut-offs are counted; how long the UI would have kept changing is not known.
+ */
+public class SettleModel {
+    private static final int MIN_SAMPLES = 5;
+    private static final double QUANTILE = 0.95;
+    private static final double MARGIN_RATIO = 1.25;
+    private static final long MARGIN = 50;
+
+    private static SettleModel sInstance = null;
+
+    private final Map<Long, P2Quantile> mModels = new HashMap<Long, P2Quantile>();
+    private long mWaitTime = 0;
+    private int mCutOffs = 0;       // Learned waits stopped at the bound before the UI was quiet
+    private int mLearnedWaits = 0;
+    private int mUnknownWaits = 0;
+
+    public static synchronized SettleModel getInstance() {
+        if (sInstance == null)
+            sInstance = new SettleModel();
+        return sInstance;
+    }
+
+    public static long key(UiScreen screen) {
+        return (screen == null) ? 0 : screen.hash;
+    }
+
+    public static long key(UiScreen screen, String action) {
+        return ScreenRegistry.hash(key(screen) + "|" + action);
+    }
+
+    /**
+     * Longest wait for the key, the global ceiling if not learned yet
+     */
+    public synchronized long getMaxWait(long key) {
+        long ceiling = Config.sWaitIdleTimeout;
+        P2Quantile model = mModels.get(key);
+        if (model == null || model.count() < MIN_SAMPLES)
+            return ceiling;
+        long bound = (long) (model.quantile() * MARGIN_RATIO) + MARGIN;
+        return Math.max(Config.sSettleMinTime + Config.sSettleQuietTime, Math.min(bound, ceiling));
+    }
+
+    /**
+     * Wait for UI settled with the learned bound of the key, then learn from the result.
+     * Return the millisecond waited.
+     */
+    public long waitForSettle(long key) {
+        return waitForSettle(key, getMaxWait(key));
+    }
+
+    private long waitForSettle(long key, long maxWait) {
+        long time = SettleDetector.getInstance().waitForSettle(Config.sSettleQuietTime, Config.sSettleMinTime, maxWait);
+        synchronized (this) {
+            P2Quantile model = mModels.get(key);
+            if (model == null) {
+                model = new P2Quantile(QUANTILE);
+                mModels.put(key, model);
+            }
+            model.add(time);
+            if (maxWait < Config.sWaitIdleTimeout) {
+                mLearnedWaits++;
+                if (SettleDetector.getInstance().isTimeout())
+                    mCutOffs++;
+            } else {
+                mUnknownWaits++;
+            }
+            mWaitTime += time;
+        }
+        return time;
+    }
+
+    public synchronized long getWaitTime() {
+        return mWaitTime;
+    }
+
+    /**
+     * Learned waits cut at their bound, each one would have gone on up to the ceiling without the model
+     */
+    public synchronized int getCutOffs() {
+        return mCutOffs;
+    }
+
+    public synchronized int getLearnedWaits() {
+        return mLearnedWaits;
+    }
+
+    public synchronized int getUnknownWaits() {
+        return mUnknownWaits;
+    }
+
+    public synchronized void reset() {
+        mModels.clear();
+        mWaitTime = 0;
+        mCutOffs = 0;
+        mLearnedWaits = 0;
+        mUnknownWaits = 0;
+    }
+
+    /**
+     * P-square streaming quantile estimator (Jain & Chlamtac), five markers and no sample kept.
+     */
+    static class P2Quantile {
+        private final double mP;
+        private final double[] mHeights = new double[5];
+        private final double[] mPositions = new double[5];
+        private final double[] mDesired = new double[5];
+        private final double[] mIncrements = new double[5];
+        private int mCount = 0;
+
+        P2Quantile(double p) {
+            mP = p;
+            mIncrements[0] = 0;
+            mIncrements[1] = p / 2;
+            mIncrements[2] = p;
+            mIncrements[3] = (1 + p) / 2;
+            mIncrements[4] = 1;
+        }
+
+        int count() {
+            return mCount;
+        }
+
+        void add(double x) {
+            if (mCount < 5) {
+                // Keep the first five samples sorted
+                int i = mCount++;
+                while (i > 0 && mHeights[i - 1] > x) {
+                    mHeights[i] = mHeights[i - 1];
+                    i--;
+                }
+                mHeights[i] = x;
+                if (mCount == 5) {
+                    for (int j = 0; j < 5; j++) {
+                        mPositions[j] = j + 1;
+                    }
+                    mDesired[0] = 1;
+                    mDesired[1] = 1 + 2 * mP;
+                    mDesired[2] = 1 + 4 * mP;
+                    mDesired[3] = 3 + 2 * mP;
+                    mDesired[4] = 5;
+                }
+                return;
+            }
+            mCount++;
+
+            int k;
+            if (x < mHeights[0]) {
+                mHeights[0] = x;
+                k = 0;
+            } else if (x >= mHeights[4]) {
+                mHeights[4] = x;
+                k = 3;
+            } else {
+                k = 0;
+                while (k < 3 && x >= mHeights[k + 1])
+                    k++;
+            }
+            for (int i = k + 1; i < 5; i++) {
+                mPositions[i]++;
+            }
+            for (int i = 0; i < 5; i++) {
+                mDesired[i] += mIncrements[i];
+            }
+
+            // Adjust middle markers
+            for (int i = 1; i <= 3; i++) {
+                double d = mDesired[i] - mPositions[i];
+                if ((d >= 1 && mPositions[i + 1] - mPositions[i] > 1)
+                        || (d <= -1 && mPositions[i - 1] - mPositions[i] < -1)) {
+                    int sign = (d >= 0) ? 1 : -1;
+                    double h = parabolic(i, sign);
+                    if (mHeights[i - 1] < h && h < mHeights[i + 1])
+                        mHeights[i] = h;
+                    else
+                        mHeights[i] = linear(i, sign);
+                    mPositions[i] += sign;
+                }
+            }
+        }
+
+        double quantile() {
+            if (mCount == 0)
+                return 0;
+            if (mCount < 5) {
+                int i = (int) Math.min(mCount - 1, Math.round(mP * (mCount - 1)));
+                return mHeights[i];
+            }
+            return mHeights[2];
+        }
+
+        private double parabolic(int i, int d) {
+            double n = mPositions[i];
+            double np = mPositions[i + 1];
+            double nm = mPositions[i - 1];
+            return mHeights[i] + d / (np - nm) * (
+                    (n - nm + d) * (mHeights[i + 1] - mHeights[i]) / (np - n)
+                            + (np - n - d) * (mHeights[i] - mHeights[i - 1]) / (n - nm));
+        }
+
+        private double linear(int i, int d) {
+            return mHeights[i] + d * (mHeights[i + d] - mHeights[i]) / (mPositions[i + d] - mPositions[i]);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.eaway.appcrawler.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 64-bit SimHash fingerprint and a locality-sensitive index over it.
+ *
+ * Similar feature sets give fingerprints with a small Hamming distance, so a screen with one more
+ * list row or a changed banner can still be matched to a scanned screen.
+ * The index splits a fingerprint into 8 bands of 8 bits. Two fingerprints within a distance of 7
+ * share at least one identical band, so only screens in the same band buckets are compared.
+ */
+public class SimHash {
+    public static final int MAX_DISTANCE = 7; // Largest distance the index can always find
+    private static final int BANDS = MAX_DISTANCE + 1;
+    private static final int BAND_BITS = 64 / BANDS;
+
+    public static long compute(Set<String> features) {
+        int[] weights = new int[64];
+        for (String feature : features) {
+            long h = ScreenRegistry.hash(feature);
+            for (int i = 0; i < 64; i++) {
+                weights[i] += ((h >>> i) & 1L) != 0 ? 1 : -1;
+            }
+        }
+        long fingerprint = 0;
+        for (int i = 0; i < 64; i++) {
+            if (weights[i] > 0)
+                fingerprint |= (1L << i);
+        }
+        return fingerprint;
+    }
+
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+
+    /**
+     * LSH index from fingerprint to items
+     */
+    public static class Index<T> {
+        private final List<Map<Integer, List<Entry<T>>>> mBands = new ArrayList<Map<Integer, List<Entry<T>>>>();
+
+        public Index() {
+            for (int i = 0; i < BANDS; i++) {
+                mBands.add(new HashMap<Integer, List<Entry<T>>>());
+            }
+        }
+
+        public void add(long fingerprint, T item) {
+            Entry<T> entry = new Entry<T>(fingerprint, item);
+            for (int i = 0; i < BANDS; i++) {
+                int band = band(fingerprint, i);
+                List<Entry<T>> bucket = mBands.get(i).get(band);
+                if (bucket == null) {
+                    bucket = new ArrayList<Entry<T>>(1);
+                    mBands.get(i).put(band, bucket);
+                }
+                bucket.add(entry);
+            }
+        }
+
+        /**
+         * Return the nearest item within maxDistance, or null if there is none.
+         */
+        public T findNearest(long fingerprint, int maxDistance) {
+            T nearest = null;
+            int nearestDistance = maxDistance + 1;
+            for (int i = 0; i < BANDS; i++) {
+                List<Entry<T>> bucket = mBands.get(i).get(band(fingerprint, i));
+                if (bucket == null)
+                    continue;
+                for (Entry<T> entry : bucket) {
+                    int d = distance(entry.fingerprint, fingerprint);
+                    if (d < nearestDistance) {
+                        nearest = entry.item;
+                        nearestDistance = d;
+                    }
+                }
+            }
+            return nearest;
+        }
+
+        public void clear() {
+            for (Map<Integer, List<Entry<T>>> band : mBands) {
+                band.clear();
+            }
+        }
+
+        private static int band(long fingerprint, int i) {
+            return (int) ((fingerprint >>> (i * BAND_BITS)) & ((1L << BAND_BITS) - 1));
+        }
+    }
+
+    private static class Entry<T> {
+        final long fingerprint;
+        final T item;
+
+        Entry(long fingerprint, T item) {
+            this.fingerprint = fingerprint;
+            this.item = item;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.eaway.appcrawler.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Known transitions: clicking a widget of a screen has taken us to which screen.
+ *
+ * When the same click is done again, the destination only needs a root hash probe of the
+ * captured hierarchy, instead of building a whole new UiScreen (fling, signature, widget list).
+ * A transition is trusted again only as long as its destination keeps matching: once it has led to
+ * another screen than last time, it is not probed until it leads to the same screen twice in a row.
+ */
+public class TransitionCache {
+    private static TransitionCache sInstance = null;
+
+    private final Map<Long, Transition> mTransitions = new HashMap<Long, Transition>();
+    private int mHits = 0;
+    private int mMisses = 0;
+    private long mBuildTime = 0;    // Millisecond spent to build UiScreen
+    private int mBuilds = 0;
+    private long mProbeTime = 0;    // Microsecond spent to probe on hit
+
+    public static class Transition {
+        public final UiScreen source;
+        public final String widget;
+        public UiScreen destination;
+        public int visits = 0;
+        public int stable = 0;  // Times in a row the destination was the same as last time
+
+        /**
+         * Led to another screen than the time before, e.g. depends on state not in the layout
+         */
+        public boolean isUnstable() {
+            return visits > 1 && stable == 0;
+        }
+
+        Transition(UiScreen source, String widget) {
+            this.source = source;
+            this.widget = widget;
+        }
+    }
+
+    public static synchronized TransitionCache getInstance() {
+        if (sInstance == null)
+            sInstance = new TransitionCache();
+        return sInstance;
+    }
+
+    private static long key(UiScreen source, String widget) {
+        return ScreenRegistry.hash(source.hash + "|" + widget);
+    }
+
+    public synchronized Transition get(UiScreen source, UiWidget widget) {
+        if (source == null || widget == null)
+            return null;
+        String descriptor = widget.getDescriptor();
+        Transition transition = mTransitions.get(key(source, descriptor));
+        if (transition == null || transition.source != source || !transition.widget.equals(descriptor))
+            return null;
+        return transition;
+    }
+
+    /**
+     * Return the known destination if the snapshot is still it, or null to build the screen as usual.
+     */
+    public synchronized UiScreen probe(UiScreen source, UiWidget widget, UiSnapshot snapshot) {
+        long start = System.nanoTime();
+        Transition transition = get(source, widget);
+        if (transition == null || transition.destination == null || transition.isUnstable()) {
+            mMisses++;
+            return null;
+        }
+        UiScreen destination = transition.destination;
+        if (snapshot.getStructureHash() != destination.hash
+                || !snapshot.getPackageName().equalsIgnoreCase(destination.pkg)) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        mProbeTime += (System.nanoTime() - start) / 1000;
+        return destination;
+    }
+
+    /**
+     * Record where a click has taken us
+     */
+    public synchronized void put(UiScreen source, UiWidget widget, UiScreen destination) {
+        if (source == null || widget == null || destination == null)
+            return;
+        String descriptor = widget.getDescriptor();
+        long key = key(source, descriptor);
+        Transition transition = mTransitions.get(key);
+        if (transition == null || transition.source != source || !transition.widget.equals(descriptor)) {
+            transition = new Transition(source, descriptor);
+            mTransitions.put(key, transition);
+        }
+        if (transition.destination == destination)
+            transition.stable++;
+        else
+            transition.stable = 0;
+        transition.destination = destination;
+        transition.visits++;
+    }
+
+    /**
+     * Time of building a UiScreen on miss, to estimate the time saved by hits
+     */
+    public synchronized void recordBuildTime(long time) {
+        mBuildTime += time;
+        mBuilds++;
+    }
+
+    public synchronized int getHits() {
+        return mHits;
+    }
+
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    public synchronized float getHitRate() {
+        int total = mHits + mMisses;
+        return (total == 0) ? 0f : 100f * mHits / total;
+    }
+
+    /**
+     * Estimated capture time avoided: average build time of every hit minus time spent to probe
+     */
+    public synchronized long getSavedTime() {
+        if (mBuilds == 0)
+            return 0;
+        return Math.max(0, mHits * (mBuildTime / mBuilds) - mProbeTime / 1000);
+    }
+
+    public synchronized void clear() {
+        mTransitions.clear();
+        mHits = 0;
+        mMisses = 0;
+        mBuildTime = 0;
+        mBuilds = 0;
+        mProbeTime = 0;
+    }
+}
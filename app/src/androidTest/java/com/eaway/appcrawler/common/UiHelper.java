@@ -2,6 +2,7 @@ package com.eaway.appcrawler.common;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.uiautomator.By;
@@ -14,7 +15,9 @@ import android.util.Log;
 
 import com.eaway.appcrawler.Config;
 import com.eaway.appcrawler.FileLog;
+import com.eaway.appcrawler.performance.TraceWriter;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
@@ -123,16 +126,32 @@ public class UiHelper {
         return false;
     }
 
+    /**
+     * Wait until no UI event for Config.sSettleQuietTime, as long as the key has been learned to need.
+     * Return the millisecond waited.
+     */
+    public static long waitForSettle(long key) {
+        return SettleModel.getInstance().waitForSettle(key);
+    }
+
+    public static String getCurrentActivityName() {
+        SettleDetector detector = SettleDetector.getInstance();
+        if (detector.isAttached())
+            return detector.getCurrentActivityName();
+        UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        return device.getCurrentActivityName(); // FIXME: deprecated
+    }
+
     public static boolean isInTheSameScreen(UiScreen target) {
         UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
-        UiObject root = device.findObject(new UiSelector().packageName(Config.sTargetPackage));
-        if (root == null || !root.exists()) {
+        UiSnapshot snapshot = UiSnapshot.capture(device);
+        if (0 != snapshot.getPackageName().compareToIgnoreCase(Config.sTargetPackage)) {
             Log.e(TAG, "Fail to get screen root object");
             return false;
         }
-        UiScreen current = new UiScreen(null, null, root);
-        boolean result = current.equals(target);
-        return result;
+        // Same lookup as the crawler, so a scrolled list or a near-duplicate layout is still the target screen,
+        // no need to build a UiScreen and collect widgets
+        return ScreenRegistry.getInstance().find(snapshot) == target;
     }
 
     public static boolean launchTargetApp() {
@@ -211,20 +230,46 @@ public class UiHelper {
     // Take screenshots in Landscape and Portrait
     // TODO: Take screenshot for both portrait and landscape
     public static void takeScreenshots(String message) {
+        takeScreenshots(message, null, false);
+    }
+
+    /**
+     * Save the hierarchy of the snapshot captured in this step along, instead of dumping it again
+     */
+    public static void takeScreenshots(String message, UiSnapshot snapshot) {
+        takeScreenshots(message, snapshot, false);
+    }
+
+    /**
+     * With dedup, the screenshot is skipped if it looks the same as one already taken, for step screenshots
+     * of revisited screens only. New screens, other packages, ANR, crash and budget screenshots are always kept.
+     */
+    public static void takeScreenshots(String message, UiSnapshot snapshot, boolean dedup) {
+        long phase = TraceWriter.now();
+        takeScreenshot(message, snapshot, dedup);
+        TraceWriter.slice("screenshot", phase);
+    }
+
+    private static void takeScreenshot(String message, UiSnapshot snapshot, boolean dedup) {
         //Log.v(TAG, new Exception().getStackTrace()[0].getMethodName() + "()");
 
         UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
-        device.waitForIdle(Config.sWaitIdleTimeout);
+        SettleDetector detector = SettleDetector.getInstance();
+        if (detector.isAttached())
+            detector.waitForSettle(Config.sSettleQuietTime, 0, Config.sWaitIdleTimeout);
+        else
+            device.waitForIdle(Config.sWaitIdleTimeout);
 
-        String activity = device.getCurrentActivityName(); // FIXME: deprecated
+        String activity = getCurrentActivityName();
         if (activity == null)
                 activity = "No Activity name";
             if (activity.length() > 30) {
                 activity = activity.substring(0, 29);
         }
 
-        // Dump window hierarchy for debug, remove it for better performance
-        //device.dumpWindowHierarchy(new File(String.format("%s/%d - %s.xml", sOutputDir, sScreenshotIndex, activity)));
+        // ANR, crash and budget violation screenshots are never dropped
+        boolean essential = message.startsWith("[ANR]") || message.startsWith("[CRASH]") ||
+                message.startsWith("[BUDGET]");
 
         if (message.length() > 50) {
             message = message.substring(0, 49);
@@ -238,12 +283,40 @@ public class UiHelper {
             sLastFilename = String.format("(%d) %s",
                     sScreenshotIndex, toValidFileName(activity));
         }
-        device.takeScreenshot(new File(Config.sOutputDir + "/" + sLastFilename+".png"));
-        try {
-            device.dumpWindowHierarchy(new File(Config.sOutputDir + "/" + sLastFilename+".xml"));
-        } catch (IOException e) {
-            e.printStackTrace();
+        File png = new File(Config.sOutputDir + "/" + sLastFilename + ".png");
+        File xml = new File(Config.sOutputDir + "/" + sLastFilename + ".xml");
+
+        // Only grab here, PNG encoding and file writing are done by ScreenshotWriter
+        Bitmap bitmap = InstrumentationRegistry.getInstrumentation().getUiAutomation().takeScreenshot();
+        // Hash every kept frame, so a revisit is also compared with the screenshot of the new screen
+        long hash = 0;
+        boolean hashed = bitmap != null && ScreenshotDedup.isEnabled();
+        if (hashed)
+            hash = ScreenshotDedup.dHash(bitmap);
+        if (hashed && dedup && !essential) {
+            String existing = ScreenshotDedup.getInstance().findDuplicate(hash);
+            if (existing != null) {
+                bitmap.recycle();
+                FileLog.i(TAG_MAIN, "{Screenshot} " + sLastFilename + " same as " + existing);
+                sLastFilename = existing;
+                return;
+            }
+        }
+        if (bitmap == null)
+            device.takeScreenshot(png);
+        byte[] hierarchy = (snapshot == null) ? null : snapshot.getXml();
+        if (hierarchy == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            try {
+                device.dumpWindowHierarchy(out);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            hierarchy = out.toByteArray();
         }
+        if (ScreenshotWriter.getInstance().submit(bitmap, hierarchy, png, xml, essential) && hashed)
+            ScreenshotDedup.getInstance().add(hash, sLastFilename);
+
         sScreenshotIndex++;
         FileLog.i(TAG_MAIN, "{Screenshot} " + sLastFilename);
     }
@@ -0,0 +1,148 @@
+package com.eaway.appcrawler.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * UiNode is one view of a captured window hierarchy (see UiSnapshot).
+ *
+ * Nodes are read-only once the snapshot is built, so a whole screen can be inspected
+ * without going back to the accessibility service for every attribute.
+ * No Android types are used here, the same tree can be built offline from a dump file.
+ *
+ * Every node has two Merkle hashes of its sub tree, computed once on first use:
+ *      - Structure: class names and tree shape, the identity of a screen.
+ *      - Content: also text, state and bounds, to tell if anything has changed at all.
+ * Equal hashes mean equal sub trees, so two trees are compared from the root and only
+ * the children with different hashes need to be visited.
+ */
+public class UiNode {
+    public final int index;
+    public final String className;
+    public final String text;
+    public final String resourceId;
+    public final String packageName;
+    public final String contentDesc;
+    public final boolean checkable;
+    public final boolean checked;
+    public final boolean clickable;
+    public final boolean enabled;
+    public final boolean focusable;
+    public final boolean focused;
+    public final boolean scrollable;
+    public final boolean longClickable;
+    public final boolean password;
+    public final boolean selected;
+    public final int left;
+    public final int top;
+    public final int right;
+    public final int bottom;
+    public final List<UiNode> children;
+
+    private final List<UiNode> mChildren;
+    private long mStructureHash = 0;
+    private long mContentHash = 0;
+    private long mOwnHash = 0; // Content of this node only
+    private boolean mHashed = false;
+
+    UiNode(int index, String className, String text, String resourceId, String packageName,
+           String contentDesc, boolean checkable, boolean checked, boolean clickable, boolean enabled,
+           boolean focusable, boolean focused, boolean scrollable, boolean longClickable,
+           boolean password, boolean selected, int left, int top, int right, int bottom) {
+        this.index = index;
+        this.className = nonNull(className);
+        this.text = nonNull(text);
+        this.resourceId = nonNull(resourceId);
+        this.packageName = nonNull(packageName);
+        this.contentDesc = nonNull(contentDesc);
+        this.checkable = checkable;
+        this.checked = checked;
+        this.clickable = clickable;
+        this.enabled = enabled;
+        this.focusable = focusable;
+        this.focused = focused;
+        this.scrollable = scrollable;
+        this.longClickable = longClickable;
+        this.password = password;
+        this.selected = selected;
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+        mChildren = new ArrayList<UiNode>();
+        children = Collections.unmodifiableList(mChildren);
+    }
+
+    // Only used while the snapshot is being built
+    void addChild(UiNode child) {
+        mChildren.add(child);
+    }
+
+    public long getStructureHash() {
+        hashSubtree();
+        return mStructureHash;
+    }
+
+    public long getContentHash() {
+        hashSubtree();
+        return mContentHash;
+    }
+
+    // Content hash of this node without children
+    long getOwnHash() {
+        hashSubtree();
+        return mOwnHash;
+    }
+
+    private void hashSubtree() {
+        if (mHashed)
+            return;
+        long structure = hash(getSimpleClassName());
+        long content = hash(className + "|" + text + "|" + resourceId + "|" + contentDesc + "|" + getBoundsString());
+        content = content * 31 + ((checked ? 1 : 0) | (selected ? 2 : 0) | (enabled ? 4 : 0) | (focused ? 8 : 0));
+        mOwnHash = content;
+        for (UiNode child : mChildren) {
+            structure = structure * 31 + child.getStructureHash();
+            content = content * 31 + child.getContentHash();
+        }
+        mStructureHash = mix(structure + mChildren.size());
+        mContentHash = mix(content + mChildren.size());
+        mHashed = true;
+    }
+
+    private static long hash(String str) {
+        return ScreenRegistry.hash(str);
+    }
+
+    private static long mix(long h) {
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return h;
+    }
+
+    /**
+     * Class name without package, e.g. "TextView" for "android.widget.TextView"
+     */
+    public String getSimpleClassName() {
+        int dot = className.lastIndexOf('.');
+        return (dot < 0) ? className : className.substring(dot + 1);
+    }
+
+    /**
+     * Same format as Rect.toShortString(), e.g. "[0,63][1080,210]"
+     */
+    public String getBoundsString() {
+        return "[" + left + "," + top + "][" + right + "," + bottom + "]";
+    }
+
+    @Override
+    public String toString() {
+        return className + " " + text + " " + getBoundsString();
+    }
+
+    private static String nonNull(String str) {
+        return (str == null) ? "" : str;
+    }
+}
@@ -14,7 +14,9 @@ import com.eaway.appcrawler.Config;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.junit.Assert.assertThat;
@@ -36,44 +38,48 @@ public class UiScreen {
     public UiObject rootObject; // First UiObject in the screen
     public String pkg;  // Packages
     public String signature;    // Use to identify itself between other screens
+    public long hash;   // Merkle hash of the layout, key in ScreenRegistry
+    public long simhash;    // Layout fingerprint, to match near-duplicate screens
     public String name; // Activity name
     public int depth = -1; // Depth in the UiTree
     public int id = -1;
     public int loop = 0; // Avoid infinite loop
-    private static List<UiScreen> sScannedScreenList = new ArrayList<UiScreen>();
+    public String screenshot = null;    // File name (no extension) of the screenshot taken when first seen
     private boolean mFinished = false;    // True if all the child widgets have been tested
-    ArrayList<String> txt = new ArrayList<>();
+    private UiSnapshot mSnapshot = null;    // Hierarchy init ended on, until taken by takeSnapshot()
     public UiScreen(UiScreen parent, UiWidget widget) {
         device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
-        UiObject root = device.findObject(new UiSelector().index(0));
-        init(parent, widget, root);
+        init(parent, widget, UiSnapshot.capture(device));
     }
 
-    public UiScreen(UiScreen parent, UiWidget widget, UiObject root) {
-        init(parent, widget, root);
+    public UiScreen(UiScreen parent, UiWidget widget, UiSnapshot snapshot) {
+        init(parent, widget, snapshot);
     }
 
-    public void init(UiScreen parent, UiWidget widget, UiObject root) {
-        assertThat(root, notNullValue());
+    /**
+     * Screen of a known layout without device, for tests
+     */
+    UiScreen(String pkg, String signature, long hash, long simhash) {
+        this.pkg = pkg;
+        this.signature = signature;
+        this.hash = hash;
+        this.simhash = simhash;
+        childScreenList = new ArrayList<UiScreen>();
+        widgetList = new ArrayList<UiWidget>();
+        depth = 0;
+    }
+
+    public void init(UiScreen parent, UiWidget widget, UiSnapshot snapshot) {
+        assertThat(snapshot, notNullValue());
 
         device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
         parentScreen = parent;
         parentWidget = widget;
-        rootObject = root;
-//        rootObject = device.findObject(new UiSelector().resourceId("com.android.settings:id/list"));
-//        if(!rootObject.exists()){
-//            rootObject = root;
-//        }
+        rootObject = device.findObject(new UiSelector().index(0));
         childScreenList = new ArrayList<UiScreen>();
         widgetList = new ArrayList<UiWidget>();
-        try {
-            pkg = root.getPackageName();
-        } catch (UiObjectNotFoundException e) {
-            e.printStackTrace();
-        }
 
-        signature = "";
-        name = device.getCurrentActivityName(); // FIXME: deprecated
+        name = UiHelper.getCurrentActivityName();
 
         depth = (parentScreen == null) ? 0 : parentScreen.depth + 1;
         id = -1;
@@ -90,72 +96,58 @@ public class UiScreen {
         conf.setActionAcknowledgmentTimeout(0L);
         conf.setScrollAcknowledgmentTimeout(0L);
 
+        // Always build signature from the beginning of the list
+        if (snapshot.hasScrollable()) {
+            try {
+                UiNode scrollable = findScrollable(snapshot);
+                if (new UiScrollable(new UiSelector().className(scrollable.className)).flingToBeginning(2))
+                    snapshot = UiSnapshot.capture(device);
+            } catch (UiObjectNotFoundException e) {
+                Log.e(TAG, "Scrollable does not exists during parsing");
+            }
+        }
+
+        mSnapshot = snapshot;
 
         // Build screen signature
-//        parseSignature(rootObject);
-        signature = drawSignature(rootObject);
+        pkg = snapshot.getPackageName();
+        signature = snapshot.getSignature();
+        hash = snapshot.getStructureHash();
+        simhash = snapshot.getSimHash();
 //        signature:FrameLayout;LinearLayout;FrameLayout;LinearLayout;ViewGroup;ImageButton;TextView;LinearLayout;TextView;TextView;LinearLayout;TextView;TextView;LinearLayout;TextView
-        // Rollback timeout configurations
-        conf.setWaitForIdleTimeout(WaitForIdleTimeout);
-        conf.setWaitForSelectorTimeout(WaitForSelectorTimeout);
-        conf.setActionAcknowledgmentTimeout(ActionAcknowledgmentTimeout);
-        conf.setScrollAcknowledgmentTimeout(ScrollAcknowledgmentTimeout);
-
-
-//        if (0 != pkg.compareToIgnoreCase(Config.sTargetPackage)) {
-//            return;
-//        }
 
         //20200224isNewScreen(this)&&
         if (pkg.compareToIgnoreCase(Config.sTargetPackage) == 0&&!UiHelper.isInIgnoredActivity(name)) {
             if (isNewScreen(this)) {
-                UiObject objS;
-                objS = device.findObject(new UiSelector().scrollable(true));
-                if (objS.exists()) {
-                    getDraw(rootObject);
-                    Log.d("zxx", txt.toString());
-                    for (String ts : txt) {
-                        UiObject clickable = device.findObject(new UiSelector().text(ts));
-                        widgetList.add(new UiWidget(clickable));
+                if (snapshot.hasScrollable()) {
+                    for (UiNode node : collectTextNodes(snapshot)) {
+                        UiObject clickable = device.findObject(new UiSelector().text(node.text));
+                        widgetList.add(new UiWidget(clickable, node));
                     }
                 } else {
-                    // Clickable
-                    int i = 0;
-                    UiObject clickable = null;
-                    String desc = "";
-                    String rect = "";
-
+                    // Clickable, the n-th clickable node is the n-th clickable instance on device
                     List blacklist = Arrays.asList(Config.BLACKLIST_BUTTONS);
                     List blacklistrect = Arrays.asList(Config.BLACKLIST_RECT);
-                    do {
-                        clickable = null;
-                        clickable = device.findObject(new UiSelector().clickable(true).instance(i++));
-                        try {
-                            desc = clickable.getContentDescription();
-                            rect = clickable.getBounds().toShortString();
-
-                        } catch (UiObjectNotFoundException e) {
-                            e.printStackTrace();
-                        }
-
-                        if (blacklist.contains(desc))
+                    List<UiNode> clickables = snapshot.getClickables();
+                    for (int i = 0; i < clickables.size(); i++) {
+                        UiNode node = clickables.get(i);
+                        if (blacklist.contains(node.contentDesc))
                             continue;
-                        if (blacklistrect.contains(rect))
+                        if (blacklistrect.contains(node.getBoundsString()))
                             continue;
-                        if (clickable != null && clickable.exists())
-                            widgetList.add(new UiWidget(clickable));
-                    } while (clickable != null && clickable.exists());
-
-
+                        UiObject clickable = device.findObject(new UiSelector().clickable(true).instance(i));
+                        widgetList.add(new UiWidget(clickable, node));
+                    }
                 }
-                sScannedScreenList.add(this);
             }
         }
 
+        // Rollback timeout configurations
+        conf.setWaitForIdleTimeout(WaitForIdleTimeout);
+        conf.setWaitForSelectorTimeout(WaitForSelectorTimeout);
+        conf.setActionAcknowledgmentTimeout(ActionAcknowledgmentTimeout);
+        conf.setScrollAcknowledgmentTimeout(ScrollAcknowledgmentTimeout);
 
-
-
-//
         // Nothing testable
         if (widgetList.size() == 0)
             mFinished = true;
@@ -164,78 +156,65 @@ public class UiScreen {
         if (Config.sDebug) {
             Log.d(TAG_DEBUG, signature);
             for (UiWidget tmp : widgetList) {
-                try {
-                    Log.d(TAG_DEBUG, tmp.uiObject.getClassName());
-                } catch (UiObjectNotFoundException e) {
-                    e.printStackTrace();
-                }
+                Log.d(TAG_DEBUG, tmp.node.className);
             }
         }
     }
+
+    /**
+     * Hierarchy the device showed when init finished, after flinging to the beginning or scrolling
+     * for text nodes. Handed over once, screens do not keep their XML.
+     */
+    public UiSnapshot takeSnapshot() {
+        UiSnapshot snapshot = mSnapshot;
+        mSnapshot = null;
+        return snapshot;
+    }
+
     public boolean isNewScreen(UiScreen currentScreen) {
-        for (UiScreen screen : sScannedScreenList) {
-            if (screen.equals(currentScreen)) {
-                return false;
-            }
-        }
-        return true;
+        return !ScreenRegistry.getInstance().contains(currentScreen);
     }
-    private String drawClass(UiObject obj) throws UiObjectNotFoundException {
-        StringBuilder UiObj = new StringBuilder();
-        for(int i = 0 ;i<1000;i++) {
-            UiObject objC = obj.getChild(new UiSelector().instance(i));
-            if (objC.exists()) {
-                UiObj.append(objC.getClassName()).append(" ").append(objC.getText()).append("\n");
-            }else {
+    /**
+     * Text nodes of the whole list, scroll forward until nothing changes
+     */
+    private List<UiNode> collectTextNodes(UiSnapshot snapshot) {
+        Map<String, UiNode> nodes = new LinkedHashMap<String, UiNode>();
+        for (UiNode node : snapshot.getTextNodes())
+            nodes.put(node.text, node);
+        String content = snapshot.getContent();
+        for (int m = 0; m < 10; m++) {
+            UiNode scrollable = findScrollable(snapshot);
+            if (scrollable == null)
                 break;
-            }
-        }
-        return UiObj.toString();
-    }
-    private void getDraw(UiObject obj) {
-        String s = null;
-        try {
-            s = drawClass(obj);
-        } catch (UiObjectNotFoundException e) {
-            e.printStackTrace();
-        }
-        Log.d("zxx", s);
-
-        for(int i = 0 ;i<1000;i++){
-            UiObject objC = null;
             try {
-                objC = obj.getChild(new UiSelector().instance(i));
-
-                if(objC.exists()){
-                    if(!objC.getText().equals("") && !txt.contains(objC.getText())) {
-                        Log.d(TAG, objC.getText());
-                        txt.add(objC.getText());
-                    }
-                }else{
-                    UiObject objS;
-                    int m = 0;
-                    do{
-                        objS = device.findObject(new UiSelector().scrollable(true).instance(m++));
-                        if(objS.exists()){
-                            new UiScrollable(new UiSelector().className(objS.getClassName())).scrollForward();
-                            String ss = drawClass(obj);
-                            Log.d("zxx", ss);
-                            if(!ss.equals(s)){
-                                Log.d("zxx", "lz");
-                                getDraw(obj);
-                            }
-                            else {
-                                break;
-                            }
-                        }
-                    } while (objS.exists()&&m<10);
-                    break;
-                }
+                new UiScrollable(new UiSelector().className(scrollable.className)).scrollForward();
             } catch (UiObjectNotFoundException e) {
                 e.printStackTrace();
+                break;
+            }
+            snapshot = UiSnapshot.capture(device);
+            mSnapshot = snapshot;
+            String newContent = snapshot.getContent();
+            if (newContent.equals(content))
+                break;
+            content = newContent;
+            for (UiNode node : snapshot.getTextNodes()) {
+                if (!nodes.containsKey(node.text))
+                    nodes.put(node.text, node);
             }
         }
+        Log.d(TAG_DEBUG, nodes.keySet().toString());
+        return new ArrayList<UiNode>(nodes.values());
     }
+
+    private static UiNode findScrollable(UiSnapshot snapshot) {
+        for (UiNode node : snapshot.getRootNodes()) {
+            if (node.scrollable)
+                return node;
+        }
+        return null;
+    }
+
 //    private void getDraw(UiObject obj) {
 //        String s = drawClass(obj);
 //        Log.d("zxx", s);
@@ -309,7 +288,12 @@ public class UiScreen {
             return false;
         }
         UiScreen c = (UiScreen) o;
-        return this.signature.equals(c.signature);
+        return this.hash == c.hash && this.signature.equals(c.signature);
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (hash ^ (hash >>> 32));
     }
 
     public void update() {
@@ -337,37 +321,6 @@ public class UiScreen {
         mFinished = true;
         return mFinished;
     }
-    private String drawSignature(UiObject obj)  {
-        StringBuilder UiObj = new StringBuilder();
-        try {
-
-            String classname = "";
-            UiObject objS;
-            objS = device.findObject(new UiSelector().scrollable(true));
-            if(objS.exists()) {
-                new UiScrollable(new UiSelector().className(objS.getClassName())).flingToBeginning(2);
-            }
-                for (int i = 0; i < 1000; i++) {
-                UiObject objC = obj.getChild(new UiSelector().instance(i));
-                if (objC.exists()) {
-                    for (String tmp : objC.getClassName().split("\\.")) {
-                        classname = tmp;
-                    }
-                    UiObj.append(classname).append(";");
-                    //                Log.d("zxx", UiObj.toString());
-                } else {
-                    break;
-                }
-            }
-        } catch (UiObjectNotFoundException e) {
-            Log.e(TAG, "uiObject does not exists during parsing");
-            System.out.println("currentScreen.signature"+"uiObject does not exists during parsing");
-
-
-        }
-
-        return UiObj.toString();
-    }
     private boolean parseSignature(UiObject uiObject) {
 //        System.out.println("currentScreen.signature"+uiObject);
         //Log.v(TAG, new Exception().getStackTrace()[0].getMethodName() + "()");
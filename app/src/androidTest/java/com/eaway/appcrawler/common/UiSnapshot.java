@@ -0,0 +1,409 @@
+package com.eaway.appcrawler.common;
+
+import android.support.test.uiautomator.UiDevice;
+import android.util.Log;
+
+import com.eaway.appcrawler.Config;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * UiSnapshot is the whole window hierarchy captured at once.
+ *
+ * Walking the screen with UiObject.getChild(new UiSelector().instance(i)) costs one accessibility
+ * round trip per node, and every call searches the tree again from the top.
+ * Here the hierarchy is dumped once per step (same XML as uiautomator dump) and everything else,
+ * signature, texts and clickables, is computed from memory.
+ */
+public class UiSnapshot {
+    private static final String TAG = Config.TAG;
+
+    private final List<UiNode> mWindows;    // Top level nodes, one per window, in no particular order
+    private final List<UiNode> mNodes;      // All nodes in pre-order, window by window
+    private final int mRoot;                // Window of the app being looked at, -1 if none
+    private final int mRootStart;           // Sub tree of the root in mNodes, same order as UiSelector().instance(i)
+    private final int mRootEnd;
+    private long mCaptureTime = 0;          // Millisecond spent to capture and parse
+    private byte[] mXml = null;             // Hierarchy as dumped, null if not captured from device
+    private String mSignature = null;
+    private Long mSimHash = null;
+
+    private UiSnapshot(List<UiNode> windows, String activePackage) {
+        mWindows = Collections.unmodifiableList(windows);
+        mRoot = selectRoot(windows, activePackage);
+        List<UiNode> nodes = new ArrayList<UiNode>();
+        int start = 0;
+        int end = 0;
+        for (int i = 0; i < windows.size(); i++) {
+            if (i == mRoot)
+                start = nodes.size();
+            collect(windows.get(i), nodes);
+            if (i == mRoot)
+                end = nodes.size();
+        }
+        mNodes = Collections.unmodifiableList(nodes);
+        mRootStart = start;
+        mRootEnd = end;
+    }
+
+    // getWindowRoots() has no order: the window of the active package, else of the target package, else the first
+    private static int selectRoot(List<UiNode> windows, String activePackage) {
+        if (windows.isEmpty())
+            return -1;
+        for (String pkg : new String[]{activePackage, Config.sTargetPackage}) {
+            if (pkg == null)
+                continue;
+            for (int i = 0; i < windows.size(); i++) {
+                if (pkg.equals(windows.get(i).packageName))
+                    return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Dump the current window hierarchy of the device.
+     * Return an empty snapshot if the hierarchy is not available.
+     */
+    public static UiSnapshot capture(UiDevice device) {
+        long start = System.currentTimeMillis();
+        UiSnapshot snapshot;
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+            device.dumpWindowHierarchy(out);
+            byte[] xml = out.toByteArray();
+            snapshot = fromXml(new ByteArrayInputStream(xml), device.getCurrentPackageName());
+            snapshot.mXml = xml;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to capture window hierarchy: " + e.getMessage());
+            snapshot = new UiSnapshot(new ArrayList<UiNode>(), null);
+        }
+        snapshot.mCaptureTime = System.currentTimeMillis() - start;
+        return snapshot;
+    }
+
+    /**
+     * Load a hierarchy saved by UiDevice.dumpWindowHierarchy() or "uiautomator dump".
+     */
+    public static UiSnapshot fromXml(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return fromXml(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static UiSnapshot fromXml(InputStream in) throws IOException {
+        return fromXml(in, null);
+    }
+
+    /**
+     * Load a hierarchy, the window of activePackage (if not null) is the root
+     */
+    public static UiSnapshot fromXml(InputStream in, String activePackage) throws IOException {
+        HierarchyHandler handler = new HierarchyHandler();
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(in, handler);
+        } catch (SAXException e) {
+            throw new IOException("Malformed window hierarchy: " + e.getMessage());
+        } catch (ParserConfigurationException e) {
+            throw new IOException("No XML parser: " + e.getMessage());
+        }
+        return new UiSnapshot(handler.windows, activePackage);
+    }
+
+    /**
+     * The XML dumped by capture(), same as "uiautomator dump", null if loaded from a file
+     */
+    public byte[] getXml() {
+        return mXml;
+    }
+
+    public boolean isEmpty() {
+        return mNodes.isEmpty();
+    }
+
+    /**
+     * Top node of the active window, same node as UiSelector().index(0)
+     */
+    public UiNode getRoot() {
+        return (mRoot < 0) ? null : mWindows.get(mRoot);
+    }
+
+    public List<UiNode> getWindows() {
+        return mWindows;
+    }
+
+    public List<UiNode> getNodes() {
+        return mNodes;
+    }
+
+    /**
+     * Root and everything under it in pre-order, the nodes UiSelector() searches
+     */
+    public List<UiNode> getRootNodes() {
+        return mNodes.subList(mRootStart, mRootEnd);
+    }
+
+    public long getCaptureTime() {
+        return mCaptureTime;
+    }
+
+    public String getPackageName() {
+        UiNode root = getRoot();
+        return (root == null) ? "" : root.packageName;
+    }
+
+    /**
+     * Merkle hash of the layout of the root, see UiNode
+     */
+    public long getStructureHash() {
+        UiNode root = getRoot();
+        return (root == null) ? 0 : root.getStructureHash();
+    }
+
+    /**
+     * Merkle hash of everything in all windows, equal hash means nothing has changed on screen
+     */
+    public long getContentHash() {
+        long h = mWindows.size();
+        for (UiNode window : mWindows) {
+            h = h * 31 + window.getContentHash();
+        }
+        return h;
+    }
+
+    /**
+     * Top most sub trees which are different from the previous snapshot.
+     * Only the nodes along changed paths are visited, unchanged sub trees are skipped by hash.
+     */
+    public List<UiNode> getChangedNodes(UiSnapshot previous) {
+        List<UiNode> changed = new ArrayList<UiNode>();
+        int n = Math.min(mWindows.size(), previous.mWindows.size());
+        for (int i = 0; i < n; i++) {
+            diff(previous.mWindows.get(i), mWindows.get(i), changed);
+        }
+        for (int i = n; i < mWindows.size(); i++) {
+            changed.add(mWindows.get(i));
+        }
+        return changed;
+    }
+
+    private static void diff(UiNode before, UiNode after, List<UiNode> changed) {
+        if (before.getContentHash() == after.getContentHash())
+            return;
+        // The node itself or its list of children has changed, report the whole sub tree
+        if (before.getOwnHash() != after.getOwnHash() || before.children.size() != after.children.size()) {
+            changed.add(after);
+            return;
+        }
+        for (int i = 0; i < after.children.size(); i++) {
+            diff(before.children.get(i), after.children.get(i), changed);
+        }
+    }
+
+    /**
+     * Screen signature: class names of all views under the root, e.g. "LinearLayout;FrameLayout;TextView;"
+     */
+    public String getSignature() {
+        if (mSignature == null) {
+            StringBuilder sb = new StringBuilder();
+            for (UiNode node : getDescendants()) {
+                sb.append(node.getSimpleClassName()).append(";");
+            }
+            mSignature = sb.toString();
+        }
+        return mSignature;
+    }
+
+    /**
+     * SimHash of the layout under the root: one feature per distinct (depth, parent class, class, resource id).
+     * Texts are left out and repeated rows count once, so the fingerprint is stable when
+     * a list grows by one row or a label changes.
+     */
+    public long getSimHash() {
+        if (mSimHash == null) {
+            Set<String> features = new HashSet<String>();
+            UiNode root = getRoot();
+            if (root != null) {
+                features.add("package:" + root.packageName);
+                addFeatures(root, 0, features);
+            }
+            mSimHash = SimHash.compute(features);
+        }
+        return mSimHash;
+    }
+
+    private static void addFeatures(UiNode parent, int depth, Set<String> features) {
+        for (UiNode node : parent.children) {
+            features.add(depth + ":" + parent.getSimpleClassName() + ">" + node.getSimpleClassName() + "#" + node.resourceId);
+            addFeatures(node, depth + 1, features);
+        }
+    }
+
+    /**
+     * Class name and text of every view under the root, use to tell if a list has been scrolled.
+     */
+    public String getContent() {
+        StringBuilder sb = new StringBuilder();
+        for (UiNode node : getDescendants()) {
+            sb.append(node.className).append(" ").append(node.text).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Nodes with non-empty text under the root, first one of each text only, in pre-order
+     */
+    public List<UiNode> getTextNodes() {
+        Map<String, UiNode> nodes = new LinkedHashMap<String, UiNode>();
+        for (UiNode node : getDescendants()) {
+            if (node.text.length() > 0 && !nodes.containsKey(node.text))
+                nodes.put(node.text, node);
+        }
+        return new ArrayList<UiNode>(nodes.values());
+    }
+
+    /**
+     * Clickable nodes of the root window in pre-order, the n-th one is UiSelector().clickable(true).instance(n)
+     */
+    public List<UiNode> getClickables() {
+        List<UiNode> list = new ArrayList<UiNode>();
+        for (UiNode node : getRootNodes()) {
+            if (node.clickable)
+                list.add(node);
+        }
+        return list;
+    }
+
+    public boolean hasScrollable() {
+        for (UiNode node : getRootNodes()) {
+            if (node.scrollable)
+                return true;
+        }
+        return false;
+    }
+
+    private List<UiNode> getDescendants() {
+        if (mRootEnd == mRootStart)
+            return Collections.emptyList();
+        // Root is the first one of its own sub tree
+        return mNodes.subList(mRootStart + 1, mRootEnd);
+    }
+
+    private static void collect(UiNode node, List<UiNode> nodes) {
+        nodes.add(node);
+        for (UiNode child : node.children) {
+            collect(child, nodes);
+        }
+    }
+
+    /**
+     * SAX handler for the uiautomator dump format:
+     * <hierarchy rotation="0"><node index="0" text="" class="..." bounds="[0,0][1080,1920]" ...>...</node></hierarchy>
+     */
+    private static class HierarchyHandler extends DefaultHandler {
+        final List<UiNode> windows = new ArrayList<UiNode>();
+        private final List<UiNode> mStack = new ArrayList<UiNode>();
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attrs) {
+            String name = (localName != null && localName.length() > 0) ? localName : qName;
+            if (!"node".equals(name))
+                return;
+
+            int[] bounds = parseBounds(attrs.getValue("bounds"));
+            UiNode node = new UiNode(
+                    parseInt(attrs.getValue("index")),
+                    attrs.getValue("class"),
+                    attrs.getValue("text"),
+                    attrs.getValue("resource-id"),
+                    attrs.getValue("package"),
+                    attrs.getValue("content-desc"),
+                    parseBoolean(attrs.getValue("checkable")),
+                    parseBoolean(attrs.getValue("checked")),
+                    parseBoolean(attrs.getValue("clickable")),
+                    parseBoolean(attrs.getValue("enabled")),
+                    parseBoolean(attrs.getValue("focusable")),
+                    parseBoolean(attrs.getValue("focused")),
+                    parseBoolean(attrs.getValue("scrollable")),
+                    parseBoolean(attrs.getValue("long-clickable")),
+                    parseBoolean(attrs.getValue("password")),
+                    parseBoolean(attrs.getValue("selected")),
+                    bounds[0], bounds[1], bounds[2], bounds[3]);
+
+            if (mStack.isEmpty())
+                windows.add(node);
+            else
+                mStack.get(mStack.size() - 1).addChild(node);
+            mStack.add(node);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            String name = (localName != null && localName.length() > 0) ? localName : qName;
+            if ("node".equals(name) && !mStack.isEmpty())
+                mStack.remove(mStack.size() - 1);
+        }
+
+        private static boolean parseBoolean(String value) {
+            return "true".equals(value);
+        }
+
+        private static int parseInt(String value) {
+            if (value == null || value.length() == 0)
+                return 0;
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        // "[left,top][right,bottom]"
+        private static int[] parseBounds(String value) {
+            int[] bounds = new int[4];
+            if (value == null)
+                return bounds;
+            int n = 0;
+            int number = 0;
+            boolean negative = false;
+            boolean inNumber = false;
+            for (int i = 0; i < value.length() && n < 4; i++) {
+                char c = value.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    number = number * 10 + (c - '0');
+                    inNumber = true;
+                } else if (c == '-') {
+                    negative = true;
+                } else if (inNumber) {
+                    bounds[n++] = negative ? -number : number;
+                    number = 0;
+                    negative = false;
+                    inNumber = false;
+                }
+            }
+            return bounds;
+        }
+    }
+}
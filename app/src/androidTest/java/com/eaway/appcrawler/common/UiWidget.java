@@ -10,13 +10,25 @@ import android.support.test.uiautomator.UiObject;
  */
 public class UiWidget implements Cloneable {
     public UiObject uiObject;
+    public UiNode node; // Captured attributes, no need to ask the device again
     private boolean mFinished = false; // It has been tested or not
 
-    public UiWidget(UiObject object) {
+    public UiWidget(UiObject object, UiNode node) {
         uiObject = object;
+        this.node = node;
         mFinished = false;
     }
 
+    /**
+     * Describe the widget by its captured attributes, stable between visits of the same screen
+     */
+    public String getDescriptor() {
+        if (node == null)
+            return "";
+        String label = (node.text.length() > 0) ? node.text : node.contentDesc;
+        return node.getSimpleClassName() + "|" + node.resourceId + "|" + label + "|" + node.getBoundsString();
+    }
+
     protected Object clone() throws CloneNotSupportedException {
         UiWidget clone = (UiWidget) super.clone();
         return clone;
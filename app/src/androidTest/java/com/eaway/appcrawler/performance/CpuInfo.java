@@ -1,65 +1,61 @@
 package com.eaway.appcrawler.performance;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
+import com.eaway.appcrawler.Config;
 
 /**
  * CPU info
  */
 public class CpuInfo {
 
-    static float totalCpuTime1 = -1f;
-    static float processCpuTime1 = -1f;
+    static ProcReader sReader = new ProcReader(Config.sProcRoot);
 
-    public static float getProcessCpuRate(int pid) {
+    static long totalCpuTime1 = -1;
+    static long processCpuTime1 = -1;
+    static int pid1 = -1;
 
-        if (totalCpuTime1 == -1f) {
-            totalCpuTime1 = getTotalCpuTime();
-            processCpuTime1 = getAppCpuTime(pid);
-            try {
-                Thread.sleep(360);
-            } catch (Exception e) {
-            }
+    /**
+     * CPU usage of the process since last call, 0 on the first call of a pid (no baseline yet)
+     */
+    public static float getProcessCpuRate(int pid) {
+        long totalCpuTime2 = getTotalCpuTime();
+        long processCpuTime2 = getAppCpuTime(pid);
+        if (totalCpuTime2 < 0 || processCpuTime2 < 0) {
+            pid1 = -1;
+            return 0f;
         }
 
-        float totalCpuTime2 = getTotalCpuTime();
-        float processCpuTime2 = getAppCpuTime(pid);
-
-        float cpuRate = 100 * (processCpuTime2 - processCpuTime1) / (totalCpuTime2 - totalCpuTime1);
+        float cpuRate = 0f;
+        if (pid == pid1 && totalCpuTime2 > totalCpuTime1)
+            cpuRate = 100f * (processCpuTime2 - processCpuTime1) / (totalCpuTime2 - totalCpuTime1);
 
         totalCpuTime1 = totalCpuTime2;
         processCpuTime1 = processCpuTime2;
+        pid1 = pid;
 
         return cpuRate;
     }
 
+    /**
+     * Forget the baseline, e.g. the process was restarted
+     */
+    public static void reset() {
+        pid1 = -1;
+    }
+
+    /**
+     * Use another proc root, e.g. a folder of fixture files
+     */
+    public static void setProcRoot(String root) {
+        sReader.close();
+        sReader = new ProcReader(root);
+        pid1 = -1;
+    }
+
     public static long getTotalCpuTime() {
-        String[] cpuInfos = null;
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/stat")), 1000);
-            String load = reader.readLine();
-            reader.close();
-            cpuInfos = load.split(" ");
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-        long totalCpu = Long.parseLong(cpuInfos[2]) + Long.parseLong(cpuInfos[3]) + Long.parseLong(cpuInfos[4]) + Long.parseLong(cpuInfos[6]) + Long.parseLong(cpuInfos[5]) + Long.parseLong(cpuInfos[7]) + Long.parseLong(cpuInfos[8]);
-        return totalCpu;
+        return sReader.readTotalCpuTime();
     }
 
     public static long getAppCpuTime(int pid) {
-        String[] cpuInfos = null;
-        try {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/" + pid + "/stat")), 1000);
-            String load = reader.readLine();
-            reader.close();
-            cpuInfos = load.split(" ");
-        } catch (IOException ex) {
-            ex.printStackTrace();
-        }
-        long appCpuTime = Long.parseLong(cpuInfos[13]) + Long.parseLong(cpuInfos[14]) + Long.parseLong(cpuInfos[15]) + Long.parseLong(cpuInfos[16]);
-        return appCpuTime;
+        return sReader.readProcessCpuTime(pid);
     }
 }
@@ -0,0 +1,129 @@
+package com.eaway.appcrawler.performance;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Streaming parser of "dumpsys gfxinfo [package] framestats" output.
+ *
+ * Reads one line at a time, nothing is kept but the stats:
+ *      - Summary lines "Total frames rendered: N" and "Janky frames: N (x%)" of the process. Newer Android
+ *        repeats them for each window after "Profile data", those are part of the process totals.
+ *      - Frame rows between "---PROFILEDATA---" markers. The first row of a block is the column header,
+ *        columns are found by name since their order and number differ between Android versions.
+ *        Frame time is FrameCompleted - IntendedVsync; rows with non-zero Flags are not real frames
+ *        (e.g. window layout changed) and are skipped.
+ */
+public class GfxInfoParser {
+    private static final String PROFILE_DATA = "---PROFILEDATA---";
+    private static final String TOTAL_FRAMES = "Total frames rendered:";
+    private static final String JANKY_FRAMES = "Janky frames:";
+    private static final String WINDOWS = "Profile data";
+
+    public static void parse(InputStream in, JankStats stats) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in), 8 * 1024);
+        boolean inProfile = false;
+        boolean header = false;
+        boolean windows = false;
+        int flagsColumn = -1;
+        int vsyncColumn = -1;
+        int completedColumn = -1;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith(PROFILE_DATA)) {
+                inProfile = !inProfile;
+                header = inProfile;
+                continue;
+            }
+            if (inProfile) {
+                if (header) {
+                    flagsColumn = columnOf(line, "Flags");
+                    vsyncColumn = columnOf(line, "IntendedVsync");
+                    completedColumn = columnOf(line, "FrameCompleted");
+                    header = false;
+                } else if (flagsColumn >= 0 && vsyncColumn >= 0 && completedColumn >= 0) {
+                    addFrame(line, flagsColumn, vsyncColumn, completedColumn, stats);
+                }
+            } else if (windows) {
+                continue;
+            } else if (line.startsWith(WINDOWS)) {
+                windows = true;
+            } else if (line.startsWith(TOTAL_FRAMES)) {
+                stats.reportedFrames += parseLeadingInt(line, TOTAL_FRAMES.length());
+            } else if (line.startsWith(JANKY_FRAMES)) {
+                stats.reportedJankyFrames += parseLeadingInt(line, JANKY_FRAMES.length());
+            }
+        }
+    }
+
+    private static void addFrame(String line, int flagsColumn, int vsyncColumn, int completedColumn,
+                                 JankStats stats) {
+        long flags = -1;
+        long vsync = -1;
+        long completed = -1;
+        int column = 0;
+        int start = 0;
+        int length = line.length();
+        while (start <= length) {
+            int end = line.indexOf(',', start);
+            if (end < 0)
+                end = length;
+            if (column == flagsColumn)
+                flags = parseLong(line, start, end);
+            else if (column == vsyncColumn)
+                vsync = parseLong(line, start, end);
+            else if (column == completedColumn)
+                completed = parseLong(line, start, end);
+            column++;
+            start = end + 1;
+        }
+        if (flags != 0 || vsync <= 0 || completed <= vsync)
+            return;
+        stats.add(completed - vsync);
+    }
+
+    private static int columnOf(String header, String name) {
+        int column = 0;
+        int start = 0;
+        while (start <= header.length()) {
+            int end = header.indexOf(',', start);
+            if (end < 0)
+                end = header.length();
+            if (header.regionMatches(start, name, 0, name.length()) && end - start == name.length())
+                return column;
+            column++;
+            start = end + 1;
+        }
+        return -1;
+    }
+
+    // -1 if not a number
+    private static long parseLong(String str, int start, int end) {
+        if (start >= end)
+            return -1;
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = str.charAt(i);
+            if (c < '0' || c > '9')
+                return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static int parseLeadingInt(String str, int start) {
+        int i = start;
+        while (i < str.length() && str.charAt(i) == ' ')
+            i++;
+        int value = 0;
+        while (i < str.length() && str.charAt(i) >= '0' && str.charAt(i) <= '9') {
+            value = value * 10 + (str.charAt(i) - '0');
+            i++;
+        }
+        return value;
+    }
+}
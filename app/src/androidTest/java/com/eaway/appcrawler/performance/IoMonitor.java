@@ -0,0 +1,224 @@
+package com.eaway.appcrawler.performance;
+
+import android.content.pm.PackageManager;
+import android.net.TrafficStats;
+import android.support.test.InstrumentationRegistry;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk and network traffic of the target app, per screen and per click transition.
+ *
+ * On every crawl step /proc/[pid]/io and the network bytes of the app uid (TrafficStats) are read,
+ * the deltas since the last step belong to the transition that led to the screen and to the screen,
+ * the same way as JankMonitor. Deltas across a process restart are dropped for /proc/[pid]/io.
+ * Either source may be unavailable (no permission to read /proc/[pid]/io, TrafficStats of other
+ * uids is not supported on newer Android), its numbers then stay 0.
+ */
+public class IoMonitor {
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+
+    private static final Map<String, IoStats> sScreens = new HashMap<String, IoStats>();
+    private static final Map<String, IoStats> sTransitions = new HashMap<String, IoStats>();
+    private static IoStats sTotal = new IoStats();
+    private static final IoStats sStep = new IoStats();
+    private static ProcReader sReader = null;
+    private static final long[] sIo = new long[ProcReader.IO_FIELDS];
+    private static final long[] sLastIo = new long[ProcReader.IO_FIELDS];
+    private static int sLastPid = -1;
+    private static long sLastRx = -1;
+    private static long sLastTx = -1;
+    private static final Object sUidLock = new Object();
+    private static String sUidPackage = null;
+    private static int sUid = -1;
+
+    /**
+     * Bytes and syscalls of a group of steps
+     */
+    public static class IoStats {
+        public long rchar = 0;
+        public long wchar = 0;
+        public long syscr = 0;
+        public long syscw = 0;
+        public long readBytes = 0;
+        public long writeBytes = 0;
+        public long rxBytes = 0;
+        public long txBytes = 0;
+        public int steps = 0;
+
+        void clear() {
+            rchar = 0;
+            wchar = 0;
+            syscr = 0;
+            syscw = 0;
+            readBytes = 0;
+            writeBytes = 0;
+            rxBytes = 0;
+            txBytes = 0;
+            steps = 0;
+        }
+
+        void merge(IoStats other) {
+            rchar += other.rchar;
+            wchar += other.wchar;
+            syscr += other.syscr;
+            syscw += other.syscw;
+            readBytes += other.readBytes;
+            writeBytes += other.writeBytes;
+            rxBytes += other.rxBytes;
+            txBytes += other.txBytes;
+            steps += other.steps;
+        }
+
+        /**
+         * Storage and network bytes
+         */
+        public long getBytes() {
+            return readBytes + writeBytes + rxBytes + txBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("disk read (KB):%d, disk write (KB):%d, read (KB):%d, write (KB):%d" +
+                            ", read syscalls:%d, write syscalls:%d, net rx (KB):%d, net tx (KB):%d, steps:%d",
+                    readBytes / 1024, writeBytes / 1024, rchar / 1024, wchar / 1024, syscr, syscw,
+                    rxBytes / 1024, txBytes / 1024, steps);
+        }
+    }
+
+    public static synchronized void reset() {
+        sScreens.clear();
+        sTransitions.clear();
+        sTotal = new IoStats();
+        if (sReader != null)
+            sReader.close();
+        sReader = new ProcReader(Config.sProcRoot);
+        sLastPid = -1;
+        sLastRx = -1;
+        sLastTx = -1;
+    }
+
+    /**
+     * Traffic since last call belongs to the screen, and to the transition if it is not null
+     */
+    public static synchronized void collect(String screen, String transition) {
+        if (sReader == null)
+            reset();
+        IoStats stats = sStep;
+        stats.clear();
+        stats.steps = 1;
+
+        int pid = PerformanceMonitor.getPid();
+        boolean io = pid >= 0 && sReader.readProcessIo(pid, sIo);
+        if (io && pid == sLastPid) {
+            stats.rchar = delta(sIo, sLastIo, ProcReader.IO_RCHAR);
+            stats.wchar = delta(sIo, sLastIo, ProcReader.IO_WCHAR);
+            stats.syscr = delta(sIo, sLastIo, ProcReader.IO_SYSCR);
+            stats.syscw = delta(sIo, sLastIo, ProcReader.IO_SYSCW);
+            stats.readBytes = delta(sIo, sLastIo, ProcReader.IO_READ_BYTES);
+            stats.writeBytes = delta(sIo, sLastIo, ProcReader.IO_WRITE_BYTES);
+        }
+        if (io)
+            System.arraycopy(sIo, 0, sLastIo, 0, sIo.length);
+        sLastPid = io ? pid : -1;
+
+        long rx = getRxBytes();
+        long tx = getTxBytes();
+        if (rx >= 0 && sLastRx >= 0)
+            stats.rxBytes = Math.max(0, rx - sLastRx);
+        if (tx >= 0 && sLastTx >= 0)
+            stats.txBytes = Math.max(0, tx - sLastTx);
+        sLastRx = rx;
+        sLastTx = tx;
+
+        get(sScreens, screen).merge(stats);
+        if (transition != null)
+            get(sTransitions, transition).merge(stats);
+        sTotal.merge(stats);
+    }
+
+    private static long delta(long[] current, long[] last, int i) {
+        return (current[i] < 0 || last[i] < 0) ? 0 : Math.max(0, current[i] - last[i]);
+    }
+
+    private static IoStats get(Map<String, IoStats> map, String key) {
+        IoStats stats = map.get(key);
+        if (stats == null) {
+            stats = new IoStats();
+            map.put(key, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Network bytes received by the target app since boot, -1 if not supported
+     */
+    public static long getRxBytes() {
+        int uid = getUid();
+        long bytes = (uid < 0) ? -1 : TrafficStats.getUidRxBytes(uid);
+        return (bytes == TrafficStats.UNSUPPORTED) ? -1 : bytes;
+    }
+
+    /**
+     * Network bytes sent by the target app since boot, -1 if not supported
+     */
+    public static long getTxBytes() {
+        int uid = getUid();
+        long bytes = (uid < 0) ? -1 : TrafficStats.getUidTxBytes(uid);
+        return (bytes == TrafficStats.UNSUPPORTED) ? -1 : bytes;
+    }
+
+    // Own lock, the sampler thread calls it too
+    private static int getUid() {
+        synchronized (sUidLock) {
+            if (!Config.sTargetPackage.equals(sUidPackage)) {
+                sUidPackage = Config.sTargetPackage;
+                try {
+                    sUid = InstrumentationRegistry.getContext().getPackageManager()
+                            .getApplicationInfo(sUidPackage, 0).uid;
+                } catch (PackageManager.NameNotFoundException e) {
+                    sUid = -1;
+                }
+            }
+            return sUid;
+        }
+    }
+
+    /**
+     * Log the total, and the screens and transitions with the most disk and network bytes
+     */
+    public static synchronized void logSummary(int top) {
+        FileLog.i(TAG_MAIN, "IO total " + sTotal.toString());
+        for (Map.Entry<String, IoStats> entry : rank(sScreens, top)) {
+            FileLog.i(TAG_MAIN, "{IO} screen:" + entry.getKey() + ", " + entry.getValue().toString());
+        }
+        for (Map.Entry<String, IoStats> entry : rank(sTransitions, top)) {
+            FileLog.i(TAG_MAIN, "{IO} transition:" + entry.getKey() + ", " + entry.getValue().toString());
+        }
+    }
+
+    private static List<Map.Entry<String, IoStats>> rank(Map<String, IoStats> map, int top) {
+        List<Map.Entry<String, IoStats>> entries = new ArrayList<Map.Entry<String, IoStats>>();
+        for (Map.Entry<String, IoStats> entry : map.entrySet()) {
+            if (entry.getValue().getBytes() > 0)
+                entries.add(entry);
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, IoStats>>() {
+            @Override
+            public int compare(Map.Entry<String, IoStats> a, Map.Entry<String, IoStats> b) {
+                long x = a.getValue().getBytes();
+                long y = b.getValue().getBytes();
+                return (x < y) ? 1 : ((x == y) ? 0 : -1);
+            }
+        });
+        return entries.subList(0, Math.min(top, entries.size()));
+    }
+}
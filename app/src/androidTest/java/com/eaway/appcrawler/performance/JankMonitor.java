@@ -0,0 +1,159 @@
+package com.eaway.appcrawler.performance;
+
+import android.app.UiAutomation;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Frame rendering stats of the target app, per screen and per click transition.
+ *
+ * On every crawl step the frames rendered since the last step are read from
+ * "dumpsys gfxinfo [package] framestats" and gfxinfo is reset, so each step only sees its own frames.
+ * The frames belong to the transition that led to the screen (click, animation, settle) and to the screen.
+ */
+public class JankMonitor {
+    private static final String TAG = Config.TAG;
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+    private static final int MIN_FRAMES = 10; // Fewer frames are not ranked
+
+    private static final Map<String, JankStats> sScreens = new HashMap<String, JankStats>();
+    private static final Map<String, JankStats> sTransitions = new HashMap<String, JankStats>();
+    private static JankStats sTotal = new JankStats();
+    private static long sDumpTime = 0;
+    private static int sDumps = 0;
+
+    public static synchronized void reset() {
+        sScreens.clear();
+        sTransitions.clear();
+        sTotal = new JankStats();
+        sDumpTime = 0;
+        sDumps = 0;
+        resetGfxInfo();
+    }
+
+    /**
+     * Frames since last call belong to the screen, and to the transition if it is not null
+     */
+    public static synchronized void collect(String screen, String transition) {
+        if (!Config.sJankStats)
+            return;
+        long start = System.currentTimeMillis();
+        JankStats stats = new JankStats();
+        InputStream in = shell("dumpsys gfxinfo " + Config.sTargetPackage + " framestats");
+        if (in != null) {
+            try {
+                GfxInfoParser.parse(in, stats);
+            } catch (IOException e) {
+                Log.w(TAG, "Fail to read gfxinfo: " + e.getMessage());
+            } finally {
+                close(in);
+            }
+        }
+        resetGfxInfo();
+        sDumpTime += System.currentTimeMillis() - start;
+        sDumps++;
+        if (stats.isEmpty())
+            return;
+        TraceWriter.counter("janky frames (%)", start, stats.getJankyPercent());
+        TraceWriter.counter("frame p95 (ms)", start, stats.getPercentile(95));
+
+        get(sScreens, screen).merge(stats);
+        if (transition != null)
+            get(sTransitions, transition).merge(stats);
+        sTotal.merge(stats);
+    }
+
+    /**
+     * Frames of the screen so far, null if none
+     */
+    public static synchronized JankStats getScreen(String screen) {
+        return sScreens.get(screen);
+    }
+
+    private static JankStats get(Map<String, JankStats> map, String key) {
+        JankStats stats = map.get(key);
+        if (stats == null) {
+            stats = new JankStats();
+            map.put(key, stats);
+        }
+        return stats;
+    }
+
+    private static void resetGfxInfo() {
+        if (!Config.sJankStats)
+            return;
+        InputStream in = shell("dumpsys gfxinfo " + Config.sTargetPackage + " reset");
+        if (in == null)
+            return;
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) >= 0) {
+                // Wait for the command to finish
+            }
+        } catch (IOException e) {
+            // Don't worry
+        } finally {
+            close(in);
+        }
+    }
+
+    private static InputStream shell(String command) {
+        UiAutomation automation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
+        ParcelFileDescriptor pfd = automation.executeShellCommand(command);
+        return (pfd == null) ? null : new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+    }
+
+    private static void close(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // Don't worry
+        }
+    }
+
+    /**
+     * Log the total, and the screens and transitions with the most janky frames
+     */
+    public static synchronized void logSummary(int top) {
+        if (!Config.sJankStats)
+            return;
+        FileLog.i(TAG_MAIN, "Jank total " + sTotal.toString() +
+                ", dumpsys time (ms):" + sDumpTime + ", dumps:" + sDumps);
+        for (Map.Entry<String, JankStats> entry : rank(sScreens, top)) {
+            FileLog.i(TAG_MAIN, "{Jank} screen:" + entry.getKey() + ", " + entry.getValue().toString());
+        }
+        for (Map.Entry<String, JankStats> entry : rank(sTransitions, top)) {
+            FileLog.i(TAG_MAIN, "{Jank} transition:" + entry.getKey() + ", " + entry.getValue().toString());
+        }
+    }
+
+    // By janky percent, then janky frames
+    private static List<Map.Entry<String, JankStats>> rank(Map<String, JankStats> map, int top) {
+        List<Map.Entry<String, JankStats>> entries = new ArrayList<Map.Entry<String, JankStats>>();
+        for (Map.Entry<String, JankStats> entry : map.entrySet()) {
+            if (entry.getValue().getFrames() >= MIN_FRAMES)
+                entries.add(entry);
+        }
+        Collections.sort(entries, new Comparator<Map.Entry<String, JankStats>>() {
+            @Override
+            public int compare(Map.Entry<String, JankStats> a, Map.Entry<String, JankStats> b) {
+                int c = Float.compare(b.getValue().getJankyPercent(), a.getValue().getJankyPercent());
+                return (c != 0) ? c : b.getValue().getJankyFrames() - a.getValue().getJankyFrames();
+            }
+        });
+        return entries.subList(0, Math.min(top, entries.size()));
+    }
+}
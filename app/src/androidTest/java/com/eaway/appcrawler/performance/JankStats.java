@@ -0,0 +1,87 @@
+package com.eaway.appcrawler.performance;
+
+import com.eaway.appcrawler.Config;
+
+/**
+ * Frame time histogram with 1 ms buckets, mergeable, so percentiles can be had for any group of frames.
+ * Frames of Config.sJankFrameTime millisecond or longer are janky.
+ */
+public class JankStats {
+    private static final int BUCKETS = 250; // Last bucket holds everything from 249 ms up
+
+    private final int[] mBuckets = new int[BUCKETS];
+    private int mFrames = 0;
+    private int mJankyFrames = 0;
+    private long mTotalNanos = 0;
+    private long mMaxNanos = 0;
+
+    // Numbers reported by gfxinfo itself, framestats only keeps the latest frames
+    public int reportedFrames = 0;
+    public int reportedJankyFrames = 0;
+
+    public void add(long frameNanos) {
+        int ms = (int) (frameNanos / 1000000);
+        mBuckets[Math.min(Math.max(ms, 0), BUCKETS - 1)]++;
+        mFrames++;
+        if (ms >= Config.sJankFrameTime)
+            mJankyFrames++;
+        mTotalNanos += frameNanos;
+        mMaxNanos = Math.max(mMaxNanos, frameNanos);
+    }
+
+    public void merge(JankStats other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            mBuckets[i] += other.mBuckets[i];
+        }
+        mFrames += other.mFrames;
+        mJankyFrames += other.mJankyFrames;
+        mTotalNanos += other.mTotalNanos;
+        mMaxNanos = Math.max(mMaxNanos, other.mMaxNanos);
+        reportedFrames += other.reportedFrames;
+        reportedJankyFrames += other.reportedJankyFrames;
+    }
+
+    public int getFrames() {
+        return mFrames;
+    }
+
+    public int getJankyFrames() {
+        return mJankyFrames;
+    }
+
+    public float getJankyPercent() {
+        return (mFrames == 0) ? 0f : 100f * mJankyFrames / mFrames;
+    }
+
+    /**
+     * Frame time in millisecond at the percentile (0 ~ 100), truncated to its 1 ms bucket
+     */
+    public int getPercentile(double percentile) {
+        if (mFrames == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100 * mFrames);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mBuckets[i];
+            if (seen >= Math.max(1, rank))
+                return i;
+        }
+        return BUCKETS - 1;
+    }
+
+    public long getMaxMillis() {
+        return mMaxNanos / 1000000;
+    }
+
+    public boolean isEmpty() {
+        return mFrames == 0 && reportedFrames == 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("frames:%d, janky:%d (%.1f%%), p50:%dms, p90:%dms, p95:%dms, p99:%dms, max:%dms" +
+                        ", gfxinfo frames:%d, gfxinfo janky:%d",
+                mFrames, mJankyFrames, getJankyPercent(), getPercentile(50), getPercentile(90),
+                getPercentile(95), getPercentile(99), getMaxMillis(), reportedFrames, reportedJankyFrames);
+    }
+}
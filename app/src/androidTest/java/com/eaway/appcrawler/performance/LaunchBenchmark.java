@@ -0,0 +1,201 @@
+package com.eaway.appcrawler.performance;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.uiautomator.By;
+import android.support.test.uiautomator.UiDevice;
+import android.support.test.uiautomator.Until;
+import android.util.Log;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+import com.eaway.appcrawler.common.SettleDetector;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Cold, warm and hot launch time of the target app.
+ *
+ *      - Cold: process killed by "am force-stop"
+ *      - Warm: process alive, activities finished by pressing Back to the launcher
+ *      - Hot: process and activity alive, app sent to background by pressing Home
+ *
+ * Each launch is "am start -W" of the launcher activity: TotalTime and WaitTime come from the activity
+ * manager, time to stable is from the command to the last UI event before the UI settled (SettleDetector).
+ * Warm-up launches of each mode are done first and not counted.
+ */
+public class LaunchBenchmark {
+    private static final String TAG = Config.TAG;
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+    private static final int MAX_BACK = 5;
+
+    public static final int COLD = 0;
+    public static final int WARM = 1;
+    public static final int HOT = 2;
+    private static final String[] MODES = {"cold", "warm", "hot"};
+
+    private final String mPackage;
+    private final UiDevice mDevice;
+    private String mComponent = null;
+
+    /**
+     * Launch times of one mode, in millisecond, -1 if unknown
+     */
+    public static class Result {
+        public final String mode;
+        public final long[] totalTimes;
+        public final long[] waitTimes;
+        public final long[] stableTimes;
+
+        Result(String mode, int iterations) {
+            this.mode = mode;
+            totalTimes = new long[iterations];
+            waitTimes = new long[iterations];
+            stableTimes = new long[iterations];
+        }
+    }
+
+    public LaunchBenchmark(String pkg) {
+        mPackage = pkg;
+        mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+    }
+
+    /**
+     * Run every mode, return results in the order cold, warm, hot; null if the app can not be launched
+     */
+    public Result[] run(int iterations, int warmup) {
+        Context context = InstrumentationRegistry.getContext();
+        Intent intent = context.getPackageManager().getLaunchIntentForPackage(mPackage);
+        if (intent == null || intent.getComponent() == null) {
+            FileLog.e(TAG_MAIN, "{Launch} no launchable activity: " + mPackage);
+            return null;
+        }
+        mComponent = intent.getComponent().flattenToShortString();
+        FileLog.i(TAG_MAIN, "{Launch} benchmark " + mComponent + ", iterations:" + iterations + ", warm-up:" + warmup);
+
+        Result[] results = new Result[MODES.length];
+        for (int mode = 0; mode < MODES.length; mode++) {
+            results[mode] = new Result(MODES[mode], iterations);
+            for (int i = 0; i < warmup; i++) {
+                launch(mode, null, 0);
+            }
+            for (int i = 0; i < iterations; i++) {
+                launch(mode, results[mode], i);
+            }
+            log(results[mode]);
+        }
+        return results;
+    }
+
+    private void launch(int mode, Result result, int i) {
+        // Get the app into the state of the mode: running for warm and hot, killed for cold
+        if (mode != COLD && !mPackage.equals(mDevice.getCurrentPackageName()))
+            startAndWait();
+        if (mode == COLD) {
+            shell("am force-stop " + mPackage);
+        } else if (mode == WARM) {
+            for (int back = 0; back < MAX_BACK && mPackage.equals(mDevice.getCurrentPackageName()); back++) {
+                mDevice.pressBack();
+                mDevice.waitForIdle(Config.sWaitIdleTimeout);
+            }
+        } else {
+            mDevice.pressHome();
+        }
+        mDevice.wait(Until.gone(By.pkg(mPackage).depth(0)), Config.sLaunchTimeout);
+        SettleDetector.getInstance().waitForSettle(Config.sSettleQuietTime, 0, Config.sWaitIdleTimeout);
+
+        long[] times = startAndWait();
+        if (result == null)
+            return;
+        result.totalTimes[i] = times[0];
+        result.waitTimes[i] = times[1];
+        result.stableTimes[i] = times[2];
+        FileLog.i(TAG_MAIN, String.format("{Launch} %s #%d TotalTime:%d, WaitTime:%d, stable:%d",
+                MODES[mode], i + 1, times[0], times[1], times[2]));
+    }
+
+    // Start the launcher activity and wait until settled: TotalTime, WaitTime, time to stable
+    private long[] startAndWait() {
+        SettleDetector detector = SettleDetector.getInstance();
+        long start = System.currentTimeMillis();
+        detector.mark();
+        String output = shell("am start -W -n " + mComponent);
+        mDevice.wait(Until.hasObject(By.pkg(mPackage).depth(0)), Config.sLaunchTimeout);
+        detector.waitForSettle(Config.sSettleQuietTime, Config.sSettleMinTime, Config.sLaunchTimeout);
+
+        long[] times = new long[3];
+        times[0] = parseTime(output, "TotalTime:");
+        times[1] = parseTime(output, "WaitTime:");
+        long last = detector.getLastEventDelay();
+        times[2] = (last >= 0) ? last : System.currentTimeMillis() - start;
+        return times;
+    }
+
+    private String shell(String command) {
+        try {
+            String output = mDevice.executeShellCommand(command);
+            return (output == null) ? "" : output;
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to run " + command + ": " + e.getMessage());
+            return "";
+        }
+    }
+
+    // Number after the key in "am start -W" output, -1 if not there (e.g. only brought to front)
+    static long parseTime(String output, String key) {
+        int i = output.indexOf(key);
+        if (i < 0)
+            return -1;
+        i += key.length();
+        while (i < output.length() && output.charAt(i) == ' ')
+            i++;
+        long value = -1;
+        while (i < output.length() && output.charAt(i) >= '0' && output.charAt(i) <= '9') {
+            value = Math.max(value, 0) * 10 + (output.charAt(i) - '0');
+            i++;
+        }
+        return value;
+    }
+
+    private static void log(Result result) {
+        FileLog.i(TAG_MAIN, "{Launch} " + result.mode + " TotalTime (ms) " + summary(result.totalTimes));
+        FileLog.i(TAG_MAIN, "{Launch} " + result.mode + " WaitTime (ms) " + summary(result.waitTimes));
+        FileLog.i(TAG_MAIN, "{Launch} " + result.mode + " stable (ms) " + summary(result.stableTimes));
+    }
+
+    /**
+     * count, min, p50, p90, max, mean and standard deviation of the known (>= 0) values
+     */
+    public static String summary(long[] values) {
+        long[] known = new long[values.length];
+        int n = 0;
+        for (long value : values) {
+            if (value >= 0)
+                known[n++] = value;
+        }
+        if (n == 0)
+            return "count:0";
+        Arrays.sort(known, 0, n);
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += known[i];
+        }
+        double mean = sum / n;
+        double squares = 0;
+        for (int i = 0; i < n; i++) {
+            squares += (known[i] - mean) * (known[i] - mean);
+        }
+        double stddev = (n > 1) ? Math.sqrt(squares / (n - 1)) : 0;
+        return String.format("count:%d, min:%d, p50:%d, p90:%d, max:%d, mean:%.1f, stddev:%.1f, cv:%.1f%%",
+                n, known[0], percentile(known, n, 50), percentile(known, n, 90), known[n - 1], mean, stddev,
+                mean == 0 ? 0 : 100 * stddev / mean);
+    }
+
+    // Nearest rank of sorted values
+    private static long percentile(long[] sorted, int n, double percentile) {
+        int rank = (int) Math.ceil(percentile / 100 * n);
+        return sorted[Math.min(n, Math.max(1, rank)) - 1];
+    }
+}
@@ -0,0 +1,117 @@
+package com.eaway.appcrawler.performance;
+
+/**
+ * Streaming quantiles with constant memory, in the way of HdrHistogram.
+ *
+ * Values are scaled to long (e.g. scale 10 keeps one decimal of a CPU percent) and counted in
+ * log-linear buckets: exact below 2 * SUB_BUCKETS, then SUB_BUCKETS buckets per power of two, so
+ * a percentile is off by less than half of 1 / SUB_BUCKETS (about 3%). Scaled values from 2^MAX_BITS up all
+ * go into the last bucket. Histograms of the same scale can be merged, e.g. per screen histograms
+ * into the whole run.
+ */
+public class LogHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;   // per power of two
+    private static final int LINEAR = SUB_BUCKETS * 2;      // values counted exactly
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = LINEAR + (MAX_BITS - SUB_BITS - 1) * SUB_BUCKETS;
+
+    private final int mScale;
+    private final int[] mCounts = new int[BUCKETS];
+    private long mCount = 0;
+    private double mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    public LogHistogram(int scale) {
+        mScale = Math.max(1, scale);
+    }
+
+    public void add(double value) {
+        long v = Math.max(0, Math.round(value * mScale));
+        mCounts[index(v)]++;
+        mCount++;
+        mSum += v;
+        mMin = Math.min(mMin, v);
+        mMax = Math.max(mMax, v);
+    }
+
+    public void merge(LogHistogram other) {
+        if (other.mScale != mScale)
+            throw new IllegalArgumentException("Scale " + other.mScale + " != " + mScale);
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mCount += other.mCount;
+        mSum += other.mSum;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mCounts[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    static int index(long v) {
+        if (v < LINEAR)
+            return (int) v;
+        if (v >= 1L << MAX_BITS)
+            return BUCKETS - 1;
+        int shift = 63 - Long.numberOfLeadingZeros(v) - SUB_BITS;  // v >> shift is in [SUB_BUCKETS, 2 * SUB_BUCKETS)
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (v >> shift) - SUB_BUCKETS;
+    }
+
+    // Smallest value of the bucket
+    static long lowest(int index) {
+        if (index < LINEAR)
+            return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        return (long) ((index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public double getMean() {
+        return (mCount == 0) ? 0 : mSum / mCount / mScale;
+    }
+
+    public double getMin() {
+        return (mCount == 0) ? 0 : (double) mMin / mScale;
+    }
+
+    public double getMax() {
+        return (double) mMax / mScale;
+    }
+
+    /**
+     * Value at the percentile (0 ~ 100), the middle of its bucket but within min and max
+     */
+    public double getPercentile(double percentile) {
+        if (mCount == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank)
+                return (double) Math.min(Math.max((lowest(i) + lowest(i + 1) - 1) / 2, mMin), mMax) / mScale;
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        String format = (mScale == 1) ? "count:%d, mean:%.0f, p50:%.0f, p90:%.0f, p99:%.0f, max:%.0f"
+                : "count:%d, mean:%.1f, p50:%.1f, p90:%.1f, p99:%.1f, max:%.1f";
+        return String.format(format, mCount, getMean(), getPercentile(50), getPercentile(90),
+                getPercentile(99), getMax());
+    }
+}
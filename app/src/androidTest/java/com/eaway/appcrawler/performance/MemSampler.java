@@ -0,0 +1,240 @@
+package com.eaway.appcrawler.performance;
+
+import android.app.UiAutomation;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
+import android.support.test.InstrumentationRegistry;
+
+import com.eaway.appcrawler.Config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+
+/**
+ * Memory of the target process from /proc, instead of ActivityManager.getProcessMemoryInfo()
+ * which is rate limited on newer Android and returns the same stale numbers.
+ *
+ * Sources, first one that works:
+ *      - /proc/[pid]/smaps_rollup: Rss, Pss, Private_Dirty, Shared_Dirty
+ *      - /proc/[pid]/status: VmRSS only, also used as Pss
+ *      - ActivityManager.getProcessMemoryInfo()
+ * Java heap, native heap and graphics come from "dumpsys meminfo [pid]" every
+ * Config.sMeminfoInterval (0: never), the last numbers are used in between.
+ *
+ * Files are kept open and read into one buffer, keys are matched in place. Not thread safe,
+ * use one instance per thread.
+ */
+public class MemSampler {
+    // Index of values in the output array, all in KB
+    public static final int PSS = 0;
+    public static final int PRIVATE_DIRTY = 1;
+    public static final int SHARED_DIRTY = 2;
+    public static final int JAVA_HEAP = 3;
+    public static final int NATIVE_HEAP = 4;
+    public static final int OTHER = 5;          // Pss not in Java heap, native heap or graphics
+    public static final int RSS = 6;
+    public static final int GRAPHICS = 7;
+    public static final int SIZE = 8;
+
+    public static final int SOURCE_NONE = 0;
+    public static final int SOURCE_SMAPS_ROLLUP = 1;
+    public static final int SOURCE_STATUS = 2;
+    public static final int SOURCE_ACTIVITY_MANAGER = 3;
+
+    private static final byte[] KEY_RSS = "Rss:".getBytes();
+    private static final byte[] KEY_PSS = "Pss:".getBytes();
+    private static final byte[] KEY_PRIVATE_DIRTY = "Private_Dirty:".getBytes();
+    private static final byte[] KEY_SHARED_DIRTY = "Shared_Dirty:".getBytes();
+    private static final byte[] KEY_VM_RSS = "VmRSS:".getBytes();
+
+    private final String mRoot;
+    private final byte[] mBuffer = new byte[8192];
+    private RandomAccessFile mRollup = null;
+    private RandomAccessFile mStatus = null;
+    private int mPid = -1;
+    private boolean mNoRollup = false;
+    private boolean mNoStatus = false;
+
+    private long mMeminfoTime = 0;
+    private int mJavaHeap = 0;
+    private int mNativeHeap = 0;
+    private int mGraphics = 0;
+
+    public MemSampler(String root) {
+        mRoot = root;
+    }
+
+    /**
+     * Fill out (SIZE values) with the memory of the process, return the source used
+     */
+    public int sample(int pid, int[] out, long now) {
+        if (pid != mPid) {
+            close();
+            mPid = pid;
+            mMeminfoTime = 0;
+            mJavaHeap = 0;
+            mNativeHeap = 0;
+            mGraphics = 0;
+        }
+        for (int i = 0; i < SIZE; i++) {
+            out[i] = 0;
+        }
+
+        int source = readRollup(out);
+        if (source == SOURCE_NONE)
+            source = readStatus(out);
+        if (source == SOURCE_NONE)
+            source = readActivityManager(pid, out);
+
+        if (Config.sMeminfoInterval > 0 && now - mMeminfoTime >= Config.sMeminfoInterval) {
+            mMeminfoTime = now;
+            readMeminfo(pid);
+        }
+        if (source != SOURCE_ACTIVITY_MANAGER) {
+            out[JAVA_HEAP] = mJavaHeap;
+            out[NATIVE_HEAP] = mNativeHeap;
+        }
+        out[GRAPHICS] = mGraphics;
+        out[OTHER] = Math.max(0, out[PSS] - out[JAVA_HEAP] - out[NATIVE_HEAP] - out[GRAPHICS]);
+        return source;
+    }
+
+    private int readRollup(int[] out) {
+        if (mNoRollup)
+            return SOURCE_NONE;
+        try {
+            if (mRollup == null)
+                mRollup = new RandomAccessFile(mRoot + "/" + mPid + "/smaps_rollup", "r");
+            int length = read(mRollup);
+            out[RSS] = (int) ProcReader.findValue(mBuffer, length, KEY_RSS);
+            out[PSS] = (int) ProcReader.findValue(mBuffer, length, KEY_PSS);
+            out[PRIVATE_DIRTY] = (int) ProcReader.findValue(mBuffer, length, KEY_PRIVATE_DIRTY);
+            out[SHARED_DIRTY] = (int) ProcReader.findValue(mBuffer, length, KEY_SHARED_DIRTY);
+            if (out[PSS] < 0) {
+                mNoRollup = true;
+                return SOURCE_NONE;
+            }
+            return SOURCE_SMAPS_ROLLUP;
+        } catch (IOException e) {
+            // Not there before Android 10 (kernel 4.14), or not readable
+            mRollup = close(mRollup);
+            mNoRollup = true;
+            return SOURCE_NONE;
+        }
+    }
+
+    private int readStatus(int[] out) {
+        if (mNoStatus)
+            return SOURCE_NONE;
+        try {
+            if (mStatus == null)
+                mStatus = new RandomAccessFile(mRoot + "/" + mPid + "/status", "r");
+            int length = read(mStatus);
+            long rss = ProcReader.findValue(mBuffer, length, KEY_VM_RSS);
+            if (rss < 0) {
+                mNoStatus = true;
+                return SOURCE_NONE;
+            }
+            out[RSS] = (int) rss;
+            out[PSS] = (int) rss;
+            return SOURCE_STATUS;
+        } catch (IOException e) {
+            mStatus = close(mStatus);
+            mNoStatus = true;
+            return SOURCE_NONE;
+        }
+    }
+
+    private static int readActivityManager(int pid, int[] out) {
+        Debug.MemoryInfo mem = MemInfo.getProcessMemInfo(pid);
+        if (mem == null)
+            return SOURCE_NONE;
+        out[PSS] = mem.getTotalPss();
+        out[PRIVATE_DIRTY] = mem.getTotalPrivateDirty();
+        out[SHARED_DIRTY] = mem.getTotalSharedDirty();
+        out[JAVA_HEAP] = mem.dalvikPss;
+        out[NATIVE_HEAP] = mem.nativePss;
+        return SOURCE_ACTIVITY_MANAGER;
+    }
+
+    // App Summary of dumpsys meminfo, first number of each line is Pss in KB
+    private void readMeminfo(int pid) {
+        UiAutomation automation = InstrumentationRegistry.getInstrumentation().getUiAutomation();
+        ParcelFileDescriptor pfd = automation.executeShellCommand("dumpsys meminfo " + pid);
+        if (pfd == null)
+            return;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new ParcelFileDescriptor.AutoCloseInputStream(pfd)));
+            parseMeminfo(reader);
+        } catch (IOException e) {
+            // Keep the last numbers
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Don't worry
+                }
+            }
+        }
+    }
+
+    void parseMeminfo(BufferedReader reader) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.startsWith("Java Heap:"))
+                mJavaHeap = parseFirstInt(line);
+            else if (line.startsWith("Native Heap:"))
+                mNativeHeap = parseFirstInt(line);
+            else if (line.startsWith("Graphics:"))
+                mGraphics = parseFirstInt(line);
+        }
+    }
+
+    static int parseFirstInt(String line) {
+        int i = line.indexOf(':') + 1;
+        while (i < line.length() && (line.charAt(i) < '0' || line.charAt(i) > '9'))
+            i++;
+        int value = 0;
+        while (i < line.length() && line.charAt(i) >= '0' && line.charAt(i) <= '9') {
+            value = value * 10 + (line.charAt(i) - '0');
+            i++;
+        }
+        return value;
+    }
+
+    private int read(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        int length = 0;
+        while (length < mBuffer.length) {
+            int n = file.read(mBuffer, length, mBuffer.length - length);
+            if (n < 0)
+                break;
+            length += n;
+        }
+        return length;
+    }
+
+    private static RandomAccessFile close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Don't worry
+            }
+        }
+        return null;
+    }
+
+    public void close() {
+        mRollup = close(mRollup);
+        mStatus = close(mStatus);
+        mNoRollup = false;
+        mNoStatus = false;
+        mPid = -1;
+    }
+}
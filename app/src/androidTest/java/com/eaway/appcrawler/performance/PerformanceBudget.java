@@ -0,0 +1,196 @@
+package com.eaway.appcrawler.performance;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+import com.eaway.appcrawler.common.ClickLatency;
+import com.eaway.appcrawler.common.UiHelper;
+import com.eaway.appcrawler.common.UiScreen;
+import com.eaway.appcrawler.common.UiWidget;
+import com.esotericsoftware.yamlbeans.YamlException;
+import com.esotericsoftware.yamlbeans.YamlReader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Performance budgets per activity or screen, checked on every crawl step.
+ *
+ * Budgets are read from a YAML file (Config.sBudgetFile), e.g.
+ *
+ *      budgets:
+ *        - activity: "*"                       # Every screen
+ *          maxPss: 300000                      # KB, highest PSS sample on the activity
+ *        - activity: com.example.MainActivity
+ *          maxCpu: 60                          # %, p90 of CPU samples on the activity
+ *          maxFrameP95: 32                     # ms, p95 frame time of the screen
+ *          maxClickSettle: 1000                # ms, click to the last UI change before settled
+ *        - signature: [screen signature]
+ *          maxFrameP95: 24
+ *
+ * Every budget matching the screen applies. A violation is logged as {Budget} with a screenshot and the
+ * clicks from the launch screen that reproduce it, once per budget, limit and screen. A slow click is
+ * only known after the app has left the screen, it refers to the screenshot taken when the screen was
+ * first seen instead. The test fails at the end if there is any.
+ */
+public class PerformanceBudget {
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+    private static final String ANY = "*";
+
+    private static final List<Budget> sBudgets = new ArrayList<Budget>();
+    private static final List<String> sViolations = new ArrayList<String>();
+    private static final Set<String> sReported = new HashSet<String>();
+
+    /**
+     * Limits of the matching screens, -1 if not limited
+     */
+    public static class Budget {
+        public String activity = null;
+        public String signature = null;
+        public int maxPss = -1;
+        public float maxCpu = -1;
+        public int maxFrameP95 = -1;
+        public int maxClickSettle = -1;
+
+        boolean matches(UiScreen screen) {
+            if (activity != null && !ANY.equals(activity) && !activity.equals(screen.name))
+                return false;
+            return signature == null || signature.equals(screen.signature);
+        }
+
+        @Override
+        public String toString() {
+            return (signature != null) ? "signature:" + signature : "activity:" + activity;
+        }
+    }
+
+    /**
+     * Read the budgets, no budget if the file is not there
+     */
+    @SuppressWarnings("unchecked")
+    public static synchronized void load(File file) {
+        sBudgets.clear();
+        if (!file.exists())
+            return;
+        try {
+            Object root = new YamlReader(new FileReader(file)).read();
+            Object list = (root instanceof Map) ? ((Map<String, Object>) root).get("budgets") : null;
+            if (!(list instanceof List)) {
+                FileLog.e(TAG_MAIN, "{Budget} no budgets in " + file.getPath());
+                return;
+            }
+            for (Object item : (List<Object>) list) {
+                if (item instanceof Map)
+                    sBudgets.add(parse((Map<String, Object>) item));
+            }
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (YamlException | NumberFormatException e) {
+            FileLog.e(TAG_MAIN, "{Budget} fail to read " + file.getPath() + ": " + e.getMessage());
+            sBudgets.clear();
+            return;
+        }
+        FileLog.i(TAG_MAIN, "{Budget} " + sBudgets.size() + " budgets from " + file.getPath());
+    }
+
+    static Budget parse(Map<String, Object> map) {
+        Budget budget = new Budget();
+        budget.activity = string(map, "activity");
+        budget.signature = string(map, "signature");
+        if (budget.activity == null && budget.signature == null)
+            budget.activity = ANY;
+        if (map.get("maxPss") != null)
+            budget.maxPss = Integer.parseInt(string(map, "maxPss"));
+        if (map.get("maxCpu") != null)
+            budget.maxCpu = Float.parseFloat(string(map, "maxCpu"));
+        if (map.get("maxFrameP95") != null)
+            budget.maxFrameP95 = Integer.parseInt(string(map, "maxFrameP95"));
+        if (map.get("maxClickSettle") != null)
+            budget.maxClickSettle = Integer.parseInt(string(map, "maxClickSettle"));
+        return budget;
+    }
+
+    private static String string(Map<String, Object> map, String key) {
+        Object value = map.get(key);
+        return (value == null) ? null : value.toString().trim();
+    }
+
+    /**
+     * Forget the violations of the last run, budgets are kept
+     */
+    public static synchronized void reset() {
+        sViolations.clear();
+        sReported.clear();
+    }
+
+    /**
+     * Memory, CPU and frames of the screen so far, after PerformanceMonitor.record() and JankMonitor.collect()
+     * with the same screen key
+     */
+    public static synchronized void check(UiScreen screen, String screenKey) {
+        if (sBudgets.isEmpty() || screen == null)
+            return;
+        int id = PerformanceMonitor.store.getScreenId(screenKey);
+        LogHistogram pss = PerformanceMonitor.store.getPssHistograms().get(id);
+        LogHistogram cpu = PerformanceMonitor.store.getCpuHistograms().get(id);
+        JankStats frames = JankMonitor.getScreen(screenKey);
+
+        for (Budget budget : sBudgets) {
+            if (!budget.matches(screen))
+                continue;
+            if (budget.maxPss >= 0 && pss != null && pss.getMax() > budget.maxPss)
+                violate(budget, screen, "pss", String.format("pss (KB) max:%.0f > %d", pss.getMax(), budget.maxPss));
+            if (budget.maxCpu >= 0 && cpu != null && cpu.getPercentile(90) > budget.maxCpu)
+                violate(budget, screen, "cpu", String.format("cpu (%%) p90:%.1f > %.1f",
+                        cpu.getPercentile(90), budget.maxCpu));
+            if (budget.maxFrameP95 >= 0 && frames != null && frames.getPercentile(95) > budget.maxFrameP95)
+                violate(budget, screen, "frame", String.format("frame (ms) p95:%d > %d",
+                        frames.getPercentile(95), budget.maxFrameP95));
+        }
+    }
+
+    /**
+     * The widget of the screen was clicked and the UI settled settleTime (ms) after it, -1 if unknown.
+     * For a wait cut at its learned bound settleTime is a lower bound, only a sure violation is reported.
+     */
+    public static synchronized void checkClick(UiScreen screen, UiWidget widget, long settleTime) {
+        if (sBudgets.isEmpty() || screen == null || widget == null || settleTime < 0)
+            return;
+        for (Budget budget : sBudgets) {
+            if (budget.maxClickSettle >= 0 && settleTime > budget.maxClickSettle && budget.matches(screen))
+                violate(budget, screen, "click " + widget.getDescriptor(), String.format("click %s settle (ms):%d > %d",
+                        widget.getDescriptor(), settleTime, budget.maxClickSettle), false);
+        }
+    }
+
+    private static void violate(Budget budget, UiScreen screen, String limit, String detail) {
+        violate(budget, screen, limit, detail, true);
+    }
+
+    // Without onScreen the device shows another screen now, no screenshot is taken
+    private static void violate(Budget budget, UiScreen screen, String limit, String detail, boolean onScreen) {
+        if (!sReported.add(budget.toString() + "|" + screen.id + "|" + limit))
+            return;
+        String violation = String.format("Screen[%d] %s, %s, budget %s, path: %s",
+                screen.id, screen.name, detail, budget.toString(), ClickLatency.getPath(screen));
+        if (!onScreen && screen.screenshot != null)
+            violation += ", screenshot: " + screen.screenshot;
+        sViolations.add(violation);
+        FileLog.i(TAG_MAIN, "{Budget} " + violation);
+        if (onScreen)
+            UiHelper.takeScreenshots("[BUDGET] " + limit);
+    }
+
+    static synchronized List<Budget> getBudgets() {
+        return new ArrayList<Budget>(sBudgets);
+    }
+
+    public static synchronized List<String> getViolations() {
+        return new ArrayList<String>(sViolations);
+    }
+}
@@ -1,150 +1,299 @@
 package com.eaway.appcrawler.performance;
 
-import android.app.ActivityManager;
-import android.content.Context;
-import android.support.test.InstrumentationRegistry;
 import android.util.Log;
-import android.view.accessibility.AccessibilityWindowInfo;
 
 import com.eaway.appcrawler.Config;
 import com.eaway.appcrawler.FileLog;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
 
 /**
  * CPU and Memory monitor
+ *
+ * With Config.sSampleRate > 0 samples are taken by PerformanceSampler in background, record() only
+ * marks the current screen and moves the samples into the store. Otherwise one sample is taken
+ * by record() on every crawl step.
  */
 public class PerformanceMonitor {
     private static final String TAG = Config.TAG;
     private static final String TAG_MAIN = Config.TAG_MAIN;
 
-    public static List<Integer> memList = new ArrayList<Integer>();
-    public static List<Float> cpuList = new ArrayList<Float>();
+    public static PerformanceStore store = new PerformanceStore(Config.sPerformanceRingSize);
+    public static PerformanceSampler sampler = null;
+    private static final MemSampler sMemSampler = new MemSampler(Config.sProcRoot);
+    private static final int[] sMem = new int[MemSampler.SIZE];
+    private static PidTracker sTracker = null;  // Only without background sampler
+    private static ProcReader sReader = null;
+    private static final long[] sIo = new long[ProcReader.IO_FIELDS];
+    private static int sGeneration = 0;
 
     public static Float cpuLast = 0f;
     public static Float cpuPeak = 0f;
     public static int memLast = 0;
     public static int memPeak = 0;
 
+    // Crawl step time and UI settle time in millisecond, by screen id
+    public static ScreenHistograms<Integer> stepTimes = new ScreenHistograms<Integer>(1);
+    public static ScreenHistograms<Integer> settleTimes = new ScreenHistograms<Integer>(1);
+
     public static void reset() {
-        memList.clear();
-        cpuList.clear();
+        store.reset();
+        stepTimes.clear();
+        settleTimes.clear();
         memPeak = 0;
         memLast = 0;
         cpuPeak = 0f;
         cpuLast = 0f;
     }
 
+    /**
+     * Start the statistics of a new crawl: screen ids start over, samples are still appended to the store
+     */
+    public static synchronized void resetStats() {
+        if (sampler != null) {
+            drain();
+            sampler.markScreen(-1);
+        }
+        store.resetHistograms();
+        stepTimes.clear();
+        settleTimes.clear();
+    }
+
     public static synchronized void init() {
         reset();
-        PrintWriter writer = null;
-        try {
-            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(Config.sPerformanceLog, true),"UTF-8"));
-            if (writer != null)
-                writer.print("\uFEFF"); // byte-order marker (BOM)
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (writer != null)
-                writer.close();
+        store.open(new File(Config.sOutputDir, "Performance.bin"), new File(Config.sOutputDir, "Performance.screens"),
+                new File(Config.sOutputDir, "Performance.actions"));
+        if (Config.sSampleRate > 0) {
+            sampler = new PerformanceSampler(Config.sSampleRate, Config.sPerformanceRingSize);
+            sampler.start();
+        } else {
+            sReader = new ProcReader(Config.sProcRoot);
+            sTracker = new PidTracker(sReader, Config.sTargetPackage);
+            sGeneration = 0;
         }
-        writeLog("Time,CPU%,Memory(KB),Screen");
     }
 
-    public static synchronized void writeLog(String str) {
-        PrintWriter writer = null;
+    /**
+     * Stop sampling and restart accounting while the app is killed on purpose, e.g. by LaunchBenchmark
+     */
+    public static synchronized void pause() {
+        if (sampler != null)
+            sampler.stop();
+        PidTracker tracker = getTracker();
+        if (tracker != null)
+            tracker.pause();
+    }
+
+    public static synchronized void resume() {
+        PidTracker tracker = getTracker();
+        if (tracker != null)
+            tracker.resume();
+        if (sampler != null)
+            sampler.start();
+    }
+
+    /**
+     * Close the store and export it to Config.sPerformanceLog, and a downsampled CSV for long runs
+     */
+    public static synchronized void finish() {
+        if (sampler != null) {
+            sampler.stop();
+            drain();
+            FileLog.i(TAG_MAIN, "Performance sampler " + sampler.toString());
+            logThreadCpu(sampler.getThreads());
+            sampler = null;
+        }
+        store.close();
+        File bin = new File(Config.sOutputDir, "Performance.bin");
+        File screens = new File(Config.sOutputDir, "Performance.screens");
+        File actions = new File(Config.sOutputDir, "Performance.actions");
+        if (!bin.exists())
+            return;
         try {
-            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(Config.sPerformanceLog, true),"UTF-8"));
-            if (writer != null)
-                writer.print(str + "\r\n");
+            PerformanceStore.exportCsv(bin, screens, actions, new File(Config.sPerformanceLog), 0);
+            if (store.getCount() > Config.sPerformanceCsvRows)
+                PerformanceStore.exportCsv(bin, screens, actions, new File(Config.sOutputDir, "Performance_downsampled.csv"),
+                        Config.sPerformanceCsvRows);
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (writer != null)
-                writer.close();
+            Log.e(TAG, "Fail to export performance log: " + e.getMessage());
         }
     }
 
-    public static Float getAverageCpu() {
-        if (cpuList.size() == 0)
-            return 0f;
+    // Top threads and thread groups of every screen, busiest screen first
+    private static void logThreadCpu(ThreadCpuSampler threads) {
+        if (threads == null)
+            return;
+        for (ThreadCpuSampler.ScreenCpu screen : threads.getScreens()) {
+            String name = (screen.screenId < 0) ? "(none)" : store.getScreenName(screen.screenId);
+            FileLog.i(TAG_MAIN, String.format("{ThreadCpu} screen:%s, total (ms):%d, threads: %s; groups: %s",
+                    name, screen.total * ThreadCpuSampler.MS_PER_JIFFY,
+                    ThreadCpuSampler.top(screen.threads, screen.total, Config.sTopThreads),
+                    ThreadCpuSampler.top(screen.groups, screen.total, Config.sTopThreads)));
+        }
+    }
+
+    /**
+     * One crawl step on the screen is done, settleTime < 0 if the crawler does not wait for settle
+     */
+    public static synchronized void recordStep(String screen, long stepTime, long settleTime) {
+        int id = store.getScreenId(screen);
+        stepTimes.add(id, stepTime);
+        if (settleTime >= 0)
+            settleTimes.add(id, settleTime);
+    }
 
-        Float total = 0f;
-        Float average = 0f;
-        for (int i = 0; i < cpuList.size(); i++) {
-            total += cpuList.get(i);
+    /**
+     * Percentiles of CPU, memory, step and settle time for the whole run, then per screen
+     */
+    public static synchronized void logStats() {
+        ScreenHistograms<Integer> cpu = store.getCpuHistograms();
+        ScreenHistograms<Integer> pss = store.getPssHistograms();
+        FileLog.i(TAG_MAIN, "{Stats} cpu (%) " + cpu.getTotal().toString());
+        FileLog.i(TAG_MAIN, "{Stats} memory total pss (KB) " + pss.getTotal().toString());
+        FileLog.i(TAG_MAIN, "{Stats} step (ms) " + stepTimes.getTotal().toString());
+        FileLog.i(TAG_MAIN, "{Stats} settle (ms) " + settleTimes.getTotal().toString());
+
+        Set<Integer> screens = new TreeSet<Integer>(cpu.getScreens().keySet());
+        screens.addAll(stepTimes.getScreens().keySet());
+        for (Integer id : screens) {
+            FileLog.i(TAG_MAIN, "{Stats} screen:" + ((id < 0) ? "(none)" : store.getScreenName(id)) +
+                    "; cpu (%) " + format(cpu.get(id)) +
+                    "; pss (KB) " + format(pss.get(id)) +
+                    "; step (ms) " + format(stepTimes.get(id)) +
+                    "; settle (ms) " + format(settleTimes.get(id)));
         }
-        average = total / cpuList.size();
-        return average;
+    }
+
+    private static String format(LogHistogram histogram) {
+        return (histogram == null) ? "count:0" : histogram.toString();
+    }
+
+    public static Float getAverageCpu() {
+        return store.getAverageCpu();
     }
 
     public static int getAverageMemory() {
-        if (memList.size() == 0)
-            return 0;
+        return store.getAveragePss();
+    }
 
-        int total = 0;
-        int average = 0;
-        for (int i = 0; i < memList.size(); i++) {
-            total += memList.get(i);
-        }
-        average = total / memList.size();
-        return average;
+    /**
+     * The crawler is about to do the action, following samples are tagged with it
+     */
+    public static synchronized void markAction(String action) {
+        TraceWriter.instant(action);
+        if (sampler != null)
+            sampler.markAction(store.getActionId(action));
+        PidTracker tracker = getTracker();
+        if (tracker != null)
+            tracker.setLastAction(action);
     }
 
-    public static boolean record(String msg) {
-        List<AccessibilityWindowInfo> list = InstrumentationRegistry.getInstrumentation().getUiAutomation().getWindows();
-        for (AccessibilityWindowInfo win : list) {
-            Log.i(TAG_MAIN, win.getClass().getName());
-            Log.i(TAG_MAIN, win.getClass().getSimpleName());
-            Log.i(TAG_MAIN, win.getClass().toString());
+    private static PidTracker getTracker() {
+        return (sampler != null) ? sampler.getTracker() : sTracker;
+    }
+
+    /**
+     * Pid of the target process as last seen by the sampler or the last record(), -1 if none
+     */
+    public static synchronized int getPid() {
+        PidTracker tracker = getTracker();
+        return (tracker == null) ? -1 : tracker.peekPid();
+    }
+
+    /**
+     * Times the target process was found restarted
+     */
+    public static synchronized int getRestarts() {
+        PidTracker tracker = getTracker();
+        return (tracker == null) ? 0 : tracker.getRestarts();
+    }
+
+    /**
+     * The crawler is in the screen now: mark it, and take one sample if there is no background sampler.
+     * msg is the screen key "Screen[id] name", same as JankMonitor and IoMonitor.
+     */
+    public static synchronized boolean record(String msg) {
+        if (sampler == null)
+            return sample(msg);
+
+        TraceWriter.instant(msg);
+        sampler.markScreen(store.getScreenId(msg));
+        sampler.markAction(-1);
+        if (drain() > 0) {
+            FileLog.i(TAG_MAIN, String.format("{Performance} package:%s, cpu:%.1f%%, memory total pss (KB):%d" +
+                            ", samples:%d",
+                    Config.sTargetPackage, cpuLast, memLast, store.getCount()));
         }
+        return true;
+    }
 
-        Context context = InstrumentationRegistry.getContext();
-        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-
-        List<ActivityManager.RunningAppProcessInfo> appList = am.getRunningAppProcesses();
-        for (ActivityManager.RunningAppProcessInfo app : appList) {
-            if (0 == Config.sTargetPackage.compareToIgnoreCase(app.processName)) {
-                // CPU
-                cpuLast = CpuInfo.getProcessCpuRate(app.pid);
-                cpuList.add(cpuLast);
-                if (cpuLast > cpuPeak)
-                    cpuPeak = cpuLast;
-
-                // Memory
-                android.os.Debug.MemoryInfo mem = MemInfo.getProcessMemInfo(app.pid);
-                memLast = mem.getTotalPss();
-                memList.add(memLast);
-                if (mem.getTotalPss() > memPeak)
-                    memPeak = mem.getTotalPss();
-
-                String log = String.format("{Performance} package:%s, cpu:%.1f%%" +
-                                ", memory total pss (KB):%d, total private dirty (KB):%d, total shared (KB):%d" +
-                                ", dalvik private:%d, dalvik shared:%d, dalvik pss:%d" +
-                                ", native private:%d, native shared:%d, native pss:%d" +
-                                ", others private:%d, others shared:%d, others pss:%d",
-                        app.processName, cpuLast,
-                        mem.getTotalPss(), mem.getTotalPrivateDirty(), mem.getTotalSharedDirty(),
-                        mem.dalvikPrivateDirty, mem.dalvikSharedDirty, mem.dalvikPss,
-                        mem.nativePrivateDirty, mem.nativeSharedDirty, mem.nativePss,
-                        mem.otherPrivateDirty, mem.otherSharedDirty, mem.otherPss);
-                FileLog.i(TAG_MAIN, log);
-
-                // Performance log
-                SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss");
-                writeLog(String.format("%s,%.1f%%,%d,%s", sdf.format(new Date()), cpuLast, memLast, msg));
-
-                break;
+    // Move samples from the sampler into the store, update last and peak values
+    private static int drain() {
+        int count = sampler.drain(store);
+        if (count > 0) {
+            int last = store.size() - 1;
+            for (int i = Math.max(0, store.size() - count); i <= last; i++) {
+                trace(store.getTime(i), store.getCpu(i), store.getPss(i));
             }
+            cpuLast = store.getCpu(last);
+            memLast = store.getPss(last);
+            cpuPeak = store.getCpuPeak();
+            memPeak = store.getPssPeak();
+        }
+        return count;
+    }
+
+    private static void trace(long time, float cpu, int pss) {
+        TraceWriter.counter("cpu (%)", time, cpu);
+        TraceWriter.counter("pss (KB)", time, pss);
+    }
+
+    private static boolean sample(String msg) {
+        long now = System.currentTimeMillis();
+        int pid = (sTracker == null) ? -1 : sTracker.getPid(now);
+        if (pid < 0)
+            return true;
+        if (sTracker.getGeneration() != sGeneration) {
+            // New process, drop the baselines of the old one
+            sGeneration = sTracker.getGeneration();
+            CpuInfo.reset();
+            sMemSampler.close();
         }
 
+        // CPU
+        cpuLast = CpuInfo.getProcessCpuRate(pid);
+        if (cpuLast > cpuPeak)
+            cpuPeak = cpuLast;
+
+        // Memory
+        sMemSampler.sample(pid, sMem, now);
+        memLast = sMem[MemSampler.PSS];
+        if (memLast > memPeak)
+            memPeak = memLast;
+
+        String log = String.format("{Performance} package:%s, cpu:%.1f%%" +
+                        ", memory total pss (KB):%d, rss:%d, total private dirty (KB):%d, total shared (KB):%d" +
+                        ", java heap pss:%d, native heap pss:%d, graphics pss:%d, others pss:%d",
+                Config.sTargetPackage, cpuLast,
+                memLast, sMem[MemSampler.RSS], sMem[MemSampler.PRIVATE_DIRTY],
+                sMem[MemSampler.SHARED_DIRTY], sMem[MemSampler.JAVA_HEAP],
+                sMem[MemSampler.NATIVE_HEAP], sMem[MemSampler.GRAPHICS], sMem[MemSampler.OTHER]);
+        FileLog.i(TAG_MAIN, log);
+        TraceWriter.instant(msg);
+        trace(now, cpuLast, memLast);
+
+        // Performance log
+        boolean io = sReader.readProcessIo(pid, sIo);
+        store.append(now, cpuLast, memLast,
+                sMem[MemSampler.PRIVATE_DIRTY], sMem[MemSampler.SHARED_DIRTY],
+                sMem[MemSampler.JAVA_HEAP], sMem[MemSampler.NATIVE_HEAP], sMem[MemSampler.OTHER],
+                store.getScreenId(msg), -1,
+                io ? sIo[ProcReader.IO_READ_BYTES] : -1, io ? sIo[ProcReader.IO_WRITE_BYTES] : -1,
+                IoMonitor.getRxBytes(), IoMonitor.getTxBytes());
+
         return true;
     }
 
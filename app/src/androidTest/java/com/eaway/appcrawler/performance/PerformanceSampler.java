@@ -0,0 +1,244 @@
+package com.eaway.appcrawler.performance;
+
+import android.os.Debug;
+
+import com.eaway.appcrawler.Config;
+
+/**
+ * Sample CPU and memory of the target app at a fixed rate, in its own thread.
+ *
+ * The crawl thread only publishes markers (current screen id, current action id), every sample is
+ * tagged with the markers at the time it is taken. Samples go into a single producer / single
+ * consumer ring without lock: the sampler is the only writer of mHead, the crawl thread (drain())
+ * is the only writer of mTail. When the ring is full new samples are dropped and counted.
+ *
+ * CPU is sampled every period, memory (MemSampler, /proc/[pid]/smaps_rollup), disk and network bytes
+ * every Config.sMemorySampleInterval and repeated in between.
+ */
+public class PerformanceSampler implements Runnable {
+    private final long mPeriod;
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final float[] mCpus;
+    private final int[][] mMems;    // pss, private dirty, shared dirty, dalvik pss, native pss, other pss
+    private final long[][] mBytes;  // disk read, disk write, net rx, net tx
+    private final int[] mScreenIds;
+    private final int[] mActionIds;
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+
+    private volatile int mScreenId = -1;
+    private volatile int mActionId = -1;
+    private volatile boolean mRunning = false;
+    private Thread mThread = null;
+
+    // Sampler thread only
+    private final ProcReader mReader = new ProcReader(Config.sProcRoot);
+    private final PidTracker mTracker = new PidTracker(mReader, Config.sTargetPackage);
+    private int mGeneration = 0;
+    private long mTotalCpuTime = -1;
+    private long mProcessCpuTime = -1;
+    private long mMemTime = 0;
+    private final MemSampler mMemSampler = new MemSampler(Config.sProcRoot);
+    private final int[] mMem = new int[MemSampler.SIZE];
+    private final int[] mMemSources = new int[4];
+    private final long[] mIo = new long[ProcReader.IO_FIELDS];
+    private final long[] mByte = {-1, -1, -1, -1};
+    private final ThreadCpuSampler mThreads;
+    private long mThreadTime = 0;
+
+    // Metrics
+    private volatile long mSamples = 0;
+    private volatile long mOverflows = 0;
+    private volatile long mCpuNanos = 0;    // CPU time of the sampler threads, one per start()
+    private long mStartTime = 0;
+
+    public PerformanceSampler(int rate, int capacity) {
+        mPeriod = Math.max(1, 1000 / Math.max(1, rate));
+        mCapacity = Math.max(2, capacity);
+        mTimes = new long[mCapacity];
+        mCpus = new float[mCapacity];
+        mMems = new int[mCapacity][6];
+        mBytes = new long[mCapacity][4];
+        mScreenIds = new int[mCapacity];
+        mActionIds = new int[mCapacity];
+        mThreads = (Config.sThreadSampleInterval > 0) ? new ThreadCpuSampler(Config.sProcRoot) : null;
+    }
+
+    public synchronized void start() {
+        if (mRunning)
+            return;
+        mRunning = true;
+        if (mStartTime == 0)
+            mStartTime = System.currentTimeMillis();
+        mThread = new Thread(this, "PerformanceSampler");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        mRunning = false;
+        if (mThread == null)
+            return;
+        mThread.interrupt();
+        try {
+            mThread.join(1000);
+        } catch (InterruptedException e) {
+            // Don't worry
+        }
+        mThread = null;
+    }
+
+    public void markScreen(int screenId) {
+        mScreenId = screenId;
+    }
+
+    public void markAction(int actionId) {
+        mActionId = actionId;
+    }
+
+    @Override
+    public void run() {
+        long next = System.currentTimeMillis();
+        long previous = mCpuNanos;  // Threads before a stop() and start()
+        while (mRunning) {
+            sample();
+            mCpuNanos = previous + Debug.threadCpuTimeNanos();
+
+            // Fixed rate, a late sample does not shift the following ones
+            next += mPeriod;
+            long wait = next - System.currentTimeMillis();
+            if (wait <= 0) {
+                next = System.currentTimeMillis();
+                continue;
+            }
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        mReader.close();
+        mMemSampler.close();
+        if (mThreads != null)
+            mThreads.close();
+        mCpuNanos = previous + Debug.threadCpuTimeNanos();
+    }
+
+    private void sample() {
+        long now = System.currentTimeMillis();
+        int pid = mTracker.getPid(now);
+        if (pid < 0)
+            return;
+        if (mTracker.getGeneration() != mGeneration) {
+            // New process, baselines and open files of the old one are no good
+            mGeneration = mTracker.getGeneration();
+            mTotalCpuTime = -1;
+            mMemTime = 0;
+            mMemSampler.close();
+            if (mThreads != null)
+                mThreads.reset();
+            mByte[0] = -1;
+            mByte[1] = -1;
+        }
+
+        long total = mReader.readTotalCpuTime();
+        long process = mTracker.getCpuTime();
+        if (total < 0 || process < 0)
+            return;
+        float cpu = -1f;
+        if (mTotalCpuTime >= 0 && total > mTotalCpuTime)
+            cpu = 100f * (process - mProcessCpuTime) / (total - mTotalCpuTime);
+        mTotalCpuTime = total;
+        mProcessCpuTime = process;
+        if (cpu < 0)
+            return; // First sample is only the baseline
+
+        if (now - mMemTime >= Config.sMemorySampleInterval) {
+            mMemTime = now;
+            mMemSources[mMemSampler.sample(pid, mMem, now)]++;
+            boolean io = mReader.readProcessIo(pid, mIo);
+            mByte[0] = io ? mIo[ProcReader.IO_READ_BYTES] : -1;
+            mByte[1] = io ? mIo[ProcReader.IO_WRITE_BYTES] : -1;
+            mByte[2] = IoMonitor.getRxBytes();
+            mByte[3] = IoMonitor.getTxBytes();
+        }
+
+        if (mThreads != null && now - mThreadTime >= Config.sThreadSampleInterval) {
+            mThreadTime = now;
+            mThreads.sample(pid, mScreenId, now);
+        }
+
+        long head = mHead;
+        if (head - mTail >= mCapacity) {
+            mOverflows++;
+            return;
+        }
+        int i = (int) (head % mCapacity);
+        mTimes[i] = now;
+        mCpus[i] = cpu;
+        System.arraycopy(mMem, 0, mMems[i], 0, 6);
+        System.arraycopy(mByte, 0, mBytes[i], 0, 4);
+        mScreenIds[i] = mScreenId;
+        mActionIds[i] = mActionId;
+        mHead = head + 1; // Publish
+        mSamples++;
+    }
+
+    /**
+     * Move all published samples into the store, call from one thread only.
+     * Return the number of samples moved.
+     */
+    public int drain(PerformanceStore store) {
+        long tail = mTail;
+        long head = mHead;
+        int count = 0;
+        while (tail < head) {
+            int i = (int) (tail % mCapacity);
+            int[] mem = mMems[i];
+            long[] bytes = mBytes[i];
+            store.append(mTimes[i], mCpus[i], mem[0], mem[1], mem[2], mem[3], mem[4], mem[5],
+                    mScreenIds[i], mActionIds[i], bytes[0], bytes[1], bytes[2], bytes[3]);
+            tail++;
+            count++;
+        }
+        mTail = tail; // Free the slots
+        return count;
+    }
+
+    public PidTracker getTracker() {
+        return mTracker;
+    }
+
+    /**
+     * Per thread CPU of each screen, null if disabled. Only read it after stop().
+     */
+    public ThreadCpuSampler getThreads() {
+        return mThreads;
+    }
+
+    public long getSamples() {
+        return mSamples;
+    }
+
+    public long getOverflows() {
+        return mOverflows;
+    }
+
+    /**
+     * Own cost: CPU time of the sampler thread in millisecond
+     */
+    public long getCpuTime() {
+        return mCpuNanos / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - mStartTime);
+        return String.format("samples:%d, overflows:%d, sampler cpu (ms):%d, %.2f%% of one core" +
+                        ", memory from smaps_rollup:%d, status:%d, activity manager:%d, failed:%d",
+                mSamples, mOverflows, getCpuTime(), 100f * getCpuTime() / elapsed,
+                mMemSources[MemSampler.SOURCE_SMAPS_ROLLUP], mMemSources[MemSampler.SOURCE_STATUS],
+                mMemSources[MemSampler.SOURCE_ACTIVITY_MANAGER], mMemSources[MemSampler.SOURCE_NONE]);
+    }
+}
@@ -0,0 +1,445 @@
+package com.eaway.appcrawler.performance;
+
+import android.util.Log;
+
+import com.eaway.appcrawler.Config;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only binary time series of performance samples.
+ *
+ * File layout, big endian:
+ *      Header: magic "ACPS", version, record size, start time
+ *      Record: time, cpu, total pss, private dirty, shared dirty, dalvik pss, native pss, other pss,
+ *              screen id, action id, disk read bytes, disk write bytes, net rx bytes, net tx bytes
+ * Disk and network bytes are counters since process start and boot, -1 if unknown.
+ * Records are put into a preallocated buffer and written to the file kept open when the buffer is full
+ * or flush() is called. Screen and action names are kept in text files next to it, one "id,name" per line.
+ *
+ * The latest samples are also kept in memory, in a ring of primitive arrays (Config.sPerformanceRingSize),
+ * while averages, peaks and per screen histograms of CPU and PSS are accumulated over the whole run.
+ */
+public class PerformanceStore {
+    private static final String TAG = Config.TAG;
+
+    public static final int MAGIC = 0x41435053; // "ACPS"
+    public static final int VERSION = 3;    // 2: action id, 3: disk and network bytes
+    public static final int HEADER_SIZE = 4 + 4 + 4 + 8;
+    public static final int RECORD_SIZE = 8 + 4 + 4 * 8 + 8 * 4;
+    private static final int RECORD_SIZE_V1 = 8 + 4 + 4 * 7;
+    private static final int RECORD_SIZE_V2 = 8 + 4 + 4 * 8;
+    private static final int BUFFER_RECORDS = 64;
+
+    private FileChannel mChannel = null;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(RECORD_SIZE * BUFFER_RECORDS);
+    private final NameTable mScreens = new NameTable();
+    private final NameTable mActions = new NameTable();
+
+    // Ring of the latest samples
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final float[] mCpus;
+    private final int[] mPsses;
+    private final int[] mScreenIds;
+    private final int[] mActionIds;
+    private int mNext = 0;
+
+    // Whole run
+    private int mCount = 0;
+    private double mCpuTotal = 0;
+    private long mPssTotal = 0;
+    private float mCpuPeak = 0f;
+    private int mPssPeak = 0;
+    private final ScreenHistograms<Integer> mCpuHistograms = new ScreenHistograms<Integer>(10);
+    private final ScreenHistograms<Integer> mPssHistograms = new ScreenHistograms<Integer>(1);
+
+    public PerformanceStore(int capacity) {
+        mCapacity = Math.max(1, capacity);
+        mTimes = new long[mCapacity];
+        mCpus = new float[mCapacity];
+        mPsses = new int[mCapacity];
+        mScreenIds = new int[mCapacity];
+        mActionIds = new int[mCapacity];
+    }
+
+    // Name to id, each name is saved to file the first time it is seen
+    private static class NameTable {
+        private final Map<String, Integer> mIds = new HashMap<String, Integer>();
+        private final List<String> mNames = new ArrayList<String>();
+        private PrintWriter mWriter = null;
+
+        void open(File file) throws IOException {
+            mWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, false), "UTF-8"));
+            for (Map.Entry<String, Integer> entry : mIds.entrySet()) {
+                mWriter.print(entry.getValue() + "," + entry.getKey() + "\n");
+            }
+            mWriter.flush();
+        }
+
+        int getId(String name) {
+            if (name == null)
+                name = "";
+            Integer id = mIds.get(name);
+            if (id != null)
+                return id;
+            id = mIds.size();
+            mIds.put(name, id);
+            mNames.add(name);
+            if (mWriter != null) {
+                mWriter.print(id + "," + name + "\n");
+                mWriter.flush();
+            }
+            return id;
+        }
+
+        String getName(int id) {
+            return (id >= 0 && id < mNames.size()) ? mNames.get(id) : "";
+        }
+
+        void close() {
+            if (mWriter != null)
+                mWriter.close();
+            mWriter = null;
+        }
+
+        void clear() {
+            mIds.clear();
+            mNames.clear();
+        }
+    }
+
+    /**
+     * Create the binary file and the name files, any old one is replaced
+     */
+    public synchronized void open(File file, File screenFile, File actionFile) {
+        close();
+        try {
+            mChannel = new FileOutputStream(file, false).getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putLong(System.currentTimeMillis());
+            header.flip();
+            mChannel.write(header);
+            mScreens.open(screenFile);
+            mActions.open(actionFile);
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to open performance store: " + e.getMessage());
+            close();
+        }
+    }
+
+    public synchronized int getScreenId(String name) {
+        return mScreens.getId(name);
+    }
+
+    public synchronized String getScreenName(int id) {
+        return mScreens.getName(id);
+    }
+
+    public synchronized int getActionId(String name) {
+        return mActions.getId(name);
+    }
+
+    public synchronized void append(long time, float cpu, int pss, int privateDirty, int sharedDirty,
+                                    int dalvikPss, int nativePss, int otherPss, int screenId, int actionId,
+                                    long readBytes, long writeBytes, long rxBytes, long txBytes) {
+        mTimes[mNext] = time;
+        mCpus[mNext] = cpu;
+        mPsses[mNext] = pss;
+        mScreenIds[mNext] = screenId;
+        mActionIds[mNext] = actionId;
+        mNext = (mNext + 1) % mCapacity;
+
+        mCount++;
+        mCpuTotal += cpu;
+        mPssTotal += pss;
+        if (cpu > mCpuPeak)
+            mCpuPeak = cpu;
+        if (pss > mPssPeak)
+            mPssPeak = pss;
+        mCpuHistograms.add(screenId, cpu);
+        mPssHistograms.add(screenId, pss);
+
+        if (mChannel == null)
+            return;
+        mBuffer.putLong(time).putFloat(cpu).putInt(pss).putInt(privateDirty).putInt(sharedDirty)
+                .putInt(dalvikPss).putInt(nativePss).putInt(otherPss).putInt(screenId).putInt(actionId)
+                .putLong(readBytes).putLong(writeBytes).putLong(rxBytes).putLong(txBytes);
+        if (mBuffer.remaining() < RECORD_SIZE)
+            flush();
+    }
+
+    public synchronized void flush() {
+        if (mChannel == null || mBuffer.position() == 0)
+            return;
+        mBuffer.flip();
+        try {
+            while (mBuffer.hasRemaining())
+                mChannel.write(mBuffer);
+        } catch (IOException e) {
+            Log.e(TAG, "Fail to write performance store: " + e.getMessage());
+        }
+        mBuffer.clear();
+    }
+
+    public synchronized void close() {
+        flush();
+        try {
+            if (mChannel != null)
+                mChannel.close();
+        } catch (IOException e) {
+            // Don't worry
+        }
+        mScreens.close();
+        mActions.close();
+        mChannel = null;
+        mBuffer.clear();
+    }
+
+    public synchronized void reset() {
+        mNext = 0;
+        mCount = 0;
+        mCpuTotal = 0;
+        mPssTotal = 0;
+        mCpuPeak = 0f;
+        mPssPeak = 0;
+        mCpuHistograms.clear();
+        mPssHistograms.clear();
+        mScreens.clear();
+        mActions.clear();
+    }
+
+    /**
+     * Forget the per screen histograms of the last crawl, records and names are kept
+     */
+    public synchronized void resetHistograms() {
+        mCpuHistograms.clear();
+        mPssHistograms.clear();
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Number of samples still in memory
+     */
+    public synchronized int size() {
+        return Math.min(mCount, mCapacity);
+    }
+
+    // Samples in memory, i = 0 is the oldest one
+    private int ringIndex(int i) {
+        return (mCount <= mCapacity) ? i : (mNext + i) % mCapacity;
+    }
+
+    public synchronized long getTime(int i) {
+        return mTimes[ringIndex(i)];
+    }
+
+    public synchronized float getCpu(int i) {
+        return mCpus[ringIndex(i)];
+    }
+
+    public synchronized int getPss(int i) {
+        return mPsses[ringIndex(i)];
+    }
+
+    public synchronized int getSampleScreenId(int i) {
+        return mScreenIds[ringIndex(i)];
+    }
+
+    public synchronized int getSampleActionId(int i) {
+        return mActionIds[ringIndex(i)];
+    }
+
+    public synchronized float getAverageCpu() {
+        return (mCount == 0) ? 0f : (float) (mCpuTotal / mCount);
+    }
+
+    public synchronized int getAveragePss() {
+        return (mCount == 0) ? 0 : (int) (mPssTotal / mCount);
+    }
+
+    public synchronized float getCpuPeak() {
+        return mCpuPeak;
+    }
+
+    public synchronized int getPssPeak() {
+        return mPssPeak;
+    }
+
+    /**
+     * CPU percent by screen id, one decimal
+     */
+    public synchronized ScreenHistograms<Integer> getCpuHistograms() {
+        return mCpuHistograms;
+    }
+
+    /**
+     * Total PSS in KB by screen id
+     */
+    public synchronized ScreenHistograms<Integer> getPssHistograms() {
+        return mPssHistograms;
+    }
+
+    /**
+     * Export to the CSV format of the old Performance.csv plus the action and the disk and network KB since
+     * the previous row: Time,CPU%,Memory(KB),Screen,Action,Disk read(KB),Disk write(KB),Net rx(KB),Net tx(KB).
+     * If maxRows > 0 and there are more records, every bucket of records is one row:
+     * time of the first record, average CPU, peak memory, screen and action of the last record.
+     */
+    public static void exportCsv(File file, File screenFile, File actionFile, File csv, int maxRows) throws IOException {
+        List<String> screens = readNames(screenFile);
+        List<String> actions = readNames(actionFile);
+        long records = (file.length() - HEADER_SIZE) / readHeader(file);
+        long bucket = (maxRows > 0 && records > maxRows) ? (records + maxRows - 1) / maxRows : 1;
+
+        SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss");
+        DataInputStream in = null;
+        PrintWriter writer = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+            int recordSize = readHeader(in);
+            writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(csv, false), "UTF-8"));
+            writer.print("\uFEFF"); // byte-order marker (BOM)
+            writer.print("Time,CPU%,Memory(KB),Screen,Action,Disk read(KB),Disk write(KB),Net rx(KB),Net tx(KB)\r\n");
+
+            long first = 0;
+            double cpuTotal = 0;
+            int pssPeak = 0;
+            int screenId = 0;
+            int actionId = -1;
+            long[] bytes = {-1, -1, -1, -1};
+            long[] lastBytes = {-1, -1, -1, -1};
+            int n = 0;
+            while (true) {
+                long time;
+                float cpu;
+                int pss;
+                try {
+                    time = in.readLong();
+                    cpu = in.readFloat();
+                    pss = in.readInt();
+                    in.skipBytes(4 * 5);
+                    screenId = in.readInt();
+                    int read = RECORD_SIZE_V1;
+                    if (recordSize >= RECORD_SIZE_V2) {
+                        actionId = in.readInt();
+                        read = RECORD_SIZE_V2;
+                    }
+                    if (recordSize >= RECORD_SIZE) {
+                        for (int i = 0; i < bytes.length; i++) {
+                            bytes[i] = in.readLong();
+                        }
+                        read = RECORD_SIZE;
+                    }
+                    in.skipBytes(recordSize - read);
+                } catch (EOFException e) {
+                    break; // Last record not written completely
+                }
+
+                if (n == 0) {
+                    first = time;
+                    cpuTotal = 0;
+                    pssPeak = 0;
+                }
+                cpuTotal += cpu;
+                pssPeak = Math.max(pssPeak, pss);
+                if (++n == bucket) {
+                    writeRow(writer, sdf, first, (float) (cpuTotal / n), pssPeak, name(screens, screenId), name(actions, actionId),
+                            bytes, lastBytes);
+                    n = 0;
+                }
+            }
+            if (n > 0)
+                writeRow(writer, sdf, first, (float) (cpuTotal / n), pssPeak, name(screens, screenId), name(actions, actionId),
+                        bytes, lastBytes);
+        } finally {
+            if (in != null)
+                in.close();
+            if (writer != null)
+                writer.close();
+        }
+    }
+
+    // Bytes are counters, the row has the KB since the previous row, lastBytes is updated
+    private static void writeRow(PrintWriter writer, SimpleDateFormat sdf, long time, float cpu, int pss,
+                                 String screen, String action, long[] bytes, long[] lastBytes) {
+        writer.print(String.format("%s,%.1f%%,%d,%s,\"%s\"", sdf.format(new Date(time)), cpu, pss, screen,
+                action.replace("\"", "\"\"")));
+        for (int i = 0; i < bytes.length; i++) {
+            // Unknown, or counter reset by a process restart
+            long delta = (bytes[i] < 0 || lastBytes[i] < 0 || bytes[i] < lastBytes[i]) ? 0 : bytes[i] - lastBytes[i];
+            writer.print("," + delta / 1024);
+            lastBytes[i] = bytes[i];
+        }
+        writer.print("\r\n");
+    }
+
+    private static String name(List<String> names, int id) {
+        return (id >= 0 && id < names.size()) ? names.get(id) : "";
+    }
+
+    // Return record size
+    private static int readHeader(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            return readHeader(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a performance store");
+        int version = in.readInt();
+        int recordSize = in.readInt();
+        in.readLong();
+        if (version < 1 || recordSize < RECORD_SIZE_V1)
+            throw new IOException("Unknown performance store version: " + version);
+        return recordSize;
+    }
+
+    private static List<String> readNames(File file) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if (file == null || !file.exists())
+            return names;
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int comma = line.indexOf(',');
+                if (comma < 0)
+                    continue;
+                int id = Integer.parseInt(line.substring(0, comma));
+                while (names.size() <= id)
+                    names.add("");
+                names.set(id, line.substring(comma + 1));
+            }
+        } finally {
+            reader.close();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,152 @@
+package com.eaway.appcrawler.performance;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.FileLog;
+
+import java.util.List;
+
+/**
+ * Pid of the target process, cached and checked cheaply on every call.
+ *
+ * The process is identified by pid and start time (field 22 of /proc/[pid]/stat), so a pid reused by
+ * another process is not taken for the same one. The check reads utime .. starttime of the stat file
+ * kept open by the ProcReader, the CPU time comes with it for free. ActivityManager is only asked
+ * again when the process is gone, not more often than every RESOLVE_INTERVAL.
+ *
+ * Every new process gets a new generation, anyone keeping per process baselines (CPU time, open /proc
+ * files) should reset them when it changes. A new process after the first one is a restart, logged
+ * with the last action before it as {Restart}: most of the time the app crashed. Between pause() and
+ * the first process found after resume() the app is expected to be killed (launch benchmark), a new
+ * process is then neither logged nor counted as a restart.
+ */
+public class PidTracker {
+    private static final String TAG_MAIN = Config.TAG_MAIN;
+    private static final long RESOLVE_INTERVAL = 1000;
+
+    private final ProcReader mReader;
+    private final String mPackage;
+    private final long[] mFields = new long[9]; // utime, stime, cutime, cstime, ..., starttime
+    private int mPid = -1;
+    private long mStartTime = -1;
+    private long mCpuTime = -1;
+    private long mResolveTime = -RESOLVE_INTERVAL;
+    private int mLastPid = -1;
+    private volatile int mGeneration = 0;
+    private volatile int mRestarts = 0;
+    private volatile String mLastAction = "";
+    private boolean mPaused = false;
+    private boolean mQuiet = false;     // Paused since the last process was found
+
+    public PidTracker(ProcReader reader, String pkg) {
+        mReader = reader;
+        mPackage = pkg;
+    }
+
+    /**
+     * The action just done, a restart found after it is blamed on it
+     */
+    public void setLastAction(String action) {
+        mLastAction = (action == null) ? "" : action;
+    }
+
+    /**
+     * Stop restart accounting, the process is going to be killed on purpose
+     */
+    public synchronized void pause() {
+        mPaused = true;
+        mQuiet = true;
+    }
+
+    /**
+     * Count restarts again, from the next process found
+     */
+    public synchronized void resume() {
+        mPaused = false;
+    }
+
+    /**
+     * Pid of the live target process, -1 if there is none
+     */
+    public synchronized int getPid(long now) {
+        if (mPid >= 0) {
+            if (readStat(mPid) && mFields[8] == mStartTime) {
+                if (!mPaused)
+                    mQuiet = false;
+                return mPid;
+            }
+            if (!mQuiet)
+                FileLog.i(TAG_MAIN, "{Died} package:" + mPackage + ", pid:" + mPid + ", last action:" + mLastAction);
+            mLastPid = mPid;
+            mPid = -1;
+            mResolveTime = now - RESOLVE_INTERVAL; // Look for the new one right now
+        }
+        if (now - mResolveTime < RESOLVE_INTERVAL)
+            return -1;
+        mResolveTime = now;
+
+        int pid = findPid(mPackage);
+        if (pid < 0 || !readStat(pid))
+            return -1;
+        mPid = pid;
+        mStartTime = mFields[8];
+        if (mGeneration > 0 && !mQuiet) {
+            mRestarts++;
+            FileLog.i(TAG_MAIN, "{Restart} package:" + mPackage + ", pid:" + mLastPid + " -> " + pid +
+                    ", restarts:" + mRestarts + ", last action:" + mLastAction);
+        }
+        mGeneration++;
+        if (!mPaused)
+            mQuiet = false;
+        return mPid;
+    }
+
+    private boolean readStat(int pid) {
+        // utime is field 14 of proc(5), starttime is 22
+        if (mReader.readProcessStat(pid, 14, mFields, 9) < 9)
+            return false;
+        mCpuTime = mFields[0] + mFields[1] + mFields[2] + mFields[3];
+        return true;
+    }
+
+    /**
+     * Pid found by the last getPid(), without checking it again
+     */
+    public synchronized int peekPid() {
+        return mPid;
+    }
+
+    /**
+     * CPU jiffies of the process (as ProcReader.readProcessCpuTime()) read by the last getPid()
+     */
+    public synchronized long getCpuTime() {
+        return (mPid < 0) ? -1 : mCpuTime;
+    }
+
+    /**
+     * Changes with every new process, 0 before the first one is found
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public int getRestarts() {
+        return mRestarts;
+    }
+
+    private static int findPid(String pkg) {
+        Context context = InstrumentationRegistry.getContext();
+        ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        List<ActivityManager.RunningAppProcessInfo> appList = am.getRunningAppProcesses();
+        if (appList == null)
+            return -1;
+        for (ActivityManager.RunningAppProcessInfo app : appList) {
+            if (0 == pkg.compareToIgnoreCase(app.processName))
+                return app.pid;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,248 @@
+package com.eaway.appcrawler.performance;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Read /proc/stat, /proc/[pid]/stat and /proc/[pid]/io into primitive longs.
+ *
+ * Files are kept open and read again from the beginning into one preallocated buffer, fields are
+ * parsed in place, so nothing is allocated once the files are open (the pid file is only reopened
+ * when the pid changes). The proc root is configurable, so the parser can run against fixture files.
+ *
+ * The name field of /proc/[pid]/stat may contain spaces and parentheses, e.g. "(my (app) x)",
+ * so the fields after it are counted from the last ')'.
+ */
+public class ProcReader {
+    private static final int BUFFER_SIZE = 4096;
+
+    // Index of values read by readProcessIo(), see proc(5)
+    public static final int IO_RCHAR = 0;           // Bytes read by any read syscall, pipes and sockets too
+    public static final int IO_WCHAR = 1;
+    public static final int IO_SYSCR = 2;           // Read syscalls
+    public static final int IO_SYSCW = 3;
+    public static final int IO_READ_BYTES = 4;      // Bytes really fetched from storage
+    public static final int IO_WRITE_BYTES = 5;
+    public static final int IO_FIELDS = 6;
+    private static final byte[][] IO_KEYS = {
+            "rchar:".getBytes(), "wchar:".getBytes(), "syscr:".getBytes(), "syscw:".getBytes(),
+            "read_bytes:".getBytes(), "write_bytes:".getBytes()
+    };
+
+    private final String mRoot;
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private final long[] mFields = new long[8];
+    private RandomAccessFile mStat = null;
+    private RandomAccessFile mPidStat = null;
+    private int mPid = -1;
+    private RandomAccessFile mPidIo = null;
+    private int mIoPid = -1;
+
+    public ProcReader(String root) {
+        mRoot = root;
+    }
+
+    /**
+     * Total CPU jiffies of all cores: user + nice + system + idle + iowait + irq + softirq.
+     * Return -1 if /proc/stat can not be read.
+     */
+    public synchronized long readTotalCpuTime() {
+        try {
+            if (mStat == null)
+                mStat = new RandomAccessFile(mRoot + "/stat", "r");
+            int length = read(mStat);
+            // "cpu  user nice system idle iowait irq softirq steal ..."
+            int start = skipToken(mBuffer, 0, length);
+            if (parseLongs(mBuffer, start, length, mFields, 7) < 7)
+                return -1;
+            long total = 0;
+            for (int i = 0; i < 7; i++) {
+                total += mFields[i];
+            }
+            return total;
+        } catch (IOException e) {
+            mStat = close(mStat);
+            return -1;
+        }
+    }
+
+    /**
+     * CPU jiffies of the process and its waited children: utime + stime + cutime + cstime.
+     * Return -1 if the process is gone.
+     */
+    public synchronized long readProcessCpuTime(int pid) {
+        // utime is field 14 of proc(5)
+        if (readProcessStat(pid, 14, mFields, 4) < 4)
+            return -1;
+        return mFields[0] + mFields[1] + mFields[2] + mFields[3];
+    }
+
+    /**
+     * Parse count numeric fields of /proc/[pid]/stat from field number first (1-based as in proc(5),
+     * 4 or above, e.g. 14 for utime, 22 for starttime) into out.
+     * Return the number of fields parsed, -1 if the file can not be read.
+     */
+    public synchronized int readProcessStat(int pid, int first, long[] out, int count) {
+        try {
+            if (pid != mPid || mPidStat == null) {
+                mPidStat = close(mPidStat);
+                mPidStat = new RandomAccessFile(mRoot + "/" + pid + "/stat", "r");
+                mPid = pid;
+            }
+            return readStat(mPidStat, first, out, count);
+        } catch (IOException e) {
+            mPidStat = close(mPidStat);
+            mPid = -1;
+            return -1;
+        }
+    }
+
+    /**
+     * Read the IO_FIELDS counters of /proc/[pid]/io into out, a missing one is -1.
+     * Return false if the file can not be read, e.g. no permission or the process is gone.
+     */
+    public synchronized boolean readProcessIo(int pid, long[] out) {
+        try {
+            if (pid != mIoPid || mPidIo == null) {
+                mPidIo = close(mPidIo);
+                mPidIo = new RandomAccessFile(mRoot + "/" + pid + "/io", "r");
+                mIoPid = pid;
+            }
+            int length = read(mPidIo);
+            for (int i = 0; i < IO_FIELDS; i++) {
+                out[i] = findValue(mBuffer, length, IO_KEYS[i]);
+            }
+            return true;
+        } catch (IOException e) {
+            mPidIo = close(mPidIo);
+            mIoPid = -1;
+            return false;
+        }
+    }
+
+    /**
+     * Same as readProcessStat() for any open stat file, e.g. /proc/[pid]/task/[tid]/stat
+     */
+    public synchronized int readStat(RandomAccessFile file, int first, long[] out, int count) throws IOException {
+        int length = read(file);
+        int end = lastIndexOf(mBuffer, length, (byte) ')');
+        if (end < 0)
+            return -1;
+        // Field 3 (state) is the first token after ')'
+        int pos = end + 1;
+        for (int field = 3; field < first; field++) {
+            pos = skipToken(mBuffer, pos, length);
+        }
+        return parseLongs(mBuffer, pos, length, out, count);
+    }
+
+    public synchronized void close() {
+        mStat = close(mStat);
+        mPidStat = close(mPidStat);
+        mPid = -1;
+        mPidIo = close(mPidIo);
+        mIoPid = -1;
+    }
+
+    // Read the file from the beginning, only the first BUFFER_SIZE bytes are needed
+    private int read(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        int length = 0;
+        while (length < mBuffer.length) {
+            int n = file.read(mBuffer, length, mBuffer.length - length);
+            if (n < 0)
+                break;
+            length += n;
+        }
+        return length;
+    }
+
+    private static RandomAccessFile close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Don't worry
+            }
+        }
+        return null;
+    }
+
+    private static int lastIndexOf(byte[] buffer, int length, byte b) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (buffer[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    // Skip spaces and one token, return the position after it
+    static int skipToken(byte[] buffer, int pos, int length) {
+        while (pos < length && buffer[pos] == ' ')
+            pos++;
+        while (pos < length && buffer[pos] != ' ' && buffer[pos] != '\n')
+            pos++;
+        return pos;
+    }
+
+    // Parse up to count space separated numbers of one line, return how many are parsed
+    static int parseLongs(byte[] buffer, int pos, int length, long[] out, int count) {
+        int parsed = 0;
+        while (parsed < count) {
+            while (pos < length && buffer[pos] == ' ')
+                pos++;
+            if (pos >= length || buffer[pos] == '\n')
+                break;
+            boolean negative = buffer[pos] == '-';
+            if (negative)
+                pos++;
+            long value = 0;
+            int digits = 0;
+            while (pos < length && buffer[pos] >= '0' && buffer[pos] <= '9') {
+                value = value * 10 + (buffer[pos] - '0');
+                pos++;
+                digits++;
+            }
+            if (digits == 0)
+                break; // Not a number
+            out[parsed++] = negative ? -value : value;
+        }
+        return parsed;
+    }
+
+    /**
+     * Number after the key at the beginning of a line, e.g. "Pss:   1234 kB", -1 if there is no such line
+     */
+    static long findValue(byte[] buffer, int length, byte[] key) {
+        int pos = 0;
+        while (pos < length) {
+            if (startsWith(buffer, pos, length, key)) {
+                int i = pos + key.length;
+                while (i < length && (buffer[i] == ' ' || buffer[i] == '\t'))
+                    i++;
+                if (i >= length || buffer[i] < '0' || buffer[i] > '9')
+                    return -1;
+                long value = 0;
+                while (i < length && buffer[i] >= '0' && buffer[i] <= '9') {
+                    value = value * 10 + (buffer[i] - '0');
+                    i++;
+                }
+                return value;
+            }
+            while (pos < length && buffer[pos] != '\n')
+                pos++;
+            pos++;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] buffer, int pos, int length, byte[] key) {
+        if (pos + key.length > length)
+            return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer[pos + i] != key[i])
+                return false;
+        }
+        return true;
+    }
+}
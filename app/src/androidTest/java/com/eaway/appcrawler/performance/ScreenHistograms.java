@@ -0,0 +1,48 @@
+package com.eaway.appcrawler.performance;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One LogHistogram per screen, the whole run is the merge of all of them.
+ */
+public class ScreenHistograms<K> {
+    private final int mScale;
+    private final Map<K, LogHistogram> mScreens = new HashMap<K, LogHistogram>();
+
+    public ScreenHistograms(int scale) {
+        mScale = scale;
+    }
+
+    public void add(K screen, double value) {
+        LogHistogram histogram = mScreens.get(screen);
+        if (histogram == null) {
+            histogram = new LogHistogram(mScale);
+            mScreens.put(screen, histogram);
+        }
+        histogram.add(value);
+    }
+
+    /**
+     * Histogram of the screen, null if nothing was added to it
+     */
+    public LogHistogram get(K screen) {
+        return mScreens.get(screen);
+    }
+
+    public Map<K, LogHistogram> getScreens() {
+        return mScreens;
+    }
+
+    public LogHistogram getTotal() {
+        LogHistogram total = new LogHistogram(mScale);
+        for (LogHistogram histogram : mScreens.values()) {
+            total.merge(histogram);
+        }
+        return total;
+    }
+
+    public void clear() {
+        mScreens.clear();
+    }
+}
@@ -0,0 +1,253 @@
+package com.eaway.appcrawler.performance;
+
+import com.eaway.appcrawler.Config;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CPU time of every thread of the target process, per screen.
+ *
+ * Reads utime + stime of /proc/[pid]/task/[tid]/stat and adds the delta since the last sample to the
+ * current screen, per thread (name and tid) and per thread group (name with numbers replaced by '#',
+ * e.g. "pool-#-thread-#", "Binder:#_#"). The task directory is only listed again every
+ * Config.sThreadRescanInterval or when a thread is gone, stat files of known threads are kept open.
+ * Not thread safe, call from the sampler thread only; read the report once sampling is stopped.
+ */
+public class ThreadCpuSampler {
+    public static final int MS_PER_JIFFY = 10; // USER_HZ is 100 on Android
+
+    private final ProcReader mReader;
+    private final String mRoot;
+    private final long[] mFields = new long[2];
+    private final Map<Integer, TaskInfo> mTasks = new HashMap<Integer, TaskInfo>();
+    private final Map<Integer, ScreenCpu> mScreens = new HashMap<Integer, ScreenCpu>();
+    private int mPid = -1;
+    private long mScanTime = 0;
+    private boolean mRescan = false;
+    private int mScans = 0;
+
+    private static class TaskInfo {
+        final int tid;
+        final RandomAccessFile stat;
+        String name;
+        String key;     // "name(tid)"
+        String group;
+        long cpuTime = -1;
+
+        TaskInfo(int tid, RandomAccessFile stat) {
+            this.tid = tid;
+            this.stat = stat;
+        }
+    }
+
+    /**
+     * Jiffies per thread and per group of one screen
+     */
+    public static class ScreenCpu {
+        public final int screenId;
+        public long total = 0;
+        public final Map<String, long[]> threads = new HashMap<String, long[]>();
+        public final Map<String, long[]> groups = new HashMap<String, long[]>();
+
+        ScreenCpu(int screenId) {
+            this.screenId = screenId;
+        }
+
+        void add(TaskInfo task, long jiffies) {
+            total += jiffies;
+            add(threads, task.key, jiffies);
+            add(groups, task.group, jiffies);
+        }
+
+        private static void add(Map<String, long[]> map, String key, long jiffies) {
+            long[] value = map.get(key);
+            if (value == null) {
+                value = new long[1];
+                map.put(key, value);
+            }
+            value[0] += jiffies;
+        }
+    }
+
+    public ThreadCpuSampler(String root) {
+        mRoot = root;
+        mReader = new ProcReader(root);
+    }
+
+    public void sample(int pid, int screenId, long now) {
+        if (pid != mPid) {
+            closeTasks();
+            mPid = pid;
+            mRescan = true;
+        }
+        if (mRescan || now - mScanTime >= Config.sThreadRescanInterval) {
+            scan();
+            mScanTime = now;
+            mRescan = false;
+        }
+
+        ScreenCpu screen = mScreens.get(screenId);
+        if (screen == null) {
+            screen = new ScreenCpu(screenId);
+            mScreens.put(screenId, screen);
+        }
+        Iterator<TaskInfo> it = mTasks.values().iterator();
+        while (it.hasNext()) {
+            TaskInfo task = it.next();
+            long cpuTime;
+            try {
+                // utime and stime are fields 14 and 15 of proc(5)
+                if (mReader.readStat(task.stat, 14, mFields, 2) < 2)
+                    continue;
+                cpuTime = mFields[0] + mFields[1];
+            } catch (IOException e) {
+                close(task.stat); // Thread is gone
+                it.remove();
+                mRescan = true;
+                continue;
+            }
+            if (task.cpuTime >= 0 && cpuTime > task.cpuTime)
+                screen.add(task, cpuTime - task.cpuTime);
+            task.cpuTime = cpuTime;
+        }
+    }
+
+    // List the task directory, open new threads and refresh names
+    private void scan() {
+        mScans++;
+        String[] tids = new File(mRoot + "/" + mPid + "/task").list();
+        if (tids == null)
+            return;
+        for (String name : tids) {
+            int tid;
+            try {
+                tid = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            String dir = mRoot + "/" + mPid + "/task/" + tid;
+            TaskInfo task = mTasks.get(tid);
+            if (task == null) {
+                try {
+                    task = new TaskInfo(tid, new RandomAccessFile(dir + "/stat", "r"));
+                } catch (IOException e) {
+                    continue;
+                }
+                mTasks.put(tid, task);
+            }
+            String comm = readLine(dir + "/comm");
+            if (comm != null && !comm.equals(task.name)) {
+                task.name = comm;
+                task.key = comm + "(" + tid + ")";
+                task.group = comm.replaceAll("[0-9]+", "#");
+            }
+            if (task.name == null) {
+                task.name = String.valueOf(tid);
+                task.key = task.name;
+                task.group = "#";
+            }
+        }
+    }
+
+    private static String readLine(String path) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(path), 64);
+            String line = reader.readLine();
+            return (line == null) ? null : line.trim();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Don't worry
+                }
+            }
+        }
+    }
+
+    private void closeTasks() {
+        for (TaskInfo task : mTasks.values()) {
+            close(task.stat);
+        }
+        mTasks.clear();
+    }
+
+    private static void close(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Don't worry
+        }
+    }
+
+    /**
+     * Forget the threads, e.g. the process was restarted with the same pid
+     */
+    public void reset() {
+        closeTasks();
+        mPid = -1;
+        mRescan = true;
+    }
+
+    public void close() {
+        closeTasks();
+        mReader.close();
+        mRescan = true; // Tasks are gone, scan again on the next sample even for the same pid
+    }
+
+    public int getScans() {
+        return mScans;
+    }
+
+    /**
+     * Screens by CPU time, busiest first
+     */
+    public List<ScreenCpu> getScreens() {
+        List<ScreenCpu> screens = new ArrayList<ScreenCpu>(mScreens.values());
+        Collections.sort(screens, new Comparator<ScreenCpu>() {
+            @Override
+            public int compare(ScreenCpu a, ScreenCpu b) {
+                return (a.total < b.total) ? 1 : ((a.total == b.total) ? 0 : -1);
+            }
+        });
+        return screens;
+    }
+
+    /**
+     * "name ms (percent)" of the top n entries, busiest first
+     */
+    public static String top(Map<String, long[]> map, long total, int n) {
+        List<Map.Entry<String, long[]>> entries = new ArrayList<Map.Entry<String, long[]>>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                long x = a.getValue()[0];
+                long y = b.getValue()[0];
+                return (x < y) ? 1 : ((x == y) ? 0 : -1);
+            }
+        });
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < entries.size() && i < n; i++) {
+            long jiffies = entries.get(i).getValue()[0];
+            if (i > 0)
+                sb.append(", ");
+            sb.append(String.format("%s %dms (%.0f%%)", entries.get(i).getKey(), jiffies * MS_PER_JIFFY,
+                    total == 0 ? 0f : 100f * jiffies / total));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,241 @@
+package com.eaway.appcrawler.performance;
+
+import android.util.Log;
+
+import com.eaway.appcrawler.Config;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Chrome Trace Event JSON of the crawl, loadable in Perfetto (ui.perfetto.dev) or chrome://tracing.
+ *
+ * One timeline with crawler phases (capture, match, act, wait, screenshot) as slices of the thread
+ * doing them, actions and screens as instant events, and CPU, PSS and jank as counter tracks.
+ *
+ * Same as FileLog, events are queued without lock and written by a background thread every
+ * Config.sLogFlushInterval millisecond, so the trace is streamed to disk. At most Config.sTraceQueueSize
+ * events wait in the queue, more are dropped and counted. Slices are written as one complete event
+ * when they end, a dropped event never leaves a slice open. The file is in JSON Array Format, whose
+ * closing "]" is optional, so the trace of a killed run still loads.
+ */
+public class TraceWriter {
+    private static final String TAG = Config.TAG;
+    private static final int PID = 1;
+
+    private static final ConcurrentLinkedQueue<Event> sQueue = new ConcurrentLinkedQueue<Event>();
+    private static final AtomicInteger sPending = new AtomicInteger();
+    private static final AtomicInteger sDropped = new AtomicInteger();
+    private static final Object sWriteLock = new Object();
+    private static final StringBuilder sLine = new StringBuilder(256);
+    private static volatile boolean sEnabled = false;
+    private static Writer sWriter = null;
+    private static Thread sThread = null;
+    private static long sBaseNanos = 0;
+    private static long sBaseMillis = 0;
+    private static int sEvents = 0;
+
+    private static class Event {
+        final char ph;      // X: complete slice, i: instant, C: counter
+        final String name;
+        final long ts;      // Microsecond since open()
+        final long dur;
+        final long tid;
+        final double value;
+
+        Event(char ph, String name, long ts, long dur, long tid, double value) {
+            this.ph = ph;
+            this.name = name;
+            this.ts = ts;
+            this.dur = dur;
+            this.tid = tid;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Start a new trace file, events before this are not recorded
+     */
+    public static void open(File file) {
+        synchronized (sWriteLock) {
+            closeWriter();
+            try {
+                sWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 16 * 1024);
+                sWriter.write("[\n");
+                sWriter.write("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":" + PID +
+                        ",\"args\":{\"name\":\"AppCrawler " + escape(Config.sTargetPackage) + "\"}}");
+                sWriter.write(",\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + PID + ",\"tid\":" +
+                        Thread.currentThread().getId() + ",\"args\":{\"name\":\"crawler\"}}");
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to open trace: " + e.getMessage());
+                closeWriter();
+                return;
+            }
+            sQueue.clear();
+            sPending.set(0);
+            sBaseNanos = System.nanoTime();
+            sBaseMillis = System.currentTimeMillis();
+            sEvents = 0;
+            sDropped.set(0);
+            sEnabled = true;
+        }
+        start();
+    }
+
+    private static synchronized void start() {
+        if (sThread != null)
+            return;
+        sThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    LockSupport.parkNanos(Config.sLogFlushInterval * 1000000L);
+                    flush();
+                }
+            }
+        }, "TraceWriter");
+        sThread.setDaemon(true);
+        sThread.start();
+    }
+
+    /**
+     * Write everything queued and close the file
+     */
+    public static void close() {
+        synchronized (sWriteLock) {
+            if (!sEnabled)
+                return;
+            sEnabled = false;
+            flush();
+            try {
+                sWriter.write("\n]\n");
+            } catch (IOException e) {
+                // The closing bracket is optional
+            }
+            Log.i(TAG, "Trace events:" + sEvents + ", dropped:" + sDropped.get());
+            closeWriter();
+        }
+    }
+
+    /**
+     * Microsecond on the trace timeline, start time of a slice
+     */
+    public static long now() {
+        return (System.nanoTime() - sBaseNanos) / 1000;
+    }
+
+    /**
+     * The phase of the current thread started at start (from now()) has ended
+     */
+    public static void slice(String name, long start) {
+        if (sEnabled) {
+            long end = now();
+            offer(new Event('X', name, start, end - start, Thread.currentThread().getId(), 0));
+        }
+    }
+
+    /**
+     * Something happened on the current thread, e.g. an action
+     */
+    public static void instant(String name) {
+        if (sEnabled)
+            offer(new Event('i', name, now(), 0, Thread.currentThread().getId(), 0));
+    }
+
+    /**
+     * Value of the counter track at time (System.currentTimeMillis()), dropped if taken before open()
+     */
+    public static void counter(String name, long time, double value) {
+        if (sEnabled && time >= sBaseMillis)
+            offer(new Event('C', name, (time - sBaseMillis) * 1000, 0, 0, value));
+    }
+
+    private static void offer(Event event) {
+        if (sPending.incrementAndGet() > Config.sTraceQueueSize) {
+            sPending.decrementAndGet();
+            sDropped.incrementAndGet();
+            return;
+        }
+        sQueue.offer(event);
+    }
+
+    /**
+     * Write all queued events to file now
+     */
+    public static void flush() {
+        synchronized (sWriteLock) {
+            if (sWriter == null)
+                return;
+            try {
+                Event event;
+                int count = 0;
+                while ((event = sQueue.poll()) != null) {
+                    sPending.decrementAndGet();
+                    format(event);
+                    sWriter.append(sLine);
+                    count++;
+                }
+                sEvents += count;
+                if (count > 0)
+                    sWriter.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Fail to write trace: " + e.getMessage());
+                sEnabled = false;
+                closeWriter();
+            }
+        }
+    }
+
+    private static void format(Event event) {
+        StringBuilder sb = sLine;
+        sb.setLength(0);
+        sb.append(",\n{\"name\":\"").append(escape(event.name)).append("\",\"ph\":\"").append(event.ph)
+                .append("\",\"ts\":").append(event.ts).append(",\"pid\":").append(PID);
+        if (event.ph == 'C') {
+            sb.append(",\"args\":{\"value\":").append(Double.isNaN(event.value) || Double.isInfinite(event.value) ? 0 : event.value).append('}');
+        } else {
+            sb.append(",\"tid\":").append(event.tid);
+            if (event.ph == 'X')
+                sb.append(",\"dur\":").append(event.dur);
+            else
+                sb.append(",\"s\":\"t\"");
+        }
+        sb.append('}');
+    }
+
+    static String escape(String s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\' || c < 0x20) {
+                if (sb == null)
+                    sb = new StringBuilder(s.length() + 8).append(s, 0, i);
+                if (c == '"' || c == '\\')
+                    sb.append('\\').append(c);
+                else
+                    sb.append(String.format("\\u%04x", (int) c));
+            } else if (sb != null) {
+                sb.append(c);
+            }
+        }
+        return (sb == null) ? s : sb.toString();
+    }
+
+    private static void closeWriter() {
+        if (sWriter == null)
+            return;
+        try {
+            sWriter.close();
+        } catch (IOException e) {
+            // Don't worry
+        }
+        sWriter = null;
+    }
+}
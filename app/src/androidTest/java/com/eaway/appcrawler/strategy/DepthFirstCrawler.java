@@ -18,17 +18,27 @@ import android.util.Log;
 
 import com.eaway.appcrawler.Config;
 import com.eaway.appcrawler.FileLog;
+import com.eaway.appcrawler.common.ClickLatency;
+import com.eaway.appcrawler.common.ScreenGraph;
+import com.eaway.appcrawler.common.ScreenRegistry;
+import com.eaway.appcrawler.common.ScreenshotDedup;
+import com.eaway.appcrawler.common.ScreenshotWriter;
+import com.eaway.appcrawler.common.SettleDetector;
+import com.eaway.appcrawler.common.SettleModel;
+import com.eaway.appcrawler.common.TransitionCache;
 import com.eaway.appcrawler.common.UiHelper;
 import com.eaway.appcrawler.common.UiScreen;
+import com.eaway.appcrawler.common.UiSnapshot;
 import com.eaway.appcrawler.common.UiWidget;
+import com.eaway.appcrawler.performance.IoMonitor;
+import com.eaway.appcrawler.performance.JankMonitor;
+import com.eaway.appcrawler.performance.PerformanceBudget;
 import com.eaway.appcrawler.performance.PerformanceMonitor;
+import com.eaway.appcrawler.performance.TraceWriter;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
-import static java.lang.Thread.sleep;
-
 /**
  * AppCrawler test using Android UiAutomator 2.0
  */
@@ -37,14 +47,31 @@ public class DepthFirstCrawler extends Crawler {
     private static final String TAG_MAIN = Config.TAG_MAIN;
     private static final String TAG_DEBUG = Config.TAG_DEBUG;
 
+    // Result of navigateToUnfinished()
+    public static final int ROUTE_NONE = 0;         // No route, nothing done
+    public static final int ROUTE_DONE = 1;
+    public static final int ROUTE_BROKEN = 2;       // Off the route on the way
+    public static final int ROUTE_RELAUNCHED = 3;   // Relaunched for the route but not in the root screen
+
     private static int sDepth = 0; // root screen depth = 0
     private static int sSteps = 0;
     private static int sDepthPeak = 0;
     private static int sLoop = 0;
+    private static int sSimilarSteps = 0; // Steps on screens matched by similarity only
+    private static int sNavigationSteps = 0; // Clicks and backs to follow a planned route
+    private static int sRelaunches = 0;
+    private static long sStepStartTime = 0;
+    private static long sStepSettleTime = 0; // Millisecond waited for UI settled in current step
+    private static long sSettleTime = 0;
+    private static int sSettleTimeouts = 0;
     private static Date sStartTime;
-    private static List<UiScreen> sScannedScreenList = new ArrayList<UiScreen>();
+    private static ScreenRegistry sScreens = ScreenRegistry.getInstance();
+    private static TransitionCache sTransitions = TransitionCache.getInstance();
+    private static ScreenGraph sGraph = ScreenGraph.getInstance();
     private static UiScreen sRootScreen = null;
     private static UiScreen sLastScreen = null;
+    private static UiScreen sLastStepScreen = null; // Screen of the previous step
+    private static UiSnapshot sLastSnapshot = null; // Hierarchy captured at the previous step
     private static UiWidget sLastActionWidget = null;
     private static String sLastActionMessage = new String("");
     private static boolean sFinished = false;
@@ -55,13 +82,30 @@ public class DepthFirstCrawler extends Crawler {
         sDepth = 0;
         sSteps = 0;
         sLoop = 0;
+        sSimilarSteps = 0;
+        sNavigationSteps = 0;
+        sRelaunches = 0;
+        sSettleTime = 0;
+        sSettleTimeouts = 0;
+        SettleModel.getInstance().reset();
         sDepthPeak = 0;
         sStartTime = new Date();
         sRootScreen = null;
         sLastScreen = null;
+        sLastStepScreen = null;
+        sLastSnapshot = null;
         sLastActionWidget = null;
         sLastActionMessage = new String("");
         sFinished = false;
+        sScreens.clear();
+        ScreenshotDedup.getInstance().clear();
+        sTransitions.clear();
+        sGraph.clear();
+        ClickLatency.getInstance().clear();
+        JankMonitor.reset();
+        IoMonitor.reset();
+        PerformanceMonitor.resetStats();
+        PerformanceBudget.reset();
         mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
 
         // Start from main activity
@@ -70,28 +114,64 @@ public class DepthFirstCrawler extends Crawler {
 
         while (!sFinished) {
             sSteps++;
+            sStepStartTime = System.currentTimeMillis();
+            sStepSettleTime = 0;
+
+            // Get current screen, root hash tells if anything has changed since last step
+            long phase = TraceWriter.now();
+            UiSnapshot snapshot = UiSnapshot.capture(mDevice);
+            UiScreen currentScreen = null;
+            if (sLastStepScreen != null && snapshot.getContentHash() == sLastSnapshot.getContentHash()) {
+                Log.d(TAG, "Nothing changed since last step");
+                currentScreen = sLastStepScreen;
+            } else if (sLastActionWidget != null) {
+                // Same click as before? Probe the known destination by root hash
+                currentScreen = sTransitions.probe(sLastScreen, sLastActionWidget, snapshot);
+                if (currentScreen != null)
+                    Log.d(TAG, "Known transition to Screen[" + currentScreen.id + "]");
+            }
+            if (currentScreen == null) {
+                if (Config.sDebug && sLastSnapshot != null)
+                    Log.d(TAG_DEBUG, "Changed sub trees: " + snapshot.getChangedNodes(sLastSnapshot).size());
+                long start = System.currentTimeMillis();
+                currentScreen = new UiScreen(sLastScreen, sLastActionWidget, snapshot);
+                currentScreen.id = sScreens.size() + 1;
+                sTransitions.recordBuildTime(System.currentTimeMillis() - start);
+                // Init may have scrolled, screenshots are saved with what the device shows now
+                snapshot = currentScreen.takeSnapshot();
+            }
+            sLastSnapshot = snapshot;
+            sLastStepScreen = null;
+            TraceWriter.slice("capture", phase);
 
-            // Get current screen
-            UiScreen currentScreen = new UiScreen(sLastScreen, sLastActionWidget);
-            currentScreen.id = sScannedScreenList.size() + 1;
+            // The click that took us here, handlers below may clear sLastActionWidget
+            UiScreen fromScreen = sLastScreen;
+            UiWidget fromWidget = sLastActionWidget;
 
             // In other package
             if (currentScreen.pkg.compareToIgnoreCase(Config.sTargetPackage) != 0) {
                 FileLog.i(TAG_MAIN, "{Inspect} screen, in other package: " + currentScreen.pkg);
+                onScreen(currentScreen, false);
                 handleOtherPackage(currentScreen);
                 continue;
             }
 
             // In target package, check where are we now.
             boolean newScreen = true;
-            for (UiScreen screen : sScannedScreenList) {
-                if (screen.equals(currentScreen)) {
-                    newScreen = false;
-                    currentScreen = screen;
-                    sDepth = currentScreen.depth;
-                    break;
+            phase = TraceWriter.now();
+            UiScreen scannedScreen = sScreens.find(currentScreen);
+            if (scannedScreen != null) {
+                if (!scannedScreen.signature.equals(currentScreen.signature)) {
+                    // Would be a new screen by exact signature
+                    sSimilarSteps++;
+                    Log.d(TAG, "Similar to Screen[" + scannedScreen.id + "]");
                 }
+                newScreen = false;
+                currentScreen = scannedScreen;
+                sDepth = currentScreen.depth;
             }
+            TraceWriter.slice("match", phase);
+            onScreen(currentScreen, newScreen);
 
             if (sDepth == 0) {
                 if (sRootScreen != null) {
@@ -109,15 +189,39 @@ public class DepthFirstCrawler extends Crawler {
             } else {
                 handleOldScreen(currentScreen);
                 if (++sLoop > Config.sMaxScreenLoop) {
-                    Log.i(TAG, "Reached max old screen loop, re-launch target app");
+                    Log.i(TAG, "Reached max old screen loop, go to an unfinished screen");
                     sLoop = 0;
-                    UiHelper.launchTargetApp();
+                    int route = navigateToUnfinished(currentScreen, currentScreen);
+                    if (route == ROUTE_NONE || route == ROUTE_BROKEN) {
+                        Log.i(TAG, "No route to unfinished screen, re-launch target app");
+                        relaunchTargetApp();
+                    }
                     continue;
                 }
             }
 
-            // Record CPU and Memory info
-            PerformanceMonitor.record(currentScreen.name);
+            sLastStepScreen = currentScreen;
+            if (fromWidget != null) {
+                sTransitions.put(fromScreen, fromWidget, currentScreen);
+                sGraph.addEdge(fromScreen, fromWidget, currentScreen);
+            }
+
+            // Record CPU and Memory info, all performance data of the screen is kept under the same key
+            String screenKey = "Screen[" + currentScreen.id + "] " + currentScreen.name;
+            PerformanceMonitor.record(screenKey);
+
+            // Frames rendered since last step: the click, the transition and this screen
+            JankMonitor.collect(screenKey,
+                    (fromScreen == null || fromWidget == null) ? null : "Screen[" + fromScreen.id + "] > Screen[" +
+                            currentScreen.id + "] " + fromWidget.getDescriptor());
+
+            // Disk and network traffic since last step, same as frames
+            IoMonitor.collect(screenKey,
+                    (fromScreen == null || fromWidget == null) ? null : "Screen[" + fromScreen.id + "] > Screen[" +
+                            currentScreen.id + "] " + fromWidget.getDescriptor());
+
+            // Memory, CPU and frames of the screen against its budget
+            PerformanceBudget.check(currentScreen, screenKey);
 
             // If there have unfinished widgets, mark all ascendant screens unfinished, so we have chance to go back.
             if (!currentScreen.isFinished()) {
@@ -135,17 +239,17 @@ public class DepthFirstCrawler extends Crawler {
             if (Config.sRandomText) {
                 UiHelper.inputRandomTextToEditText();
             }
-            try {
-                sleep(3000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+            waitForSettle(SettleModel.key(currentScreen));
+
             // Handle  next unfinished widget
-            handleNextWidget(currentScreen);
-            try {
-                sleep(3000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            phase = TraceWriter.now();
+            UiWidget widget = handleNextWidget(currentScreen);
+            TraceWriter.slice("act", phase);
+            if (widget != null) {
+                // A click cut at the learned bound is recorded as censored, at least the last change seen
+                waitForSettle(SettleModel.key(currentScreen, widget.getDescriptor()));
+                ClickLatency.getInstance().record(currentScreen, widget);
+                PerformanceBudget.checkClick(currentScreen, widget, SettleDetector.getInstance().getLastEventDelay());
             }
 
             // Check finish
@@ -181,19 +285,9 @@ public class DepthFirstCrawler extends Crawler {
                     if (UiHelper.isInTheSameScreen(currentScreen)) {
                         FileLog.i(TAG_MAIN, "{Click} Back InTheSameScreen");
                         mDevice.pressBack();
-                        try {
-                            sleep(1000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
+                        waitForSettle(SettleModel.key(currentScreen, "Back"));
                         mDevice.pressBack();
-                        try {
-                            sleep(2000);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
-                        }
-
-
+                        waitForSettle(SettleModel.key(currentScreen, "Back2"));
                     }
                 }
             }
@@ -222,6 +316,10 @@ public class DepthFirstCrawler extends Crawler {
                 currentScreen.setFinished(true);
             }
 
+            FileLog.i(TAG_MAIN, "{Settle} step:" + sSteps + ", " + sStepSettleTime + "ms");
+            PerformanceMonitor.recordStep(screenKey, System.currentTimeMillis() - sStepStartTime,
+                    sStepSettleTime);
+
             // Debug
             if (Config.sDebug) {
                 logAllScreenInfo();
@@ -231,22 +329,65 @@ public class DepthFirstCrawler extends Crawler {
         // Done
         FileLog.i(TAG_MAIN, "Total executed steps:" + sSteps +
                 ", peak depth:" + sDepthPeak +
-                ", detected screens:" + sScannedScreenList.size() +
-                ", screenshot:" + UiHelper.sScreenshotIndex);
+                ", detected screens:" + sScreens.size() +
+                ", screenshot:" + UiHelper.sScreenshotIndex +
+                ", similar screen steps:" + sSimilarSteps);
+        long runTime = new Date().getTime() - sStartTime.getTime();
+        FileLog.i(TAG_MAIN, String.format("New screens per minute:%.2f, run time (s):%d",
+                runTime <= 0 ? 0f : sScreens.size() * 60000f / runTime, runTime / 1000));
+
+        ScreenshotWriter writer = ScreenshotWriter.getInstance();
+        if (!writer.flush(Config.sLaunchTimeout))
+            FileLog.w(TAG_MAIN, "Screenshots not written yet: " + writer.getQueueDepth());
+        FileLog.i(TAG_MAIN, "Screenshot writer " + writer.toString());
+        ScreenshotDedup dedup = ScreenshotDedup.getInstance();
+        FileLog.i(TAG_MAIN, String.format("Screenshot duplicates:%d, dedup ratio:%.1f%%, bytes saved:%d",
+                dedup.getDuplicates(), dedup.getDedupRatio(), dedup.getDuplicates() * writer.getAverageSize()));
+
+        int actions = sSteps + sNavigationSteps;
+        FileLog.i(TAG_MAIN, String.format("Actions per new screen:%.1f, navigation steps:%d, relaunches:%d",
+                sScreens.size() == 0 ? 0f : (float) actions / sScreens.size(), sNavigationSteps, sRelaunches));
+
+        FileLog.i(TAG_MAIN, String.format("Transition cache hits:%d, misses:%d, hit rate:%.1f%%, capture time saved (ms):%d",
+                sTransitions.getHits(), sTransitions.getMisses(), sTransitions.getHitRate(), sTransitions.getSavedTime()));
+
+        SettleModel model = SettleModel.getInstance();
+        FileLog.i(TAG_MAIN, "Settle time total (ms):" + sSettleTime +
+                ", average per step (ms):" + (sSteps == 0 ? 0 : sSettleTime / sSteps) +
+                ", timeout:" + sSettleTimeouts +
+                ", learned waits:" + model.getLearnedWaits() +
+                ", unknown waits:" + model.getUnknownWaits() +
+                ", cut at learned bound:" + model.getCutOffs());
+
+        JankMonitor.logSummary(Config.sTopJank);
+        ClickLatency.getInstance().logSummary(Config.sTopLatency);
+        IoMonitor.logSummary(Config.sTopIo);
 
         String log = String.format("CPU average:%.1f%%, CPU peak:%.1f%%, " +
-                        "Memory average (KB):%d, Memory peak (KB):%d",
+                        "Memory average (KB):%d, Memory peak (KB):%d, process restarts:%d",
                 PerformanceMonitor.getAverageCpu(), PerformanceMonitor.cpuPeak,
-                PerformanceMonitor.getAverageMemory(), PerformanceMonitor.memPeak);
+                PerformanceMonitor.getAverageMemory(), PerformanceMonitor.memPeak,
+                PerformanceMonitor.getRestarts());
         FileLog.i(TAG_MAIN, log);
+        PerformanceMonitor.logStats();
+    }
+
+    private void waitForSettle(long key) {
+        long phase = TraceWriter.now();
+        long time = UiHelper.waitForSettle(key);
+        TraceWriter.slice("wait", phase);
+        sStepSettleTime += time;
+        sSettleTime += time;
+        if (SettleDetector.getInstance().isTimeout())
+            sSettleTimeouts++;
     }
 
     public void handleOtherPackage(UiScreen currentScreen) {
         if (isNewScreen(currentScreen)) {
-            UiHelper.takeScreenshots("(" + currentScreen.pkg + ")");
+            UiHelper.takeScreenshots("(" + currentScreen.pkg + ")", sLastSnapshot);
             currentScreen.widgetList.clear();
             currentScreen.setFinished(true);
-            sScannedScreenList.add(currentScreen);
+            sScreens.add(currentScreen);
         }
 
         sLastActionMessage = "";
@@ -261,17 +402,74 @@ public class DepthFirstCrawler extends Crawler {
             FileLog.i(TAG_MAIN, "{Click} Back");
             mDevice.pressBack();
             if (!UiHelper.isInTargetApp()) {
-                UiHelper.launchTargetApp();
+                relaunchTargetApp();
                 sDepth = 0;
+                navigateToUnfinished(sRootScreen, null);
             }
         }
     }
 
+    private void relaunchTargetApp() {
+        sRelaunches++;
+        sLastScreen = null;
+        sLastActionWidget = null;
+        sLastStepScreen = null;
+        UiHelper.launchTargetApp();
+    }
+
+    /**
+     * Go to the nearest screen with unfinished widgets by the shortest known route.
+     * Return ROUTE_DONE, or why not: no route, a screen on the way is not as expected, or the app was
+     * relaunched for the route but did not start in the root screen.
+     */
+    public int navigateToUnfinished(UiScreen currentScreen, UiScreen exclude) {
+        ScreenGraph.Route route = sGraph.findRouteToUnfinished(currentScreen, sRootScreen, Config.sRelaunchCost, exclude);
+        if (route == null || (!route.relaunch && route.edges.isEmpty()))
+            return ROUTE_NONE;
+
+        FileLog.i(TAG_MAIN, "{Navigate} to Screen[" + route.target.id + "], steps:" + route.edges.size() +
+                (route.relaunch ? ", relaunch" : ""));
+        sLastScreen = null;
+        sLastActionWidget = null;
+        sLastStepScreen = null;
+        if (route.relaunch) {
+            relaunchTargetApp();
+            if (sScreens.find(UiSnapshot.capture(mDevice)) != sRootScreen) {
+                Log.i(TAG, "Route broken, not in root screen after relaunch");
+                return ROUTE_RELAUNCHED;
+            }
+        }
+        for (ScreenGraph.Edge edge : route.edges) {
+            sNavigationSteps++;
+            if (edge.isBack()) {
+                FileLog.i(TAG_MAIN, "{Click} Back");
+                mDevice.pressBack();
+                waitForSettle(SettleModel.key(edge.from, "Back"));
+            } else {
+                try {
+                    FileLog.i(TAG_MAIN, "{Click} " + edge.widget.getDescriptor());
+                    edge.widget.uiObject.click();
+                } catch (UiObjectNotFoundException e) {
+                    Log.i(TAG, "Route broken, widget not found");
+                    return ROUTE_BROKEN;
+                }
+                waitForSettle(SettleModel.key(edge.from, edge.widget.getDescriptor()));
+            }
+            if (sScreens.find(UiSnapshot.capture(mDevice)) != edge.to) {
+                Log.i(TAG, "Route broken, Screen[" + edge.to.id + "] is not reached");
+                return ROUTE_BROKEN;
+            }
+        }
+        sDepth = route.target.depth;
+        return ROUTE_DONE;
+    }
+
     public void handleNewScreen(UiScreen currentScreen) {
         FileLog.i(TAG_MAIN, "{Inspect} NEW screen, " + currentScreen.toString());
         sLastActionMessage = "";
         sLastActionWidget = null;
-        UiHelper.takeScreenshots("");
+        UiHelper.takeScreenshots("", sLastSnapshot);
+        currentScreen.screenshot = UiHelper.sLastFilename;
 
         currentScreen.depth = ++sDepth;
         if (sDepth > sDepthPeak)
@@ -290,12 +488,12 @@ public class DepthFirstCrawler extends Crawler {
         if (stop) {
             currentScreen.widgetList.clear();
             currentScreen.setFinished(true);
-            sScannedScreenList.add(currentScreen);
+            sScreens.add(currentScreen);
             FileLog.i(TAG_MAIN, "{Click} Back");
             mDevice.pressBack(); // Not sure that we can always go back to previous page by back key
             mDevice.waitForIdle(Config.sWaitIdleTimeout);
         } else {
-            sScannedScreenList.add(currentScreen);
+            sScreens.add(currentScreen);
         }
 
     }
@@ -303,16 +501,19 @@ public class DepthFirstCrawler extends Crawler {
     public void handleOldScreen(UiScreen currentScreen) {
         FileLog.i(TAG_MAIN, "{Inspect} OLD screen, " + currentScreen.toString());
         if (Config.sCaptureSteps) {
-            UiHelper.takeScreenshots(sLastActionMessage);
+            UiHelper.takeScreenshots(sLastActionMessage, sLastSnapshot, true);
             sLastActionMessage = "";
             sLastActionWidget = null;
         }
     }
 
-    public void handleNextWidget(UiScreen currentScreen) {
+    /**
+     * Click the next unfinished widget, return the widget or null if there is nothing to click
+     */
+    public UiWidget handleNextWidget(UiScreen currentScreen) {
         UiWidget widget = getNextWidget(currentScreen);
         if (widget == null) {
-            return;
+            return null;
         }
 
         String classname = "";
@@ -353,20 +554,24 @@ public class DepthFirstCrawler extends Crawler {
                 widget.setFinished(true);
 //                FileLog.i(TAG_MAIN, text+" widget.setFinished(true)");
 
+                PerformanceMonitor.markAction(sLastActionMessage);
+                SettleDetector.getInstance().mark();
                 widget.uiObject.click();
 
             } catch (UiObjectNotFoundException e) {
                 Log.e(TAG, "UiObjectNotFoundException, failed to test a widget");
             }
         }
+        return widget;
     }
 
     public UiWidget getNextWidget(UiScreen currentScreen) {
         if (currentScreen.isFinished())
             return null;
 
-        for (int i = 0; i < currentScreen.widgetList.size(); i++) {
-            UiWidget widget = currentScreen.widgetList.get(i);
+        List<UiWidget> widgets = orderWidgets(currentScreen);
+        for (int i = 0; i < widgets.size(); i++) {
+            UiWidget widget = widgets.get(i);
             if (!widget.uiObject.exists()) {
                 for (int ic = 0; ic < 3; ic++) {
                     UiObject objS;
@@ -394,25 +599,37 @@ public class DepthFirstCrawler extends Crawler {
         return null;
     }
 
+    /**
+     * Widgets of the screen in the order to try them
+     */
+    protected List<UiWidget> orderWidgets(UiScreen screen) {
+        return screen.widgetList;
+    }
+
+    /**
+     * The step found the crawler in the screen, newScreen if it was not seen before
+     */
+    protected void onScreen(UiScreen screen, boolean newScreen) {
+    }
+
     public boolean isNewTargetPkgScreen() {
-        UiScreen currentScreen = new UiScreen(null, null);
-        if (0 != currentScreen.pkg.compareToIgnoreCase(Config.sTargetPackage))
+        UiSnapshot snapshot = UiSnapshot.capture(mDevice);
+        if (0 != snapshot.getPackageName().compareToIgnoreCase(Config.sTargetPackage))
+            return false;
+        if (sScreens.find(snapshot) != null)
             return false;
-        return isNewScreen(currentScreen);
+        if (!snapshot.hasScrollable())
+            return true;
+        // List may be scrolled, build the screen to compare from the beginning of the list
+        return isNewScreen(new UiScreen(null, null, snapshot));
     }
 
     public boolean isNewScreen(UiScreen currentScreen) {
-        for (UiScreen screen : sScannedScreenList) {
-            if (screen.equals(currentScreen)) {
-                return false;
-            }
-        }
-        return true;
+        return !sScreens.contains(currentScreen);
     }
 
     public boolean isAllScreenFinished() {
-        for (int i = 0; i < sScannedScreenList.size(); i++) {
-            UiScreen screen = sScannedScreenList.get(i);
+        for (UiScreen screen : sScreens.getScreens()) {
             if (!screen.isFinished()) {
                 return false;
             }
@@ -421,8 +638,9 @@ public class DepthFirstCrawler extends Crawler {
     }
 
     public void logAllScreenInfo() {
-        for (int i = 0; i < sScannedScreenList.size(); i++) {
-            UiScreen screen = sScannedScreenList.get(i);
+        List<UiScreen> screens = sScreens.getScreens();
+        for (int i = 0; i < screens.size(); i++) {
+            UiScreen screen = screens.get(i);
             Log.d(TAG, "Screen[" + (i + 1) + "] " + screen.toString());
         }
         Log.d(TAG_DEBUG, "Root Screen id: " + sRootScreen.id);
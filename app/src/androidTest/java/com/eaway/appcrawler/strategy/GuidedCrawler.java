@@ -0,0 +1,56 @@
+package com.eaway.appcrawler.strategy;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.uiautomator.UiDevice;
+
+import com.eaway.appcrawler.Config;
+import com.eaway.appcrawler.common.NoveltyModel;
+import com.eaway.appcrawler.common.UiScreen;
+import com.eaway.appcrawler.common.UiWidget;
+
+import java.util.List;
+
+/**
+ * Depth first crawl that clicks the widget most likely to lead to a new screen first.
+ *
+ * Unfinished widgets of a screen are ordered by the expected novelty of NoveltyModel, instead of
+ * their order in the screen. The model learns from every click whether it led to a new screen.
+ */
+public class GuidedCrawler extends DepthFirstCrawler {
+    private final NoveltyModel mModel = NoveltyModel.getInstance();
+    private int mWidth = 0;
+    private int mHeight = 0;
+    private UiWidget mLastWidget = null; // Clicked in the last step, not learned from yet
+
+    @Override
+    public void run() {
+        UiDevice device = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mWidth = device.getDisplayWidth();
+        mHeight = device.getDisplayHeight();
+        mModel.reset();
+        mLastWidget = null;
+
+        super.run();
+        mModel.logSummary(Config.sTopFeatures);
+    }
+
+    @Override
+    protected List<UiWidget> orderWidgets(UiScreen screen) {
+        return mModel.order(screen.widgetList, mWidth, mHeight);
+    }
+
+    @Override
+    public UiWidget handleNextWidget(UiScreen currentScreen) {
+        UiWidget widget = super.handleNextWidget(currentScreen);
+        mLastWidget = widget;
+        return widget;
+    }
+
+    @Override
+    protected void onScreen(UiScreen screen, boolean newScreen) {
+        if (mLastWidget == null)
+            return;
+        mModel.update(mLastWidget, mWidth, mHeight, newScreen);
+        mLastWidget = null;
+    }
+}
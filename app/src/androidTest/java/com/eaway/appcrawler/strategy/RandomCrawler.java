@@ -10,12 +10,20 @@ import android.util.Log;
 
 import com.eaway.appcrawler.Config;
 import com.eaway.appcrawler.FileLog;
+import com.eaway.appcrawler.common.ScreenRegistry;
+import com.eaway.appcrawler.common.ScreenshotDedup;
+import com.eaway.appcrawler.common.ScreenshotWriter;
+import com.eaway.appcrawler.common.SettleDetector;
+import com.eaway.appcrawler.common.SettleModel;
 import com.eaway.appcrawler.common.UiHelper;
 import com.eaway.appcrawler.common.UiScreen;
+import com.eaway.appcrawler.common.UiSnapshot;
 import com.eaway.appcrawler.common.UiWidget;
+import com.eaway.appcrawler.performance.IoMonitor;
+import com.eaway.appcrawler.performance.JankMonitor;
+import com.eaway.appcrawler.performance.PerformanceBudget;
 import com.eaway.appcrawler.performance.PerformanceMonitor;
 
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -33,8 +41,9 @@ public class RandomCrawler extends Crawler {
     private static int sSteps = 0;
     private static int sDepthPeak = 0;
     private static int sLoop = 0;
+    private static int sSimilarSteps = 0; // Steps on screens matched by similarity only
     private static Date sStartTime;
-    private static List<UiScreen> sScannedScreenList = new ArrayList<UiScreen>();
+    private static ScreenRegistry sScreens = ScreenRegistry.getInstance();
     private static UiScreen sRootScreen = null;
     private static UiScreen sLastScreen = null;
     private static UiWidget sLastActionWidget = null;
@@ -47,6 +56,7 @@ public class RandomCrawler extends Crawler {
         sDepth = 0;
         sSteps = 0;
         sLoop = 0;
+        sSimilarSteps = 0;
         sDepthPeak = 0;
         sStartTime = new Date();
         sRootScreen = null;
@@ -54,6 +64,12 @@ public class RandomCrawler extends Crawler {
         sLastActionWidget = null;
         sLastActionMessage = new String("");
         sFinished = false;
+        sScreens.clear();
+        ScreenshotDedup.getInstance().clear();
+        JankMonitor.reset();
+        IoMonitor.reset();
+        PerformanceMonitor.resetStats();
+        PerformanceBudget.reset();
         mDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
 
         // Start from main activity
@@ -62,10 +78,15 @@ public class RandomCrawler extends Crawler {
 
         while (!sFinished) {
             sSteps++;
+            long stepStartTime = System.currentTimeMillis();
+
+            // The click that took us here, handlers below may clear sLastActionWidget
+            UiScreen fromScreen = sLastScreen;
+            UiWidget fromWidget = sLastActionWidget;
 
             // Get current screen
             UiScreen currentScreen = new UiScreen(sLastScreen, sLastActionWidget);
-            currentScreen.id = sScannedScreenList.size() + 1;
+            currentScreen.id = sScreens.size() + 1;
 
             // In other package
             if (currentScreen.pkg.compareToIgnoreCase(Config.sTargetPackage) != 0) {
@@ -76,13 +97,16 @@ public class RandomCrawler extends Crawler {
 
             // In target package, check where are we now.
             boolean newScreen = true;
-            for (UiScreen screen : sScannedScreenList) {
-                if (screen.equals(currentScreen)) {
-                    newScreen = false;
-                    currentScreen = screen;
-                    sDepth = currentScreen.depth;
-                    break;
+            UiScreen scannedScreen = sScreens.find(currentScreen);
+            if (scannedScreen != null) {
+                if (!scannedScreen.signature.equals(currentScreen.signature)) {
+                    // Would be a new screen by exact signature
+                    sSimilarSteps++;
+                    Log.d(TAG, "Similar to Screen[" + scannedScreen.id + "]");
                 }
+                newScreen = false;
+                currentScreen = scannedScreen;
+                sDepth = currentScreen.depth;
             }
 
             if (sDepth == 0) {
@@ -109,7 +133,17 @@ public class RandomCrawler extends Crawler {
             }
 
             // Record CPU and Memory info
-            PerformanceMonitor.record(currentScreen.name);
+            String screenKey = "Screen[" + currentScreen.id + "] " + currentScreen.name;
+            PerformanceMonitor.record(screenKey);
+
+            // Frames rendered and traffic since last step, same keys as DepthFirstCrawler
+            String transition = (fromScreen == null || fromWidget == null) ? null : "Screen[" + fromScreen.id +
+                    "] > Screen[" + currentScreen.id + "] " + fromWidget.getDescriptor();
+            JankMonitor.collect(screenKey, transition);
+            IoMonitor.collect(screenKey, transition);
+
+            // Memory, CPU and frames of the screen against its budget
+            PerformanceBudget.check(currentScreen, screenKey);
 
             // If there have unfinished widgets, mark all ascendant screens unfinished, so we have chance to go back.
             if (!currentScreen.isFinished()) {
@@ -192,6 +226,8 @@ public class RandomCrawler extends Crawler {
                 currentScreen.setFinished(true);
             }
 
+            PerformanceMonitor.recordStep(screenKey, System.currentTimeMillis() - stepStartTime, -1);
+
             // Debug
             if (Config.sDebug) {
                 logAllScreenInfo();
@@ -201,14 +237,30 @@ public class RandomCrawler extends Crawler {
         // Done
         FileLog.i(TAG_MAIN, "Total executed steps:" + sSteps +
                 ", peak depth:" + sDepthPeak +
-                ", detected screens:" + sScannedScreenList.size() +
-                ", screenshot:" + UiHelper.sScreenshotIndex);
+                ", detected screens:" + sScreens.size() +
+                ", screenshot:" + UiHelper.sScreenshotIndex +
+                ", similar screen steps:" + sSimilarSteps);
+        long runTime = new Date().getTime() - sStartTime.getTime();
+        FileLog.i(TAG_MAIN, String.format("New screens per minute:%.2f, run time (s):%d",
+                runTime <= 0 ? 0f : sScreens.size() * 60000f / runTime, runTime / 1000));
+
+        ScreenshotWriter writer = ScreenshotWriter.getInstance();
+        if (!writer.flush(Config.sLaunchTimeout))
+            FileLog.w(TAG_MAIN, "Screenshots not written yet: " + writer.getQueueDepth());
+        FileLog.i(TAG_MAIN, "Screenshot writer " + writer.toString());
+        JankMonitor.logSummary(Config.sTopJank);
+        IoMonitor.logSummary(Config.sTopIo);
+        ScreenshotDedup dedup = ScreenshotDedup.getInstance();
+        FileLog.i(TAG_MAIN, String.format("Screenshot duplicates:%d, dedup ratio:%.1f%%, bytes saved:%d",
+                dedup.getDuplicates(), dedup.getDedupRatio(), dedup.getDuplicates() * writer.getAverageSize()));
 
         String log = String.format("CPU average:%.1f%%, CPU peak:%.1f%%, " +
-                        "Memory average (KB):%d, Memory peak (KB):%d",
+                        "Memory average (KB):%d, Memory peak (KB):%d, process restarts:%d",
                 PerformanceMonitor.getAverageCpu(), PerformanceMonitor.cpuPeak,
-                PerformanceMonitor.getAverageMemory(), PerformanceMonitor.memPeak);
+                PerformanceMonitor.getAverageMemory(), PerformanceMonitor.memPeak,
+                PerformanceMonitor.getRestarts());
         FileLog.i(TAG_MAIN, log);
+        PerformanceMonitor.logStats();
     }
 
     public void handleOtherPackage(UiScreen currentScreen) {
@@ -216,7 +268,7 @@ public class RandomCrawler extends Crawler {
             UiHelper.takeScreenshots("(" + currentScreen.pkg + ")");
             currentScreen.widgetList.clear();
             currentScreen.setFinished(true);
-            sScannedScreenList.add(currentScreen);
+            sScreens.add(currentScreen);
         }
 
         sLastActionMessage = "";
@@ -242,6 +294,7 @@ public class RandomCrawler extends Crawler {
         sLastActionMessage = "";
         sLastActionWidget = null;
         UiHelper.takeScreenshots("");
+        currentScreen.screenshot = UiHelper.sLastFilename;
 
         currentScreen.depth = ++sDepth;
         if (sDepth > sDepthPeak)
@@ -260,12 +313,12 @@ public class RandomCrawler extends Crawler {
         if (stop) {
             currentScreen.widgetList.clear();
             currentScreen.setFinished(true);
-            sScannedScreenList.add(currentScreen);
+            sScreens.add(currentScreen);
             FileLog.i(TAG_MAIN, "{Click} Back");
             mDevice.pressBack(); // Not sure that we can always go back to previous page by back key
             mDevice.waitForIdle(Config.sWaitIdleTimeout);
         } else {
-            sScannedScreenList.add(currentScreen);
+            sScreens.add(currentScreen);
         }
 
     }
@@ -273,7 +326,7 @@ public class RandomCrawler extends Crawler {
     public void handleOldScreen(UiScreen currentScreen) {
         FileLog.i(TAG_MAIN, "{Inspect} OLD screen, " + currentScreen.toString());
         if (Config.sCaptureSteps) {
-            UiHelper.takeScreenshots(sLastActionMessage);
+            UiHelper.takeScreenshots(sLastActionMessage, null, true);
             sLastActionMessage = "";
             sLastActionWidget = null;
         }
@@ -323,8 +376,14 @@ public class RandomCrawler extends Crawler {
                 widget.setFinished(true);
                 Log.d("zxxlz1", text+" widget.setFinished(true)");
 
+                PerformanceMonitor.markAction(sLastActionMessage);
+                SettleDetector.getInstance().mark();
                 widget.uiObject.click();
 
+                // Click against its budget, as DepthFirstCrawler
+                UiHelper.waitForSettle(SettleModel.key(currentScreen, widget.getDescriptor()));
+                PerformanceBudget.checkClick(currentScreen, widget, SettleDetector.getInstance().getLastEventDelay());
+
             } catch (UiObjectNotFoundException e) {
                 Log.e(TAG, "UiObjectNotFoundException, failed to test a widget");
             }
@@ -365,24 +424,23 @@ public class RandomCrawler extends Crawler {
     }
 
     public boolean isNewTargetPkgScreen() {
-        UiScreen currentScreen = new UiScreen(null, null);
-        if (0 != currentScreen.pkg.compareToIgnoreCase(Config.sTargetPackage))
+        UiSnapshot snapshot = UiSnapshot.capture(mDevice);
+        if (0 != snapshot.getPackageName().compareToIgnoreCase(Config.sTargetPackage))
             return false;
-        return isNewScreen(currentScreen);
+        if (sScreens.find(snapshot) != null)
+            return false;
+        if (!snapshot.hasScrollable())
+            return true;
+        // List may be scrolled, build the screen to compare from the beginning of the list
+        return isNewScreen(new UiScreen(null, null, snapshot));
     }
 
     public boolean isNewScreen(UiScreen currentScreen) {
-        for (UiScreen screen : sScannedScreenList) {
-            if (screen.equals(currentScreen)) {
-                return false;
-            }
-        }
-        return true;
+        return !sScreens.contains(currentScreen);
     }
 
     public boolean isAllScreenFinished() {
-        for (int i = 0; i < sScannedScreenList.size(); i++) {
-            UiScreen screen = sScannedScreenList.get(i);
+        for (UiScreen screen : sScreens.getScreens()) {
             if (!screen.isFinished()) {
                 return false;
             }
@@ -391,8 +449,9 @@ public class RandomCrawler extends Crawler {
     }
 
     public void logAllScreenInfo() {
-        for (int i = 0; i < sScannedScreenList.size(); i++) {
-            UiScreen screen = sScannedScreenList.get(i);
+        List<UiScreen> screens = sScreens.getScreens();
+        for (int i = 0; i < screens.size(); i++) {
+            UiScreen screen = screens.get(i);
             Log.d(TAG, "Screen[" + (i + 1) + "] " + screen.toString());
         }
         Log.d(TAG_DEBUG, "Root Screen id: " + sRootScreen.id);
@@ -0,0 +1,43 @@
+package com.eaway.appcrawler;
+
+import java.util.Arrays;
+
+/**
+ * Timing loop of the JVM benchmarks, and their JUnit category: tests marked @Category(Benchmark.class)
+ * depend on the speed of the machine and only run with ./gradlew :app:testDebugUnitTest -Pbenchmark
+ *
+ * JMH can not run in the instrumentation or unit test build, so this is a plain loop: one round to warm
+ * up the JIT, then the median of a few rounds.
+ */
+public final class Benchmark {
+    public static final int ROUNDS = 5;
+
+    /**
+     * One timed round, returns its time per operation
+     */
+    public interface Round {
+        double run() throws Exception;
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Median of ROUNDS rounds, after one not counted
+     */
+    public static double median(Round round) throws Exception {
+        double[] rounds = new double[ROUNDS];
+        round.run();
+        for (int r = 0; r < ROUNDS; r++)
+            rounds[r] = round.run();
+        Arrays.sort(rounds);
+        return rounds[ROUNDS / 2];
+    }
+
+    /**
+     * Result line of a benchmark, in the test output
+     */
+    public static void report(String format, Object... args) {
+        System.out.println((args.length == 0) ? format : String.format(format, args));
+    }
+}
@@ -0,0 +1,176 @@
+package com.eaway.appcrawler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of a FileLog call on the crawler thread, against the old FileLog that opened the file for every record,
+ * from one and from several threads.
+ */
+public class FileLogBenchmarkTest {
+    private static final int RECORDS = 20000;
+    private static final int THREADS = 4;
+    private static final String LINE = "\\d\\d-\\d\\d \\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d i/AppCrawlerMain: \\{Click\\} .*";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private String mFileLog;
+
+    /**
+     * FileLog before records were queued: synchronized, open, format, write and close per record
+     */
+    private static class LegacyFileLog {
+        static String sFile;
+
+        static synchronized void write(char lv, String tag, String msg) {
+            SimpleDateFormat sdf = new SimpleDateFormat("MM-dd HH:mm:ss.SSS");
+            PrintWriter writer = null;
+            try {
+                writer = new PrintWriter(new BufferedWriter(new FileWriter(sFile, true)));
+                writer.println(String.format("%s %c/%s: %s", sdf.format(new Date()), lv, tag, msg));
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                if (writer != null)
+                    writer.close();
+            }
+        }
+    }
+
+    private interface Logger {
+        void log(int i);
+    }
+
+    private static final Logger LEGACY = new Logger() {
+        @Override
+        public void log(int i) {
+            LegacyFileLog.write('i', Config.TAG_MAIN, "{Click} widget " + i);
+        }
+    };
+
+    private static final Logger QUEUED = new Logger() {
+        @Override
+        public void log(int i) {
+            FileLog.i(Config.TAG_MAIN, "{Click} widget " + i);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        mFileLog = Config.sFileLog;
+    }
+
+    @After
+    public void tearDown() {
+        FileLog.flush();
+        Config.sFileLog = mFileLog;
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void queuedLogIsFasterThanLegacy() throws Exception {
+        double legacy = measure(LEGACY, 1);
+        double queued = measure(QUEUED, 1);
+        double legacyThreads = measure(LEGACY, THREADS);
+        double queuedThreads = measure(QUEUED, THREADS);
+
+        Benchmark.report("FileLog, ns/record:   1 thread   " + THREADS + " threads");
+        Benchmark.report("  legacy         %10.0f %10.0f", legacy, legacyThreads);
+        Benchmark.report("  queued         %10.0f %10.0f", queued, queuedThreads);
+
+        assertTrue(String.format("queued %.0f ns, legacy %.0f ns", queued, legacy), queued * 2 < legacy);
+        assertTrue(String.format("queued %.0f ns, legacy %.0f ns with %d threads", queuedThreads, legacyThreads, THREADS),
+                queuedThreads * 2 < legacyThreads);
+    }
+
+    @Test
+    public void queuedLogWritesEveryRecord() throws Exception {
+        File file = mFolder.newFile("queued.log");
+        Config.sFileLog = file.getPath();
+        for (int i = 0; i < RECORDS; i++)
+            QUEUED.log(i);
+        FileLog.flush();
+
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            int count = 0;
+            while ((line = reader.readLine()) != null) {
+                assertTrue(line, line.matches(LINE));
+                assertTrue(line, line.endsWith("{Click} widget " + count));
+                count++;
+            }
+            assertEquals(RECORDS, count);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Median ns per record of Benchmark rounds
+     */
+    private double measure(final Logger logger, final int threads) throws Exception {
+        return Benchmark.median(new Benchmark.Round() {
+            @Override
+            public double run() throws Exception {
+                return round(logger, threads);
+            }
+        });
+    }
+
+    /**
+     * One round: ns per record on the calling threads, records written to a new file
+     */
+    private double round(final Logger logger, final int threads) throws Exception {
+        File file = mFolder.newFile();
+        LegacyFileLog.sFile = file.getPath();
+        Config.sFileLog = file.getPath();
+
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < RECORDS / threads; i++)
+                        logger.log(i);
+                }
+            });
+            workers[t].start();
+        }
+        ready.await();
+        long start = System.nanoTime();
+        go.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        long time = System.nanoTime() - start;
+        FileLog.flush(); // Writing is off the crawler thread, not counted
+        return (double) time / RECORDS;
+    }
+}
@@ -0,0 +1,328 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Benchmark;
+import com.eaway.appcrawler.Config;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * New screens per minute of depth first crawls on a simulated news app, widgets clicked in screen order,
+ * in a shuffled order and by NoveltyModel (GuidedCrawler). The shuffled crawl is the same depth first
+ * crawl with the unfinished widgets of a screen shuffled, not RandomCrawler; it is averaged over a few
+ * seeds. The guided order is deterministic, it runs once.
+ *
+ * Screens are built from uiautomator hierarchy dumps under test resources hierarchy/, the widgets are their
+ * clickables. Where a click goes is given by the resource-id (or content-desc) of the widget and its
+ * ordinal among widgets of the same id, e.g. the i-th story of a feed opens story i. As DepthFirstCrawler,
+ * leaving a screen not finished makes the widget that led to it unfinished again, and an unfinished
+ * screen reached again is crawled on. Time is simulated: every click, new screen and Back costs a fixed
+ * time.
+ */
+public class CrawlOrderBenchmarkTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final long CLICK_TIME = 1200;    // Click and wait for settle
+    private static final long NEW_SCREEN_TIME = 800;    // Screenshot and widget parsing
+    private static final long BACK_TIME = 600;
+    private static final long RUNTIME = 10 * 60 * 1000;
+    private static final int STORIES = 400;
+    private static final int SHUFFLED_RUNS = 5;
+
+    private static final String BACK = "(back)";
+
+    private final Map<String, UiSnapshot> mTemplates = new HashMap<String, UiSnapshot>();
+    private int mMaxDepth;
+
+    private interface Order {
+        List<UiWidget> order(List<UiWidget> widgets);
+
+        void update(UiWidget widget, boolean newScreen);
+    }
+
+    /**
+     * Screen of the simulated app and its widgets, finished ones are not clicked again
+     */
+    private static class Screen {
+        final String key;
+        final List<UiWidget> widgets = new ArrayList<UiWidget>();
+        final Map<UiWidget, Integer> ordinals = new HashMap<UiWidget, Integer>();
+        UiWidget parentWidget = null;   // Clicked in the parent screen to get here
+
+        Screen(String key, UiSnapshot snapshot) {
+            this.key = key;
+            Map<String, Integer> counts = new HashMap<String, Integer>();
+            for (UiNode node : snapshot.getClickables()) {
+                UiWidget widget = new UiWidget(null, node);
+                String name = name(widget);
+                Integer count = counts.get(name);
+                count = (count == null) ? 0 : count;
+                counts.put(name, count + 1);
+                ordinals.put(widget, count);
+                widgets.add(widget);
+            }
+        }
+
+        boolean isFinished() {
+            for (UiWidget widget : widgets) {
+                if (!widget.isFinished())
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mMaxDepth = Config.sMaxDepth;
+        for (String name : new String[]{"feed", "detail", "profile", "list"}) {
+            InputStream in = getClass().getResourceAsStream("/hierarchy/" + name + ".xml");
+            try {
+                mTemplates.put(name, UiSnapshot.fromXml(in));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    // Resource id without package, content description if there is none
+    private static String name(UiWidget widget) {
+        String id = widget.node.resourceId;
+        return (id.length() > 0) ? id.substring(id.indexOf('/') + 1) : widget.node.contentDesc;
+    }
+
+    private static String story(int n) {
+        return "story/" + (n % STORIES);
+    }
+
+    // Hierarchy the screen is built from
+    private static String template(String key) {
+        String page = key.substring(0, key.indexOf('/'));
+        if (page.equals("story"))
+            return "detail";
+        if (page.equals("feed") || page.equals("profile"))
+            return page;
+        return "list";
+    }
+
+    /**
+     * Screen after clicking the widget, null if the app stays in the screen, BACK if it goes back
+     */
+    private static String click(Screen screen, UiWidget widget) {
+        String name = name(widget);
+        int i = screen.ordinals.get(widget);
+        String page = screen.key.substring(0, screen.key.indexOf('/'));
+        int n = Integer.parseInt("0" + screen.key.substring(screen.key.indexOf('/') + 1).replaceAll("[^0-9]", ""));
+
+        if (name.equals("Navigate up"))
+            return BACK;
+        if (name.equals("tab_home"))
+            return "feed/home";
+        if (name.equals("tab_explore"))
+            return "feed/explore";
+        if (name.equals("tab_profile"))
+            return "profile/";
+        if (name.equals("action_search"))
+            return "search/";
+        if (name.equals("item_root"))
+            return story((screen.key.equals("feed/home") ? 0 : 50) + i);
+        if (name.equals("related_root"))
+            return story(n * 7 + i * 13 + 1);
+        if (name.equals("comments_button"))
+            return "comments/" + n;
+        if (name.equals("pref_row"))
+            return "settings/" + i;
+        if (name.equals("row") && page.equals("search"))
+            return story(90 + i * 3);
+        // Like, share, bookmark, switches, drawer, rows of comments and settings
+        return null;
+    }
+
+    // Leave the top screen, come back later through its parent widget if it is not finished
+    private static void pop(List<Screen> stack) {
+        Screen screen = stack.remove(stack.size() - 1);
+        if (screen.parentWidget != null && !screen.isFinished())
+            screen.parentWidget.setFinished(false);
+    }
+
+    /**
+     * Simulated depth first crawl from the home feed, new screens found at the end of every minute
+     */
+    private int[] crawl(Order order) {
+        Map<String, Screen> screens = new HashMap<String, Screen>();
+        Set<String> seen = new HashSet<String>();
+        List<Screen> stack = new ArrayList<Screen>();
+        int[] found = new int[(int) (RUNTIME / 60000)];
+        int newScreens = 1;
+        long time = NEW_SCREEN_TIME;
+
+        Screen root = new Screen("feed/home", mTemplates.get("feed"));
+        screens.put(root.key, root);
+        seen.add(root.key);
+        stack.add(root);
+        while (time < RUNTIME && !stack.isEmpty()) {
+            Screen screen = stack.get(stack.size() - 1);
+            List<UiWidget> widgets = order.order(screen.widgets);
+            if (widgets.isEmpty()) {
+                // Finished, back to the parent
+                pop(stack);
+                time += BACK_TIME;
+                continue;
+            }
+            UiWidget widget = widgets.get(0);
+            widget.setFinished(true);
+            time += CLICK_TIME;
+
+            String next = click(screen, widget);
+            if (next == null || next.equals(screen.key)) {
+                order.update(widget, false);
+            } else if (next.equals(BACK)) {
+                order.update(widget, false);
+                pop(stack);
+            } else if (seen.contains(next)) {
+                order.update(widget, false);
+                Screen old = screens.get(next);
+                if (old != null && !old.isFinished() && !stack.contains(old) && stack.size() < mMaxDepth) {
+                    old.parentWidget = widget;
+                    stack.add(old);
+                } else {
+                    time += BACK_TIME;
+                }
+            } else {
+                order.update(widget, true);
+                seen.add(next);
+                time += NEW_SCREEN_TIME;
+                if (time <= RUNTIME)
+                    newScreens++;
+                if (stack.size() >= mMaxDepth) {
+                    time += BACK_TIME;
+                } else {
+                    Screen child = new Screen(next, mTemplates.get(template(next)));
+                    child.parentWidget = widget;
+                    screens.put(next, child);
+                    stack.add(child);
+                }
+            }
+            for (int m = (int) (time / 60000); m < found.length; m++)
+                found[m] = newScreens;
+        }
+        return found;
+    }
+
+    private static Order inOrder() {
+        return new Order() {
+            @Override
+            public List<UiWidget> order(List<UiWidget> widgets) {
+                List<UiWidget> unfinished = new ArrayList<UiWidget>();
+                for (UiWidget widget : widgets) {
+                    if (!widget.isFinished())
+                        unfinished.add(widget);
+                }
+                return unfinished;
+            }
+
+            @Override
+            public void update(UiWidget widget, boolean newScreen) {
+            }
+        };
+    }
+
+    private static Order shuffled(final Random random) {
+        final Order inOrder = inOrder();
+        return new Order() {
+            @Override
+            public List<UiWidget> order(List<UiWidget> widgets) {
+                List<UiWidget> unfinished = inOrder.order(widgets);
+                Collections.shuffle(unfinished, random);
+                return unfinished;
+            }
+
+            @Override
+            public void update(UiWidget widget, boolean newScreen) {
+            }
+        };
+    }
+
+    private static Order guided(final NoveltyModel model) {
+        return new Order() {
+            @Override
+            public List<UiWidget> order(List<UiWidget> widgets) {
+                return model.order(widgets, WIDTH, HEIGHT);
+            }
+
+            @Override
+            public void update(UiWidget widget, boolean newScreen) {
+                model.update(widget, WIDTH, HEIGHT, newScreen);
+            }
+        };
+    }
+
+    private static String format(double[] found) {
+        StringBuilder sb = new StringBuilder();
+        for (double screens : found)
+            sb.append(String.format("%6.1f", screens));
+        return sb.toString();
+    }
+
+    @Test
+    public void loadsRecordedHierarchies() {
+        Screen feed = new Screen("feed/home", mTemplates.get("feed"));
+        // Drawer, search, 6 stories with like and share, 3 tabs
+        assertEquals(2 + 6 * 3 + 3, feed.widgets.size());
+        assertEquals("Open navigation drawer", name(feed.widgets.get(0)));
+        assertEquals("story/2", click(feed, feed.widgets.get(2 + 2 * 3)));
+        assertEquals(null, click(feed, feed.widgets.get(3)));
+        Screen story = new Screen("story/7", mTemplates.get("detail"));
+        assertEquals(BACK, click(story, story.widgets.get(0)));
+        assertEquals("comments/7", click(story, story.widgets.get(4)));
+    }
+
+    @Test
+    public void reportsScreensPerMinute() {
+        Config.sMaxDepth = 4;
+        try {
+            int minutes = (int) (RUNTIME / 60000);
+            double[] inOrder = new double[minutes];
+            double[] shuffled = new double[minutes];
+            double[] guided = new double[minutes];
+            int[] found = crawl(inOrder());
+            for (int m = 0; m < minutes; m++)
+                inOrder[m] = found[m];
+            for (int run = 0; run < SHUFFLED_RUNS; run++) {
+                found = crawl(shuffled(new Random(run)));
+                for (int m = 0; m < minutes; m++)
+                    shuffled[m] += (double) found[m] / SHUFFLED_RUNS;
+            }
+            found = crawl(guided(new NoveltyModel()));
+            for (int m = 0; m < minutes; m++)
+                guided[m] = found[m];
+
+            Benchmark.report("Simulated crawl, new screens found by minute 1.." + minutes);
+            Benchmark.report("  in order: " + format(inOrder));
+            Benchmark.report("  shuffled: " + format(shuffled));
+            Benchmark.report("  guided:   " + format(guided));
+            Benchmark.report("New screens per minute: in order %.1f, shuffled %.1f, guided %.1f",
+                    inOrder[minutes - 1] / minutes, shuffled[minutes - 1] / minutes, guided[minutes - 1] / minutes);
+
+            // Every order finds screens all along, which one finds most is the report above
+            for (double[] order : new double[][]{inOrder, shuffled, guided})
+                assertTrue(order[minutes - 1] > order[0]);
+        } finally {
+            Config.sMaxDepth = mMaxDepth;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Benchmark;
+import com.eaway.appcrawler.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Lookup time of ScreenRegistry from 10 to 100k scanned screens, it should stay flat
+ */
+public class ScreenRegistryBenchmarkTest {
+    private static final int[] SIZES = {10, 100, 1000, 10000, 100000};
+    private static final int LOOKUPS = 200000;
+    private static final String LAYOUT = "FrameLayout;LinearLayout;FrameLayout;ViewGroup;ImageButton;TextView;";
+
+    private final ScreenRegistry mRegistry = ScreenRegistry.getInstance();
+    private int mThreshold;
+
+    @Before
+    public void setUp() {
+        mThreshold = Config.sSimilarityThreshold;
+        Config.sSimilarityThreshold = 0;
+        mRegistry.clear();
+    }
+
+    @After
+    public void tearDown() {
+        Config.sSimilarityThreshold = mThreshold;
+        mRegistry.clear();
+    }
+
+    private static UiScreen screen(int i, Random random) {
+        String signature = LAYOUT + "ListView;TextView" + i + ";";
+        return new UiScreen("com.example", signature, ScreenRegistry.hash(signature), random.nextLong());
+    }
+
+    @Test
+    public void findsRegisteredScreens() {
+        Random random = new Random(1);
+        UiScreen a = screen(1, random);
+        UiScreen b = screen(2, random);
+        mRegistry.add(a);
+        mRegistry.add(b);
+        mRegistry.add(screen(1, random));
+        assertEquals(2, mRegistry.size());
+        assertSame(a, mRegistry.find(screen(1, random)));
+        assertSame(b, mRegistry.find(screen(2, random)));
+        assertNull(mRegistry.find(screen(3, random)));
+    }
+
+    @Test
+    @Category(Benchmark.class)
+    public void lookupTimeStaysFlat() throws Exception {
+        double[] nanos = new double[SIZES.length];
+        for (int s = 0; s < SIZES.length; s++)
+            nanos[s] = measure(SIZES[s]);
+
+        Benchmark.report("ScreenRegistry.find, screens: ns/lookup");
+        for (int s = 0; s < SIZES.length; s++)
+            Benchmark.report("%8d: %.1f", SIZES[s], nanos[s]);
+
+        // Bigger tables miss the CPU cache more often, a linear scan would be 10000 times slower
+        double smallest = Math.max(nanos[0], 20);
+        assertTrue(String.format("%.1f ns at %d screens, %.1f ns at %d screens", nanos[SIZES.length - 1],
+                SIZES[SIZES.length - 1], nanos[0], SIZES[0]), nanos[SIZES.length - 1] < smallest * 20);
+    }
+
+    /**
+     * Median ns per lookup with size screens registered, half of the lookups are new screens
+     */
+    private double measure(int size) throws Exception {
+        Random random = new Random(size);
+        mRegistry.clear();
+        for (int i = 0; i < size; i++)
+            mRegistry.add(screen(i, random));
+        final UiScreen[] probes = new UiScreen[1024];
+        for (int i = 0; i < probes.length; i++)
+            probes[i] = screen((i % 2 == 0) ? random.nextInt(size) : size + i, random);
+
+        final int[] found = {0};
+        double nanos = Benchmark.median(new Benchmark.Round() {
+            @Override
+            public double run() {
+                long start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    if (mRegistry.find(probes[i & (probes.length - 1)]) != null)
+                        found[0]++;
+                }
+                return (double) (System.nanoTime() - start) / LOOKUPS;
+            }
+        });
+        assertEquals((Benchmark.ROUNDS + 1) * LOOKUPS / 2, found[0]);
+        return nanos;
+    }
+}
@@ -0,0 +1,140 @@
+package com.eaway.appcrawler.common;
+
+import android.view.accessibility.AccessibilityEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SettleDetector fed by a fake event source instead of UiAutomation
+ */
+public class SettleDetectorTest {
+    private static final String PKG = "com.example";
+
+    private SettleDetector mDetector;
+    private EventSource mSource;
+
+    /**
+     * Push one event every interval millisecond for duration millisecond on its own thread, as UiAutomation does
+     */
+    private static class EventSource extends Thread {
+        private final SettleDetector mDetector;
+        private final String mPkg;
+        private final long mInterval;
+        private final long mDuration;
+
+        EventSource(SettleDetector detector, String pkg, long interval, long duration) {
+            mDetector = detector;
+            mPkg = pkg;
+            mInterval = interval;
+            mDuration = duration;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            long end = System.currentTimeMillis() + mDuration;
+            while (System.currentTimeMillis() < end) {
+                mDetector.onEvent(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, mPkg, null);
+                try {
+                    Thread.sleep(mInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mDetector = new SettleDetector();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (mSource != null) {
+            mSource.interrupt();
+            mSource.join();
+        }
+    }
+
+    private void startSource(String pkg, long interval, long duration) {
+        mSource = new EventSource(mDetector, pkg, interval, duration);
+        mSource.start();
+    }
+
+    @Test
+    public void tracksWindowTitle() {
+        assertNull(mDetector.getCurrentActivityName());
+        mDetector.onEvent(AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED, PKG, "Settings");
+        assertEquals("Settings", mDetector.getCurrentActivityName());
+
+        // Content changes and events without title keep the last title
+        mDetector.onEvent(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, PKG, "Wi-Fi");
+        mDetector.onEvent(AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED, PKG, null);
+        assertEquals("Settings", mDetector.getCurrentActivityName());
+    }
+
+    @Test
+    public void settlesAfterQuietTimeWithoutEvents() {
+        long waited = mDetector.waitForSettle(50, 0, 1000);
+        assertFalse(mDetector.isTimeout());
+        assertTrue("waited " + waited, waited >= 50 && waited < 500);
+    }
+
+    @Test
+    public void waitsForMinTime() {
+        long waited = mDetector.waitForSettle(10, 200, 1000);
+        assertFalse(mDetector.isTimeout());
+        assertTrue("waited " + waited, waited >= 200);
+    }
+
+    @Test
+    public void waitsUntilEventsStop() {
+        startSource(PKG, 20, 300);
+        long waited = mDetector.waitForSettle(100, 0, 3000);
+        assertFalse(mDetector.isTimeout());
+        assertTrue("waited " + waited, waited >= 350 && waited < 2000);
+        assertTrue(mDetector.getEventCount() > 5);
+    }
+
+    @Test
+    public void timesOutOnEndlessEvents() {
+        startSource(PKG, 10, 5000);
+        long waited = mDetector.waitForSettle(100, 0, 300);
+        assertTrue(mDetector.isTimeout());
+        assertTrue("waited " + waited, waited >= 300 && waited < 2000);
+    }
+
+    @Test
+    public void ignoresSystemUi() {
+        startSource("com.android.systemui", 10, 5000);
+        long waited = mDetector.waitForSettle(50, 0, 1000);
+        assertFalse(mDetector.isTimeout());
+        assertTrue("waited " + waited, waited < 500);
+        assertEquals(0, mDetector.getEventCount());
+    }
+
+    @Test
+    public void measuresDelayFromMark() throws InterruptedException {
+        mDetector.mark();
+        assertEquals(-1, mDetector.getFirstEventDelay());
+        assertEquals(-1, mDetector.getLastEventDelay());
+
+        Thread.sleep(50);
+        mDetector.onEvent(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, PKG, null);
+        Thread.sleep(100);
+        mDetector.onEvent(AccessibilityEvent.TYPE_VIEW_SCROLLED, PKG, null);
+
+        long first = mDetector.getFirstEventDelay();
+        long last = mDetector.getLastEventDelay();
+        assertTrue("first " + first, first >= 50 && first < 140);
+        assertTrue("last " + last, last >= 150 && last > first);
+    }
+}
@@ -0,0 +1,101 @@
+package com.eaway.appcrawler.common;
+
+import android.view.accessibility.AccessibilityEvent;
+
+import com.eaway.appcrawler.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SettleModel on the shared SettleDetector, UI events pushed by a thread as UiAutomation does
+ */
+public class SettleModelTest {
+    private static final long KEY = 42;
+
+    private final SettleModel mModel = SettleModel.getInstance();
+    private Thread mAnimation;
+    private int mWaitIdleTimeout;
+    private int mQuietTime;
+    private int mMinTime;
+
+    @Before
+    public void setUp() {
+        mWaitIdleTimeout = Config.sWaitIdleTimeout;
+        mQuietTime = Config.sSettleQuietTime;
+        mMinTime = Config.sSettleMinTime;
+        Config.sWaitIdleTimeout = 1000;
+        Config.sSettleQuietTime = 30;
+        Config.sSettleMinTime = 0;
+        mModel.reset();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        stopAnimation();
+        mModel.reset();
+        Config.sWaitIdleTimeout = mWaitIdleTimeout;
+        Config.sSettleQuietTime = mQuietTime;
+        Config.sSettleMinTime = mMinTime;
+    }
+
+    // A UI event every 10 ms until stopped, the UI is never quiet
+    private void startAnimation() {
+        mAnimation = new Thread() {
+            @Override
+            public void run() {
+                while (!isInterrupted()) {
+                    SettleDetector.getInstance().onEvent(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, "com.example", null);
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        };
+        mAnimation.setDaemon(true);
+        mAnimation.start();
+    }
+
+    private void stopAnimation() throws InterruptedException {
+        if (mAnimation == null)
+            return;
+        mAnimation.interrupt();
+        mAnimation.join();
+        mAnimation = null;
+    }
+
+    private void learnQuietScreen() {
+        for (int i = 0; i < 5; i++)
+            mModel.waitForSettle(KEY);
+    }
+
+    @Test
+    public void quietWaitsAreNoCutOffs() {
+        learnQuietScreen();
+        assertEquals(Config.sWaitIdleTimeout, mModel.getMaxWait(SettleModel.key(null, "unknown")));
+        assertTrue(mModel.getMaxWait(KEY) < Config.sWaitIdleTimeout);
+
+        // Settled on quiet long before the bound, as short as without the model
+        mModel.waitForSettle(KEY);
+        assertEquals(5, mModel.getUnknownWaits());
+        assertEquals(1, mModel.getLearnedWaits());
+        assertEquals(0, mModel.getCutOffs());
+    }
+
+    @Test
+    public void animationIsCutAtLearnedBound() throws InterruptedException {
+        learnQuietScreen();
+        long bound = mModel.getMaxWait(KEY);
+        startAnimation();
+        long waited = mModel.waitForSettle(KEY);
+        stopAnimation();
+        assertTrue("waited " + waited + ", bound " + bound, waited >= bound && waited < Config.sWaitIdleTimeout);
+        assertEquals(1, mModel.getCutOffs());
+    }
+}
@@ -0,0 +1,103 @@
+package com.eaway.appcrawler.common;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SimHash fingerprints and lookups of the banded index at the band and MAX_DISTANCE boundaries
+ */
+public class SimHashTest {
+    private static final long FINGERPRINT = 0x0123456789abcdefL;
+
+    private static Set<String> features(String... features) {
+        return new HashSet<String>(Arrays.asList(features));
+    }
+
+    // Flip one bit in each of the given bands, at the given bit of the band
+    private static long flip(long fingerprint, int bit, int... bands) {
+        for (int band : bands)
+            fingerprint ^= 1L << (band * 8 + bit);
+        return fingerprint;
+    }
+
+    @Test
+    public void distanceCountsDifferentBits() {
+        assertEquals(0, SimHash.distance(FINGERPRINT, FINGERPRINT));
+        assertEquals(64, SimHash.distance(FINGERPRINT, ~FINGERPRINT));
+        assertEquals(1, SimHash.distance(0L, Long.MIN_VALUE));
+        assertEquals(3, SimHash.distance(FINGERPRINT, flip(FINGERPRINT, 0, 0, 3, 7)));
+    }
+
+    @Test
+    public void computeIsStableAndOrderFree() {
+        assertEquals(0L, SimHash.compute(new HashSet<String>()));
+        // Single feature: the fingerprint is its hash
+        assertEquals(ScreenRegistry.hash("a"), SimHash.compute(features("a")));
+        assertEquals(SimHash.compute(features("a", "b", "c")), SimHash.compute(features("c", "b", "a")));
+    }
+
+    @Test
+    public void oneMoreFeatureIsNear() {
+        Set<String> features = new HashSet<String>();
+        for (int i = 0; i < 40; i++)
+            features.add(i + ":LinearLayout>TextView#id/title" + i);
+        long before = SimHash.compute(features);
+        features.add("40:LinearLayout>ImageView#id/badge");
+        long after = SimHash.compute(features);
+        assertTrue(SimHash.distance(before, after) <= SimHash.MAX_DISTANCE);
+        assertTrue(SimHash.distance(before, SimHash.compute(features("x", "y", "z"))) > SimHash.MAX_DISTANCE);
+    }
+
+    @Test
+    public void findsUpToMaxDistanceAcrossBands() {
+        SimHash.Index<String> index = new SimHash.Index<String>();
+        index.add(FINGERPRINT, "a");
+        assertEquals("a", index.findNearest(FINGERPRINT, 0));
+
+        // MAX_DISTANCE bits in as many bands, one band is left the same
+        long far = flip(FINGERPRINT, 7, 0, 1, 2, 3, 4, 5, 6);
+        assertEquals(SimHash.MAX_DISTANCE, SimHash.distance(FINGERPRINT, far));
+        assertEquals("a", index.findNearest(far, SimHash.MAX_DISTANCE));
+        assertNull(index.findNearest(far, SimHash.MAX_DISTANCE - 1));
+
+        // Last bit of one band and first bit of the next
+        long edge = FINGERPRINT ^ (1L << 7) ^ (1L << 8) ^ (1L << 63);
+        assertEquals("a", index.findNearest(edge, 3));
+    }
+
+    @Test
+    public void missesBeyondMaxDistanceInEveryBand() {
+        SimHash.Index<String> index = new SimHash.Index<String>();
+        index.add(FINGERPRINT, "a");
+        // One bit more than MAX_DISTANCE, spread over all bands: no band in common
+        long spread = flip(FINGERPRINT, 0, 0, 1, 2, 3, 4, 5, 6, 7);
+        assertEquals(SimHash.MAX_DISTANCE + 1, SimHash.distance(FINGERPRINT, spread));
+        assertNull(index.findNearest(spread, SimHash.MAX_DISTANCE + 1));
+
+        // Same distance in one band only is still found, the index is exact up to MAX_DISTANCE only
+        long oneBand = FINGERPRINT ^ (0xffL << 16);
+        assertEquals(8, SimHash.distance(FINGERPRINT, oneBand));
+        assertEquals("a", index.findNearest(oneBand, 8));
+        assertNull(index.findNearest(oneBand, SimHash.MAX_DISTANCE));
+    }
+
+    @Test
+    public void returnsNearestAndClears() {
+        SimHash.Index<String> index = new SimHash.Index<String>();
+        index.add(flip(FINGERPRINT, 2, 1, 2, 3, 4, 5), "five");
+        index.add(flip(FINGERPRINT, 2, 1, 2), "two");
+        index.add(~FINGERPRINT, "far");
+        assertEquals("two", index.findNearest(FINGERPRINT, SimHash.MAX_DISTANCE));
+        assertEquals("five", index.findNearest(flip(FINGERPRINT, 2, 1, 2, 3, 4), 1));
+
+        index.clear();
+        assertNull(index.findNearest(FINGERPRINT, SimHash.MAX_DISTANCE));
+    }
+}
@@ -0,0 +1,107 @@
+package com.eaway.appcrawler.common;
+
+import com.eaway.appcrawler.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Screens and crawl steps of a corpus of hierarchy dumps, with exact signature matching and with
+ * SimHash similarity (Config.sSimilarityThreshold).
+ *
+ * The dumps are visited in the order below, like one crawl would find them. Under test resources
+ * hierarchy/ are the first visit of each screen, hierarchy/corpus/ has the same screens later: lists
+ * with fewer or more rows, other texts, an ad banner, an empty result. A screen not matched to a scanned
+ * one is new and all its clickables are crawled, the steps saved are the clicks exact matching needs more.
+ */
+public class SimilarityCorpusTest {
+    private static final String[] CORPUS = {
+            "feed", "detail", "corpus/detail_2_related", "list", "corpus/feed_5_rows", "corpus/list_5_rows",
+            "profile", "corpus/feed_7_rows", "corpus/feed_explore", "corpus/detail_ad", "corpus/list_empty",
+            "corpus/feed_5_rows"
+    };
+
+    private final Map<String, UiSnapshot> mDumps = new HashMap<String, UiSnapshot>();
+    private final ScreenRegistry mRegistry = ScreenRegistry.getInstance();
+    private int mThreshold;
+
+    @Before
+    public void setUp() throws IOException {
+        mThreshold = Config.sSimilarityThreshold;
+        for (String name : CORPUS) {
+            InputStream in = getClass().getResourceAsStream("/hierarchy/" + name + ".xml");
+            try {
+                mDumps.put(name, UiSnapshot.fromXml(in));
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        Config.sSimilarityThreshold = mThreshold;
+        mRegistry.clear();
+    }
+
+    // Base screen of a dump, "corpus/feed_5_rows" is a feed
+    private static String template(String name) {
+        String base = name.substring(name.lastIndexOf('/') + 1);
+        int end = base.indexOf('_');
+        return (end < 0) ? base : base.substring(0, end);
+    }
+
+    /**
+     * Screens found and clicks needed to crawl them: {screens, steps}
+     */
+    private int[] crawl(int threshold) {
+        Config.sSimilarityThreshold = threshold;
+        mRegistry.clear();
+        Map<UiScreen, String> templates = new HashMap<UiScreen, String>();
+        int steps = 0;
+        for (String name : CORPUS) {
+            UiSnapshot snapshot = mDumps.get(name);
+            int clickables = snapshot.getClickables().size();
+            UiScreen scanned = mRegistry.find(snapshot);
+            if (scanned == null) {
+                UiScreen screen = new UiScreen(snapshot.getPackageName(), snapshot.getSignature(),
+                        snapshot.getStructureHash(), snapshot.getSimHash());
+                mRegistry.add(screen);
+                templates.put(screen, template(name));
+                steps += clickables;
+            } else {
+                // Never a screen of another kind
+                assertEquals(name, templates.get(scanned), template(name));
+            }
+        }
+        return new int[]{mRegistry.size(), steps};
+    }
+
+    @Test
+    public void reportsStepsSavedAgainstExactMatching() {
+        int[] exact = crawl(0);
+        System.out.println("Corpus of " + CORPUS.length + " dumps, threshold: screens, steps, steps saved");
+        System.out.println(String.format("  exact: %d, %d", exact[0], exact[1]));
+        int[] similar = exact;
+        for (int threshold = 1; threshold <= SimHash.MAX_DISTANCE; threshold++) {
+            similar = crawl(threshold);
+            System.out.println(String.format("  %d: %d, %d, %d", threshold, similar[0], similar[1], exact[1] - similar[1]));
+            assertTrue(similar[1] <= exact[1]);
+        }
+
+        // Same texts are one screen without similarity: feed_explore and the second feed_5_rows
+        assertEquals(CORPUS.length - 2, exact[0]);
+        // Rows added or removed are the same screen, an ad banner and an empty list are not
+        assertEquals(6, similar[0]);
+        assertTrue(similar[1] < exact[1]);
+    }
+}
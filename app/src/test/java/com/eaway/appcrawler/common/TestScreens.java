@@ -0,0 +1,15 @@
+package com.eaway.appcrawler.common;
+
+/**
+ * Screens without device for tests outside this package
+ */
+public final class TestScreens {
+    private TestScreens() {
+    }
+
+    public static UiScreen screen(String activity, String signature) {
+        UiScreen screen = new UiScreen("com.example.news", signature, ScreenRegistry.hash(signature), 0);
+        screen.name = activity;
+        return screen;
+    }
+}
@@ -0,0 +1,85 @@
+package com.eaway.appcrawler.common;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * TransitionCache probes on the hierarchy fixtures: a story of the feed opens the detail screen
+ */
+public class TransitionCacheTest {
+    private final TransitionCache mCache = TransitionCache.getInstance();
+    private UiSnapshot mFeed;
+    private UiSnapshot mDetail;
+    private UiSnapshot mList;
+
+    private UiSnapshot load(String name) throws IOException {
+        InputStream in = getClass().getResourceAsStream("/hierarchy/" + name + ".xml");
+        try {
+            return UiSnapshot.fromXml(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static UiScreen screen(UiSnapshot snapshot) {
+        return new UiScreen(snapshot.getPackageName(), snapshot.getSignature(), snapshot.getStructureHash(),
+                snapshot.getSimHash());
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mCache.clear();
+        mFeed = load("feed");
+        mDetail = load("detail");
+        mList = load("list");
+    }
+
+    @After
+    public void tearDown() {
+        mCache.clear();
+    }
+
+    @Test
+    public void probesKnownDestination() {
+        UiScreen feed = screen(mFeed);
+        UiScreen detail = screen(mDetail);
+        UiWidget story = new UiWidget(null, mFeed.getClickables().get(2));
+        assertNull(mCache.probe(feed, story, mDetail));
+
+        mCache.put(feed, story, detail);
+        assertSame(detail, mCache.probe(feed, story, mDetail));
+        // Same click, other layout: build the screen as usual
+        assertNull(mCache.probe(feed, story, mList));
+        assertEquals(1, mCache.getHits());
+        assertEquals(2, mCache.getMisses());
+    }
+
+    @Test
+    public void skipsUnstableTransition() {
+        UiScreen feed = screen(mFeed);
+        UiScreen detail = screen(mDetail);
+        UiScreen list = screen(mList);
+        UiWidget story = new UiWidget(null, mFeed.getClickables().get(2));
+
+        mCache.put(feed, story, detail);
+        mCache.put(feed, story, list);
+        TransitionCache.Transition transition = mCache.get(feed, story);
+        assertTrue(transition.isUnstable());
+        // Destination changed last time, not trusted even if the layout matches
+        assertNull(mCache.probe(feed, story, mList));
+
+        mCache.put(feed, story, list);
+        assertFalse(transition.isUnstable());
+        assertSame(list, mCache.probe(feed, story, mList));
+    }
+}
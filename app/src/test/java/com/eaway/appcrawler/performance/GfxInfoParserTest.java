@@ -0,0 +1,99 @@
+package com.eaway.appcrawler.performance;
+
+import com.eaway.appcrawler.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * GfxInfoParser against a recorded "dumpsys gfxinfo [package] framestats" in test resources gfxinfo/
+ */
+public class GfxInfoParserTest {
+    private int mJankFrameTime;
+
+    @Before
+    public void setUp() {
+        mJankFrameTime = Config.sJankFrameTime;
+        Config.sJankFrameTime = 17;
+    }
+
+    @After
+    public void tearDown() {
+        Config.sJankFrameTime = mJankFrameTime;
+    }
+
+    private static JankStats parse(InputStream in) throws IOException {
+        JankStats stats = new JankStats();
+        try {
+            GfxInfoParser.parse(in, stats);
+        } finally {
+            in.close();
+        }
+        return stats;
+    }
+
+    private static JankStats parse(String text) throws IOException {
+        return parse(new ByteArrayInputStream(text.getBytes("UTF-8")));
+    }
+
+    @Test
+    public void parsesFramestats() throws IOException {
+        JankStats stats = parse(getClass().getResourceAsStream("/gfxinfo/framestats.txt"));
+
+        // Two windows: 8.2, 12.5, 16.9, 40.3 ms, then 120 and 5 ms with the shorter header of older Android.
+        // The flagged row and the row not completed are not frames.
+        assertEquals(6, stats.getFrames());
+        assertEquals(2, stats.getJankyFrames());
+        assertEquals(12, stats.getPercentile(50));
+        assertEquals(40, stats.getPercentile(80));
+        assertEquals(120, stats.getPercentile(95));
+        assertEquals(120, stats.getMaxMillis());
+
+        // Summary of the process, the one of the first window is already in it
+        assertEquals(412, stats.reportedFrames);
+        assertEquals(37, stats.reportedJankyFrames);
+    }
+
+    @Test
+    public void findsColumnsByName() throws IOException {
+        JankStats stats = parse("---PROFILEDATA---\n" +
+                "FrameCompleted,Vsync,IntendedVsync,Flags,\n" +
+                "30000000,10000000,10000000,0,\n" +
+                "70000000,50000000,40000000,0,\n" +
+                "---PROFILEDATA---\n");
+        assertEquals(2, stats.getFrames());
+        assertEquals(20, stats.getPercentile(50));
+        assertEquals(30, stats.getMaxMillis());
+    }
+
+    @Test
+    public void skipsRowsWithoutNeededColumns() throws IOException {
+        JankStats stats = parse("---PROFILEDATA---\n" +
+                "Flags,Vsync,FrameCompleted,\n" +
+                "0,10000000,30000000,\n" +
+                "---PROFILEDATA---\n" +
+                "---PROFILEDATA---\n" +
+                "Flags,IntendedVsync,FrameCompleted,\n" +
+                "0,abc,30000000,\n" +
+                "0,,30000000,\n" +
+                "0,10000000,30000000\n" +
+                "---PROFILEDATA---\n");
+        assertEquals(1, stats.getFrames());
+        assertEquals(20, stats.getMaxMillis());
+    }
+
+    @Test
+    public void emptyOutput() throws IOException {
+        JankStats stats = parse("Applications Graphics Acceleration Info:\nNo process found for: com.example.none\n");
+        assertTrue(stats.isEmpty());
+        assertEquals(0, stats.getPercentile(95));
+    }
+}
@@ -0,0 +1,144 @@
+package com.eaway.appcrawler.performance;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LogHistogram percentiles against exact percentiles of the same samples
+ */
+public class LogHistogramTest {
+    private static final double MAX_ERROR = 1.0 / 32; // Half of 1 / SUB_BUCKETS
+
+    // Nearest rank, same definition as LogHistogram
+    private static double exact(double[] sorted, double percentile) {
+        int rank = (int) Math.max(1, Math.ceil(percentile / 100 * sorted.length));
+        return sorted[rank - 1];
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        assertEquals(0, LogHistogram.index(0));
+        long previous = -1;
+        int last = LogHistogram.index(Long.MAX_VALUE);
+        for (int i = 0; i < last; i++) {
+            long lowest = LogHistogram.lowest(i);
+            assertTrue(lowest > previous);
+            assertEquals(i, LogHistogram.index(lowest));
+            assertEquals(i, LogHistogram.index(LogHistogram.lowest(i + 1) - 1));
+            previous = lowest;
+        }
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        LogHistogram histogram = new LogHistogram(1);
+        for (int v = 0; v < 32; v++)
+            histogram.add(v);
+        for (int v = 0; v < 32; v++)
+            assertEquals(v, histogram.getPercentile(100.0 * (v + 1) / 32), 0);
+        assertEquals(0, histogram.getMin(), 0);
+        assertEquals(31, histogram.getMax(), 0);
+        assertEquals(15.5, histogram.getMean(), 1e-9);
+    }
+
+    @Test
+    public void percentilesWithinRelativeError() {
+        Random random = new Random(18);
+        double[] values = new double[100000];
+        LogHistogram histogram = new LogHistogram(1);
+        for (int i = 0; i < values.length; i++) {
+            // Long tail like step times in millisecond, median around 400
+            values[i] = Math.round(Math.exp(6 + random.nextGaussian()));
+            histogram.add(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[]{1, 10, 50, 90, 95, 99, 99.9}) {
+            double expected = exact(values, p);
+            double actual = histogram.getPercentile(p);
+            assertTrue("p" + p + " " + actual + " vs " + expected,
+                    Math.abs(actual - expected) <= expected * MAX_ERROR + 1);
+        }
+        assertEquals(values[0], histogram.getMin(), 0);
+        assertEquals(values[values.length - 1], histogram.getMax(), 0);
+        double max = values[values.length - 1];
+        assertEquals(max, histogram.getPercentile(100), max * MAX_ERROR);
+    }
+
+    @Test
+    public void keepsDecimalsWithScale() {
+        LogHistogram histogram = new LogHistogram(10);
+        histogram.add(12.34);
+        histogram.add(0.5);
+        histogram.add(-3);
+        assertEquals(3, histogram.getCount());
+        assertEquals(0, histogram.getMin(), 0);
+        assertEquals(12.3, histogram.getMax(), 1e-9);
+        assertEquals(0.5, histogram.getPercentile(60), 1e-9);
+    }
+
+    @Test
+    public void hugeValuesGoToLastBucket() {
+        LogHistogram histogram = new LogHistogram(1);
+        histogram.add(1e15);
+        histogram.add(1e16);
+        assertEquals(LogHistogram.index(1L << 40), LogHistogram.index(Long.MAX_VALUE));
+        assertEquals(1e16, histogram.getMax(), 0);
+        assertTrue(histogram.getPercentile(50) <= 1e16);
+    }
+
+    @Test
+    public void mergeIsSameAsAddingAll() {
+        Random random = new Random(7);
+        LogHistogram all = new LogHistogram(10);
+        LogHistogram a = new LogHistogram(10);
+        LogHistogram b = new LogHistogram(10);
+        for (int i = 0; i < 5000; i++) {
+            double value = random.nextDouble() * 100;
+            all.add(value);
+            (i % 3 == 0 ? a : b).add(value);
+        }
+        a.merge(b);
+        assertEquals(all.getCount(), a.getCount());
+        assertEquals(all.getMin(), a.getMin(), 0);
+        assertEquals(all.getMax(), a.getMax(), 0);
+        assertEquals(all.getMean(), a.getMean(), 1e-9);
+        for (double p = 0; p <= 100; p += 5)
+            assertEquals(all.getPercentile(p), a.getPercentile(p), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void mergeNeedsSameScale() {
+        new LogHistogram(1).merge(new LogHistogram(10));
+    }
+
+    @Test
+    public void resetEmpties() {
+        LogHistogram histogram = new LogHistogram(1);
+        histogram.add(100);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50), 0);
+        assertEquals(0, histogram.getMax(), 0);
+        histogram.add(5);
+        assertEquals(5, histogram.getMin(), 0);
+    }
+
+    @Test
+    public void screenHistogramsMergeIntoTotal() {
+        ScreenHistograms<Integer> screens = new ScreenHistograms<Integer>(1);
+        for (int i = 1; i <= 100; i++)
+            screens.add(i % 4, i);
+        assertEquals(4, screens.getScreens().size());
+        assertEquals(25, screens.get(0).getCount());
+        assertEquals(100, screens.get(0).getMax(), 0);
+        assertEquals(null, screens.get(9));
+        LogHistogram total = screens.getTotal();
+        assertEquals(100, total.getCount());
+        assertEquals(50.5, total.getMean(), 1e-9);
+    }
+}
@@ -0,0 +1,131 @@
+package com.eaway.appcrawler.performance;
+
+import com.eaway.appcrawler.Config;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * MemSampler against the fixture files under test resources proc/ and meminfo/, "dumpsys meminfo" is not run
+ */
+public class MemSamplerTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final int[] mOut = new int[MemSampler.SIZE];
+    private MemSampler mSampler;
+    private int mMeminfoInterval;
+
+    @Before
+    public void setUp() {
+        mMeminfoInterval = Config.sMeminfoInterval;
+        Config.sMeminfoInterval = 0;
+        mSampler = new MemSampler(ProcReaderTest.fixtureRoot());
+    }
+
+    @After
+    public void tearDown() {
+        mSampler.close();
+        Config.sMeminfoInterval = mMeminfoInterval;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void parseMeminfo(MemSampler sampler) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream("/meminfo/app.txt"), "UTF-8"));
+        try {
+            sampler.parseMeminfo(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void readsSmapsRollup() {
+        assertEquals(MemSampler.SOURCE_SMAPS_ROLLUP, mSampler.sample(1234, mOut, 0));
+        assertEquals(98734, mOut[MemSampler.PSS]);
+        assertEquals(143028, mOut[MemSampler.RSS]);
+        assertEquals(75276, mOut[MemSampler.PRIVATE_DIRTY]);
+        assertEquals(6120, mOut[MemSampler.SHARED_DIRTY]);
+        assertEquals(0, mOut[MemSampler.JAVA_HEAP]);
+        assertEquals(98734, mOut[MemSampler.OTHER]);
+    }
+
+    @Test
+    public void fallsBackToStatus() {
+        // Process 5678 has no smaps_rollup, as before Android 10
+        assertEquals(MemSampler.SOURCE_STATUS, mSampler.sample(5678, mOut, 0));
+        assertEquals(86528, mOut[MemSampler.RSS]);
+        assertEquals(86528, mOut[MemSampler.PSS]);
+        assertEquals(0, mOut[MemSampler.PRIVATE_DIRTY]);
+    }
+
+    @Test
+    public void fallsBackToStatusWithoutPss() throws IOException {
+        File root = mFolder.newFolder("proc");
+        write(new File(root, "42/smaps_rollup"), "Rss:  1000 kB\n");
+        write(new File(root, "42/status"), "Name:\tapp\nVmRSS:\t  900 kB\n");
+        MemSampler sampler = new MemSampler(root.getPath());
+        assertEquals(MemSampler.SOURCE_STATUS, sampler.sample(42, mOut, 0));
+        assertEquals(900, mOut[MemSampler.PSS]);
+        sampler.close();
+    }
+
+    @Test
+    public void splitsPssWithMeminfo() throws IOException {
+        mSampler.sample(1234, mOut, 0);
+        parseMeminfo(mSampler);
+        assertEquals(MemSampler.SOURCE_SMAPS_ROLLUP, mSampler.sample(1234, mOut, 100));
+        assertEquals(21164, mOut[MemSampler.JAVA_HEAP]);
+        assertEquals(22076, mOut[MemSampler.NATIVE_HEAP]);
+        assertEquals(18696, mOut[MemSampler.GRAPHICS]);
+        assertEquals(98734 - 21164 - 22076 - 18696, mOut[MemSampler.OTHER]);
+
+        // Numbers of dumpsys meminfo belong to the process, a new pid starts over
+        mSampler.sample(5678, mOut, 200);
+        assertEquals(0, mOut[MemSampler.JAVA_HEAP]);
+        assertEquals(0, mOut[MemSampler.GRAPHICS]);
+        assertEquals(86528, mOut[MemSampler.OTHER]);
+    }
+
+    @Test
+    public void readsAgainOnEverySample() throws IOException {
+        File root = mFolder.newFolder("proc");
+        File rollup = new File(root, "42/smaps_rollup");
+        write(rollup, "Rss:  1000 kB\nPss:   800 kB\n");
+        MemSampler sampler = new MemSampler(root.getPath());
+        sampler.sample(42, mOut, 0);
+        assertEquals(800, mOut[MemSampler.PSS]);
+        write(rollup, "Rss:  2000 kB\nPss:  1600 kB\n");
+        sampler.sample(42, mOut, 100);
+        assertEquals(1600, mOut[MemSampler.PSS]);
+        sampler.close();
+    }
+
+    @Test
+    public void parsesFirstInt() {
+        assertEquals(21164, MemSampler.parseFirstInt("Java Heap:    21164"));
+        assertEquals(106821, MemSampler.parseFirstInt("TOTAL:   106821       TOTAL SWAP PSS:     3011"));
+        assertEquals(0, MemSampler.parseFirstInt("Graphics:"));
+    }
+}
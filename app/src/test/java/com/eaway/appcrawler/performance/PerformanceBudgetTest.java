@@ -0,0 +1,125 @@
+package com.eaway.appcrawler.performance;
+
+import com.eaway.appcrawler.common.TestScreens;
+import com.eaway.appcrawler.common.UiScreen;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PerformanceBudget against the YAML fixtures under test resources budget/
+ */
+public class PerformanceBudgetTest {
+    private static final String MAIN = "com.example.news.MainActivity";
+    private static final String LIST = "FrameLayout;LinearLayout;ListView;";
+
+    private static File fixture(String name) {
+        return new File(PerformanceBudgetTest.class.getResource("/budget/" + name).getFile());
+    }
+
+    @After
+    public void tearDown() {
+        PerformanceBudget.load(new File("missing.yml"));
+        PerformanceBudget.reset();
+    }
+
+    @Test
+    public void loadsBudgets() {
+        PerformanceBudget.load(fixture("budget.yml"));
+        List<PerformanceBudget.Budget> budgets = PerformanceBudget.getBudgets();
+        assertEquals(4, budgets.size());
+
+        PerformanceBudget.Budget any = budgets.get(0);
+        assertEquals("*", any.activity);
+        assertEquals(300000, any.maxPss);
+        assertEquals(-1, any.maxCpu, 0);
+
+        PerformanceBudget.Budget main = budgets.get(1);
+        assertEquals(MAIN, main.activity);
+        assertEquals(60.5, main.maxCpu, 0.01);
+        assertEquals(32, main.maxFrameP95);
+        assertEquals(1000, main.maxClickSettle);
+        assertEquals(-1, main.maxPss);
+
+        PerformanceBudget.Budget list = budgets.get(2);
+        assertNull(list.activity);
+        assertEquals(LIST, list.signature);
+        assertEquals("signature:" + LIST, list.toString());
+
+        // Neither activity nor signature: every screen
+        assertEquals("*", budgets.get(3).activity);
+    }
+
+    @Test
+    public void noBudgetsWithoutFileOrList() {
+        PerformanceBudget.load(fixture("budget.yml"));
+        PerformanceBudget.load(new File("missing.yml"));
+        assertTrue(PerformanceBudget.getBudgets().isEmpty());
+
+        PerformanceBudget.load(fixture("nobudgets.yml"));
+        assertTrue(PerformanceBudget.getBudgets().isEmpty());
+
+        // A bad number drops the whole file, not only the budget
+        PerformanceBudget.load(fixture("badnumber.yml"));
+        assertTrue(PerformanceBudget.getBudgets().isEmpty());
+    }
+
+    @Test
+    public void parsesOneBudget() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("activity", " " + MAIN + " ");
+        map.put("maxPss", "1024");
+        map.put("maxCpu", 12.5);
+        PerformanceBudget.Budget budget = PerformanceBudget.parse(map);
+        assertEquals(MAIN, budget.activity);
+        assertEquals(1024, budget.maxPss);
+        assertEquals(12.5, budget.maxCpu, 0.01);
+        assertEquals(-1, budget.maxFrameP95);
+        assertEquals("activity:" + MAIN, budget.toString());
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejectsBadNumber() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("maxFrameP95", "fast");
+        PerformanceBudget.parse(map);
+    }
+
+    @Test
+    public void matchesActivityAndSignature() {
+        UiScreen main = TestScreens.screen(MAIN, LIST);
+        UiScreen other = TestScreens.screen("com.example.news.DetailActivity", "FrameLayout;TextView;");
+
+        PerformanceBudget.Budget any = new PerformanceBudget.Budget();
+        any.activity = "*";
+        assertTrue(any.matches(main));
+        assertTrue(any.matches(other));
+
+        PerformanceBudget.Budget activity = new PerformanceBudget.Budget();
+        activity.activity = MAIN;
+        assertTrue(activity.matches(main));
+        assertFalse(activity.matches(other));
+
+        PerformanceBudget.Budget signature = new PerformanceBudget.Budget();
+        signature.signature = LIST;
+        assertTrue(signature.matches(main));
+        assertFalse(signature.matches(other));
+
+        // Both given, both must match
+        PerformanceBudget.Budget both = new PerformanceBudget.Budget();
+        both.activity = "com.example.news.DetailActivity";
+        both.signature = LIST;
+        assertFalse(both.matches(main));
+        assertFalse(both.matches(other));
+    }
+}
@@ -0,0 +1,184 @@
+package com.eaway.appcrawler.performance;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * PerformanceStore written to a temporary folder and exported to CSV
+ */
+public class PerformanceStoreTest {
+    private static final String HEADER = "Time,CPU%,Memory(KB),Screen,Action,Disk read(KB),Disk write(KB),Net rx(KB),Net tx(KB)";
+    private static final long START = 1500000000000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mBin;
+    private File mScreens;
+    private File mActions;
+    private File mCsv;
+    private final SimpleDateFormat mFormat = new SimpleDateFormat("MM-dd HH:mm:ss");
+
+    @Before
+    public void setUp() throws IOException {
+        mBin = new File(mFolder.getRoot(), "Performance.bin");
+        mScreens = new File(mFolder.getRoot(), "Performance.screens");
+        mActions = new File(mFolder.getRoot(), "Performance.actions");
+        mCsv = new File(mFolder.getRoot(), "Performance.csv");
+    }
+
+    private List<String> readCsv() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mCsv), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                lines.add(line);
+        } finally {
+            reader.close();
+        }
+        assertEquals('\uFEFF', lines.get(0).charAt(0)); // BOM
+        lines.set(0, lines.get(0).substring(1));
+        return lines;
+    }
+
+    private String time(long time) {
+        return mFormat.format(new Date(time));
+    }
+
+    @Test
+    public void exportsBytesSincePreviousRow() throws IOException {
+        PerformanceStore store = new PerformanceStore(4);
+        store.open(mBin, mScreens, mActions);
+        int main = store.getScreenId("Screen[1] MainActivity");
+        int detail = store.getScreenId("Screen[2] DetailActivity");
+        int click = store.getActionId("click \"OK\"");
+        store.append(START, 10f, 1000, 0, 0, 0, 0, 0, main, -1, 0, 0, 1024, 2048);
+        store.append(START + 1000, 20f, 1200, 0, 0, 0, 0, 0, main, click, 4096, 1024, 3072, 2048);
+        // Process restarted, its disk counters start over, network counters are not known
+        store.append(START + 2000, 30f, 900, 0, 0, 0, 0, 0, detail, click, 1024, 0, -1, -1);
+        store.append(START + 3000, 40f, 950, 0, 0, 0, 0, 0, detail, -1, 3072, 2048, 8192, 4096);
+        store.close();
+
+        PerformanceStore.exportCsv(mBin, mScreens, mActions, mCsv, 0);
+        List<String> lines = readCsv();
+        assertEquals(5, lines.size());
+        assertEquals(HEADER, lines.get(0));
+        assertEquals(time(START) + ",10.0%,1000,Screen[1] MainActivity,\"\",0,0,0,0", lines.get(1));
+        assertEquals(time(START + 1000) + ",20.0%,1200,Screen[1] MainActivity,\"click \"\"OK\"\"\",4,1,2,0", lines.get(2));
+        assertEquals(time(START + 2000) + ",30.0%,900,Screen[2] DetailActivity,\"click \"\"OK\"\"\",0,0,0,0", lines.get(3));
+        assertEquals(time(START + 3000) + ",40.0%,950,Screen[2] DetailActivity,\"\",2,2,0,0", lines.get(4));
+    }
+
+    @Test
+    public void downsamplesToMaxRows() throws IOException {
+        PerformanceStore store = new PerformanceStore(16);
+        store.open(mBin, mScreens, mActions);
+        int screen = store.getScreenId("Screen[1] MainActivity");
+        // More than one write buffer
+        for (int i = 0; i < 100; i++)
+            store.append(START + i * 100, i, 1000 + i, 0, 0, 0, 0, 0, screen, -1, i * 1024L, -1, -1, -1);
+        store.close();
+        assertEquals(100, store.getCount());
+        assertEquals(16, store.size());
+        assertEquals(START + 84 * 100, store.getTime(0));
+
+        PerformanceStore.exportCsv(mBin, mScreens, mActions, mCsv, 30);
+        List<String> lines = readCsv();
+        // 4 records a row, the time of the first one, average CPU and peak memory
+        assertEquals(1 + 25, lines.size());
+        assertEquals(time(START) + ",1.5%,1003,Screen[1] MainActivity,\"\",0,0,0,0", lines.get(1));
+        assertEquals(time(START + 400) + ",5.5%,1007,Screen[1] MainActivity,\"\",4,0,0,0", lines.get(2));
+        assertEquals(time(START + 9600) + ",97.5%,1099,Screen[1] MainActivity,\"\",4,0,0,0", lines.get(25));
+    }
+
+    @Test
+    public void readsVersion2Store() throws IOException {
+        // Action id but no disk and network bytes
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mBin));
+        try {
+            out.writeInt(PerformanceStore.MAGIC);
+            out.writeInt(2);
+            out.writeInt(8 + 4 + 4 * 8);
+            out.writeLong(START);
+            for (int i = 0; i < 2; i++) {
+                out.writeLong(START + i * 1000);
+                out.writeFloat(5f * (i + 1));
+                out.writeInt(2000 + i);
+                for (int j = 0; j < 5; j++)
+                    out.writeInt(0);
+                out.writeInt(0);
+                out.writeInt(i - 1);
+            }
+            // Last record not written completely
+            out.writeLong(START + 2000);
+        } finally {
+            out.close();
+        }
+        FileOutputStream names = new FileOutputStream(mScreens);
+        names.write("0,Screen[1] MainActivity\n".getBytes("UTF-8"));
+        names.close();
+        names = new FileOutputStream(mActions);
+        names.write("0,Back\n".getBytes("UTF-8"));
+        names.close();
+
+        PerformanceStore.exportCsv(mBin, mScreens, mActions, mCsv, 0);
+        List<String> lines = readCsv();
+        assertEquals(3, lines.size());
+        assertEquals(time(START) + ",5.0%,2000,Screen[1] MainActivity,\"\",0,0,0,0", lines.get(1));
+        assertEquals(time(START + 1000) + ",10.0%,2001,Screen[1] MainActivity,\"Back\",0,0,0,0", lines.get(2));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherFiles() throws IOException {
+        FileOutputStream out = new FileOutputStream(mBin);
+        out.write("not a performance store at all".getBytes("UTF-8"));
+        out.close();
+        PerformanceStore.exportCsv(mBin, mScreens, mActions, mCsv, 0);
+    }
+
+    @Test
+    public void keepsStatsInMemory() {
+        PerformanceStore store = new PerformanceStore(2);
+        int a = store.getScreenId("Screen[1] A");
+        int b = store.getScreenId("Screen[2] B");
+        assertEquals(a, store.getScreenId("Screen[1] A"));
+        store.append(START, 10f, 100, 0, 0, 0, 0, 0, a, -1, -1, -1, -1, -1);
+        store.append(START, 30f, 300, 0, 0, 0, 0, 0, b, -1, -1, -1, -1, -1);
+        store.append(START, 20f, 200, 0, 0, 0, 0, 0, b, -1, -1, -1, -1, -1);
+        assertEquals(20f, store.getAverageCpu(), 1e-6);
+        assertEquals(200, store.getAveragePss());
+        assertEquals(300, store.getPssPeak());
+        assertEquals(1, store.getPssHistograms().get(a).getCount());
+        assertEquals(300, store.getPssHistograms().get(b).getMax(), 0);
+        assertEquals(30f, store.getCpuHistograms().get(b).getMax(), 1e-6);
+
+        // Next crawl: screen ids start over, the same key must not see the samples of the last one
+        store.resetHistograms();
+        assertEquals(null, store.getCpuHistograms().get(a));
+        assertEquals(3, store.getCount());
+        assertEquals(a, store.getScreenId("Screen[1] A"));
+        store.append(START, 5f, 50, 0, 0, 0, 0, 0, a, -1, -1, -1, -1, -1);
+        assertEquals(50, store.getPssHistograms().get(a).getMax(), 0);
+
+        store.reset();
+        assertEquals(0, store.getCount());
+        assertEquals(null, store.getPssHistograms().get(b));
+    }
+}
@@ -0,0 +1,151 @@
+package com.eaway.appcrawler.performance;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ProcReader against the fixture files under test resources proc/
+ */
+public class ProcReaderTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ProcReader mReader;
+
+    static String fixtureRoot() {
+        return new File(ProcReaderTest.class.getResource("/proc/stat").getFile()).getParent();
+    }
+
+    @Before
+    public void setUp() {
+        mReader = new ProcReader(fixtureRoot());
+    }
+
+    @After
+    public void tearDown() {
+        mReader.close();
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void readsTotalCpuTime() {
+        // user + nice + system + idle + iowait + irq + softirq of the "cpu" line, steal and guest are not counted
+        assertEquals(10132153L + 290696 + 3084719 + 46828483 + 16683 + 0 + 25195, mReader.readTotalCpuTime());
+    }
+
+    @Test
+    public void readsProcessCpuTime() {
+        assertEquals(4215 + 1187 + 12 + 7, mReader.readProcessCpuTime(1234));
+    }
+
+    @Test
+    public void countsFieldsFromLastParenthesis() {
+        // Name "(my (app) x)" has spaces and parentheses, cstime is negative
+        assertEquals(250 + 50 - 3 + 4, mReader.readProcessCpuTime(5678));
+
+        long[] out = new long[2];
+        assertEquals(2, mReader.readProcessStat(5678, 21, out, 2));
+        assertArrayEquals(new long[]{0, 170000}, out);
+    }
+
+    @Test
+    public void switchesPid() {
+        assertEquals(5421, mReader.readProcessCpuTime(1234));
+        assertEquals(301, mReader.readProcessCpuTime(5678));
+        assertEquals(5421, mReader.readProcessCpuTime(1234));
+        long[] out = new long[1];
+        assertEquals(1, mReader.readProcessStat(1234, 22, out, 1));
+        assertEquals(163211, out[0]);
+    }
+
+    @Test
+    public void missingProcess() {
+        assertEquals(-1, mReader.readProcessCpuTime(999));
+        assertEquals(-1, mReader.readProcessStat(999, 14, new long[4], 4));
+        // Still fine for a live process afterwards
+        assertEquals(5421, mReader.readProcessCpuTime(1234));
+    }
+
+    @Test
+    public void missingStat() {
+        ProcReader reader = new ProcReader(mFolder.getRoot().getPath());
+        assertEquals(-1, reader.readTotalCpuTime());
+        reader.close();
+    }
+
+    @Test
+    public void readsAgainFromTheBeginning() throws IOException {
+        File root = mFolder.newFolder("proc");
+        File stat = new File(root, "42/stat");
+        write(stat, "42 (app) S 1 1 0 0 -1 0 0 0 0 0 100 20 0 0 20 0 1 0 500 0 0\n");
+        ProcReader reader = new ProcReader(root.getPath());
+        assertEquals(120, reader.readProcessCpuTime(42));
+
+        // Open file, shorter content than before
+        write(stat, "42 (app) S 1 1 0 0 -1 0 0 0 0 0 7 3 0 0\n");
+        assertEquals(10, reader.readProcessCpuTime(42));
+        reader.close();
+    }
+
+    @Test
+    public void truncatedStat() throws IOException {
+        File root = mFolder.newFolder("proc");
+        write(new File(root, "stat"), "cpu  1 2 3\n");
+        write(new File(root, "7/stat"), "7 (app) S 1 1 0 0 -1 0 0 0 0 0 100 20\n");
+        ProcReader reader = new ProcReader(root.getPath());
+        assertEquals(-1, reader.readTotalCpuTime());
+        assertEquals(-1, reader.readProcessCpuTime(7));
+        reader.close();
+    }
+
+    @Test
+    public void readsProcessIo() {
+        long[] io = new long[ProcReader.IO_FIELDS];
+        assertTrue(mReader.readProcessIo(1234, io));
+        assertArrayEquals(new long[]{48793104, 1536022, 21044, 3190, 11141120, 905216}, io);
+
+        // Kernel without task IO accounting has no storage bytes
+        assertTrue(mReader.readProcessIo(5678, io));
+        assertArrayEquals(new long[]{1000, 2000, 3, 4, -1, -1}, io);
+
+        // Not readable, e.g. another uid on newer Android
+        assertFalse(mReader.readProcessIo(999, io));
+        assertTrue(mReader.readProcessIo(1234, io));
+        assertEquals(11141120, io[ProcReader.IO_READ_BYTES]);
+    }
+
+    @Test
+    public void parsesFields() {
+        byte[] line = "cpu  12 -3 x 4\n5".getBytes();
+        long[] out = new long[4];
+        int start = ProcReader.skipToken(line, 0, line.length);
+        assertEquals(2, ProcReader.parseLongs(line, start, line.length, out, 4));
+        assertEquals(12, out[0]);
+        assertEquals(-3, out[1]);
+
+        byte[] meminfo = "Size: 10 kB\nPss:   1234 kB\nPss_Dirty: 9 kB\n".getBytes();
+        assertEquals(1234, ProcReader.findValue(meminfo, meminfo.length, "Pss:".getBytes()));
+        assertEquals(-1, ProcReader.findValue(meminfo, meminfo.length, "Rss:".getBytes()));
+    }
+}
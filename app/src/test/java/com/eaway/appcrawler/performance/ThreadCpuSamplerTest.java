@@ -0,0 +1,83 @@
+package com.eaway.appcrawler.performance;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * ThreadCpuSampler on a task directory written under a temporary proc root
+ */
+public class ThreadCpuSamplerTest {
+    private static final int PID = 77;
+    private static final int SCREEN = 1;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ThreadCpuSampler mSampler;
+
+    @Before
+    public void setUp() throws IOException {
+        mSampler = new ThreadCpuSampler(mFolder.getRoot().getPath());
+        writeTask(PID, "main", 100, 20);
+        writeTask(PID + 1, "pool-1-thread-1", 10, 0);
+    }
+
+    @After
+    public void tearDown() {
+        mSampler.close();
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(mFolder.getRoot(), path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private void writeTask(int tid, String name, long utime, long stime) throws IOException {
+        String dir = PID + "/task/" + tid;
+        write(dir + "/comm", name + "\n");
+        write(dir + "/stat", tid + " (" + name + ") S 1 1 0 0 -1 0 0 0 0 0 " + utime + " " + stime +
+                " 0 0 20 0 1 0 100 0 0\n");
+    }
+
+    @Test
+    public void addsThreadTimePerScreen() throws IOException {
+        mSampler.sample(PID, SCREEN, 0);
+        writeTask(PID, "main", 130, 25);
+        writeTask(PID + 1, "pool-1-thread-1", 12, 0);
+        mSampler.sample(PID, SCREEN, 1);
+
+        ThreadCpuSampler.ScreenCpu screen = mSampler.getScreens().get(0);
+        assertEquals(37, screen.total);
+        assertEquals(35, screen.threads.get("main(" + PID + ")")[0]);
+        assertEquals(2, screen.groups.get("pool-#-thread-#")[0]);
+        assertEquals(1, mSampler.getScans());
+    }
+
+    @Test
+    public void scansAgainAfterClose() throws IOException {
+        mSampler.sample(PID, SCREEN, 0);
+        // Sampling paused and resumed, same process
+        mSampler.close();
+        mSampler.sample(PID, SCREEN, 1);
+        assertEquals(2, mSampler.getScans());
+
+        writeTask(PID, "main", 110, 20);
+        mSampler.sample(PID, SCREEN, 2);
+        assertEquals(10, mSampler.getScreens().get(0).total);
+    }
+}
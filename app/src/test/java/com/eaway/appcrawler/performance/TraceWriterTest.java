@@ -0,0 +1,61 @@
+package com.eaway.appcrawler.performance;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trace.json written to a temporary folder
+ */
+public class TraceWriterTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @After
+    public void tearDown() {
+        TraceWriter.close();
+    }
+
+    private static List<String> readEvents(File file, String phase) throws IOException {
+        List<String> events = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.contains("\"ph\":\"" + phase + "\""))
+                    events.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return events;
+    }
+
+    @Test
+    public void dropsCountersBeforeOpen() throws IOException {
+        File file = mFolder.newFile("Trace.json");
+        long before = System.currentTimeMillis() - 1000;
+        TraceWriter.open(file);
+        long now = System.currentTimeMillis();
+        TraceWriter.counter("pss", before, 100);
+        TraceWriter.counter("pss", now, 200);
+        TraceWriter.close();
+
+        List<String> counters = readEvents(file, "C");
+        assertEquals(1, counters.size());
+        assertTrue(counters.get(0), counters.get(0).contains("\"value\":200.0"));
+        assertTrue(counters.get(0), !counters.get(0).contains("\"ts\":-"));
+    }
+}